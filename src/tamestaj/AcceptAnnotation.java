@@ -9,11 +9,13 @@ import javassist.bytecode.ParameterAnnotationsAttribute;
 import javassist.bytecode.annotation.*;
 import tamestaj.annotations.Stage;
 
+import java.util.Collections;
 import java.util.IdentityHashMap;
+import java.util.Map;
 
 final class AcceptAnnotation {
-    private static final IdentityHashMap<CtField, ImmutableList<AcceptAnnotation>> fieldCache = new IdentityHashMap<>();
-    private static final IdentityHashMap<CtMethod, ImmutableList<AcceptAnnotation>> methodCache = new IdentityHashMap<>();
+    private static final Map<CtField, ImmutableList<AcceptAnnotation>> fieldCache = Collections.synchronizedMap(new IdentityHashMap<>());
+    private static final Map<CtMethod, ImmutableList<AcceptAnnotation>> methodCache = Collections.synchronizedMap(new IdentityHashMap<>());
 
     private final ImmutableSet<CtClass> languages;
 
@@ -119,9 +121,10 @@ final class AcceptAnnotation {
         }
 
         anns = annsBuilder.build();
-        methodCache.put(annotatedMethod, anns);
+        // There is only one result per member, even if another thread got here at the same time
+        ImmutableList<AcceptAnnotation> cachedAnns = methodCache.putIfAbsent(annotatedMethod, anns);
 
-        return anns;
+        return cachedAnns == null ? anns : cachedAnns;
     }
 
     public static ImmutableList<AcceptAnnotation> forField(CtField field) {
@@ -198,8 +201,8 @@ final class AcceptAnnotation {
         }
 
         anns = annsBuilder.build();
-        fieldCache.put(annotatedField, anns);
+        ImmutableList<AcceptAnnotation> cachedAnns = fieldCache.putIfAbsent(annotatedField, anns);
 
-        return anns;
+        return cachedAnns == null ? anns : cachedAnns;
     }
 }
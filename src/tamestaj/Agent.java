@@ -1,5 +1,7 @@
 package tamestaj;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
 import javassist.*;
 import javassist.bytecode.*;
 import javassist.bytecode.annotation.*;
@@ -7,7 +9,6 @@ import tamestaj.annotations.Accept;
 import tamestaj.annotations.Configure;
 import tamestaj.annotations.Stage;
 import tamestaj.annotations.Suppress;
-import tamestaj.util.TickTock;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -16,6 +17,8 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentMap;
 
 final class Agent {
     private Agent() { }
@@ -31,14 +34,29 @@ final class Agent {
         }
         */
 
+        Options.parse(agentArgs);
+
+        StagedMemberIndex.startIndexing();
+
         // Making the various hidden classes accessible here has caused a weird JVM bug once (critical crash)!
         // We moved it inside Transformer.
 
         inst.addTransformer(new Transformer());
     }
 
-    private static final class Transformer implements ClassFileTransformer {
-        private static final String[] ignore = new String[]{ "sun/", "java/", "javax/" };
+    // The JVM may call the transformer from several class loading threads at once. All of them share the default
+    // class pool, as the analyses rely on there being one CtClass per class (and one CtMember per member). Javassist
+    // synchronizes the pool's lookups, and the annotation and expression class registries are synchronized as well.
+    // A transformation only modifies the class it transforms, which is locked meanwhile. The exceptions are carrier
+    // superclasses (see CarrierTransformer) and the hidden classes below, which are modified under their own locks.
+    // The lock of a class is not its CtClass' monitor, which Javassist uses internally, also from analysis threads
+    // (see BehaviorAnalysis).
+    static final class Transformer implements ClassFileTransformer {
+        private static final String[] ignore = new String[]{ "sun/", "java/", "javax/", "jdk/" };
+
+        private static volatile boolean areHiddenClassesPublic = false;
+
+        private static final ConcurrentMap<CtClass, Object> transformationLocks = new MapMaker().weakKeys().makeMap();
 
         public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
             if (className == null) { return null; }
@@ -53,8 +71,62 @@ final class Agent {
                 }
             }
 
+            if (StagedMemberIndex.isIndexingThread()) {
+                return null;
+            }
+
+            // Most classes can be found to need no transformation by looking at their class file alone, without
+            // having Javassist read it. Javassist can still read such a class later on (e.g. as supertype of a class
+            // that is transformed), but only from the class path, so this is restricted to class loaders that load
+            // from there.
+            if (isClassPathLoader(loader) && !StagedMemberIndex.mayBeTransformed(classfileBuffer)) {
+                return null;
+            }
+
             ClassPool cp = ClassPool.getDefault();
             try {
+                makeHiddenClassesPublic();
+
+                // The pool's own lock, such that concurrent loads of the same class (through different class
+                // loaders) end up with the same CtClass
+                CtClass clazz;
+                synchronized (cp) {
+                    clazz = cp.getOrNull(Descriptor.toJavaName(className));
+                    if (clazz == null) {
+                        InputStream stream = new ByteArrayInputStream(classfileBuffer);
+                        clazz = cp.makeClass(stream);
+                        stream.close();
+                    }
+                }
+
+                synchronized (transformationLocks.computeIfAbsent(clazz, c -> new Object())) {
+                    return transform(cp, clazz, classfileBuffer);
+                }
+            } catch (IOException | NotFoundException | BadBytecode | CannotCompileException | RuntimeException | Error e) {
+                e.printStackTrace();
+                // throw new RuntimeException(e);
+            }
+
+            return null;
+        }
+
+        private static boolean isClassPathLoader(ClassLoader loader) {
+            for (ClassLoader l = ClassLoader.getSystemClassLoader(); l != null; l = l.getParent()) {
+                if (l == loader) {
+                    return true;
+                }
+            }
+
+            return loader == null;
+        }
+
+        static void makeHiddenClassesPublic() throws CannotCompileException {
+            if (areHiddenClassesPublic) {
+                return;
+            }
+
+            // Making a class public loads it, which reenters the transformer on this thread but must not happen twice
+            synchronized (Transformer.class) {
                 // Here we make the ClosureHolder class accessible!
                 if (!Modifier.isPublic(Util.CLOSURE_HOLDER_CLASS.getModifiers())) {
                     Util.CLOSURE_HOLDER_CLASS.setModifiers(Modifier.setPublic(Util.CLOSURE_HOLDER_CLASS.getModifiers()));
@@ -79,192 +151,235 @@ final class Agent {
                     Util.DISPATCHER_CLASS.toClass();
                 }
 
-                CtClass clazz = cp.getOrNull(Descriptor.toJavaName(className));
-                if (clazz == null) {
-                    InputStream stream = new ByteArrayInputStream(classfileBuffer);
-                    clazz = cp.makeClass(stream);
-                    stream.close();
-                }
-
-                // We are just loading the class so defrosting is allowed!
-                clazz.defrost();
-                // This is necessary because in client code Javassist might have been used to
-                // modify and load the current class using toClass(). Of course Javassist sets it frozen
-                // but in fact since we are intercepting this very loading we can still modify it and safely defrost!
-
-                checkAnnotations(clazz);
-
-                if (Util.isCarrier(clazz)) {
-                    CarrierTransformer.transformCarrierChecked(clazz);
-                }
-
-                // Here we make the language classes accessible!
-                if (clazz.subtypeOf(Util.LANGUAGE_CLASS)) {
-                    if (!Modifier.isPublic(clazz.getModifiers())) {
-                        clazz.setModifiers(Modifier.setPublic(clazz.getModifiers()));
-                    }
-                }
-
-                if (containsStaged(cp, clazz)) {
-                    // System.out.println("Class \"" + clazz.getName() + "\" contains staged references!");
-                    for (CtBehavior behavior : clazz.getDeclaredBehaviors()) {
-                        // Bridge method check via isVolatile... alternatively: (behavior.getMethodInfo2().getAccessFlags() & AccessFlag.BRIDGE) == 0
-                        if (!Modifier.isAbstract(behavior.getModifiers()) && !Modifier.isNative(behavior.getModifiers()) && !Modifier.isVolatile(behavior.getModifiers()) && containsStaged(cp, behavior)) {
-                            System.out.println("Behavior \"" + behavior.getLongName() + "\" contains (unsuppressed) staging code!");
-
-                            TickTock.tick("Transformation");
-
-                                TickTock.tick("Type analysis");
-
-                                    TypeAnalyzer typeAnalyzer = new TypeAnalyzer(behavior);
-                                    typeAnalyzer.analyze();
-
-                                TickTock.tockPrint();
-
-
-                                TickTock.tick("Value flow analysis");
-
-                                    ValueFlowAnalyzer valueFlowAnalyzer = new ValueFlowAnalyzer(typeAnalyzer);
-                                    valueFlowAnalyzer.analyze();
-
-                                TickTock.tockPrint();
-
-
-                                TickTock.tick("Constant analysis");
+                areHiddenClassesPublic = true;
+            }
+        }
 
-                                    ConstantAnalyzer constantAnalyzer = new ConstantAnalyzer(typeAnalyzer);
-                                    constantAnalyzer.analyze();
+        private static byte[] transform(ClassPool cp, CtClass clazz, byte[] classfileBuffer) throws IOException, NotFoundException, BadBytecode, CannotCompileException {
+            // We are just loading the class so defrosting is allowed!
+            clazz.defrost();
+            // This is necessary because in client code Javassist might have been used to
+            // modify and load the current class using toClass(). Of course Javassist sets it frozen
+            // but in fact since we are intercepting this very loading we can still modify it and safely defrost!
 
-                                TickTock.tockPrint();
+            checkAnnotations(clazz);
 
+            StagedMemberIndex.add(clazz.getClassFile2());
 
-                                TickTock.tick("Stage analysis");
+            if (Util.isCarrier(clazz)) {
+                CarrierTransformer.transformCarrierChecked(clazz);
+            }
 
-                                    StageAnalyzer stageAnalyzer = new StageAnalyzer(typeAnalyzer, valueFlowAnalyzer.getResult());
-                                    stageAnalyzer.analyze();
-                                    StageGraph stageGraph = stageAnalyzer.getResult().getStageGraph();
+            // Here we make the language classes accessible!
+            if (clazz.subtypeOf(Util.LANGUAGE_CLASS)) {
+                if (!Modifier.isPublic(clazz.getModifiers())) {
+                    clazz.setModifiers(Modifier.setPublic(clazz.getModifiers()));
+                }
+            }
 
-                                TickTock.tockPrint();
+            // The cache covers the weaving, which is what takes time, everything before is redone
+            byte[] cacheKey = null;
+            WovenClassCache.Entry cachedEntry = null;
+            if (WovenClassCache.isEnabled()) {
+                cacheKey = makeCacheKey(cp, clazz, classfileBuffer);
+                cachedEntry = WovenClassCache.lookup(cacheKey);
+            }
 
-                                TickTock.tick("Lift estimate analysis");
+            boolean isWoven = false;
+            // Whether a behavior exceeded its analysis budget, which depends on the options and the time taken
+            boolean isSkipped = false;
 
-                                    LiftEstimateAnalyzer.Result liftEstimateAnalyzerResult = LiftEstimateAnalyzer.analyze(stageGraph, valueFlowAnalyzer.getResult(), constantAnalyzer.getResult());
+            if (cachedEntry != null) {
+                if (cachedEntry.getClassFile() != null) {
+                    // Woven classes refer to expression classes that are not part of the class file
+                    ExpressionClassFactory.defineExpressionClasses(cachedEntry.getExpressionClassFiles());
+                    return cachedEntry.getClassFile();
+                }
+            } else if (containsStaged(cp, clazz)) {
+                // System.out.println("Class \"" + clazz.getName() + "\" contains staged references!");
+                ArrayList<CtBehavior> stagedBehaviors = new ArrayList<>();
+                for (CtBehavior behavior : clazz.getDeclaredBehaviors()) {
+                    // Bridge method check via isVolatile... alternatively: (behavior.getMethodInfo2().getAccessFlags() & AccessFlag.BRIDGE) == 0
+                    if (!Modifier.isAbstract(behavior.getModifiers()) && !Modifier.isNative(behavior.getModifiers()) && !Modifier.isVolatile(behavior.getModifiers()) && containsStaged(cp, behavior)) {
+                        System.out.println("Behavior \"" + behavior.getLongName() + "\" contains (unsuppressed) staging code!");
+                        stagedBehaviors.add(behavior);
+                        isWoven = true;
+                    }
+                }
 
-                                TickTock.tockPrint();
+                long start = Telemetry.start();
+                for (BehaviorAnalysis analysis : BehaviorAnalysis.analyze(stagedBehaviors)) {
+                    analysis.weave();
+                    isSkipped |= analysis.isSkipped();
+                }
+                Telemetry.stop(Telemetry.Phase.TRANSFORMATION, clazz.getName(), start);
+            }
 
-                                TickTock.tick("Cachability analysis");
+            byte[] classFile = clazz.isModified() ? clazz.toBytecode() : null;
+            if (isWoven && classFile != null) {
+                Telemetry.recordClassFileLengths(clazz.getName(), classfileBuffer.length, classFile.length);
+            }
 
-                                    CachabilityAnalyzer.Result cachabilityAnalyzerResult = CachabilityAnalyzer.analyze(stageGraph, valueFlowAnalyzer.getResult(), constantAnalyzer.getResult());
+            if (cacheKey != null && cachedEntry == null && !isSkipped) {
+                if (isWoven) {
+                    WovenClassCache.store(cacheKey, WovenClassCache.Entry.make(classFile, ExpressionClassFactory.getExpressionClassFiles(clazz)));
+                } else {
+                    WovenClassCache.store(cacheKey, null);
+                }
+            }
 
-                                TickTock.tockPrint();
+            return classFile;
+        }
+    }
 
-                                TickTock.tick("Weave analysis");
+    private static StageAnnotation getStageAnnotation(ClassPool classPool, ConstPool constPool, int i) {
+        try {
+            switch (constPool.getTag(i)) {
+                case ConstPool.CONST_Methodref: {
+                    String className = constPool.getMethodrefClassName(i);
+                    if (!StagedMemberIndex.mayBeStagedMethod(className, constPool.getMethodrefName(i))) {
+                        break;
+                    }
 
-                                    WeaveAnalyzer weaveAnalyzer = new WeaveAnalyzer(typeAnalyzer, stageGraph, valueFlowAnalyzer.getResult(), constantAnalyzer.getResult(), cachabilityAnalyzerResult, liftEstimateAnalyzerResult);
-                                    weaveAnalyzer.analyze();
+                    CtClass c;
+                    if (className.charAt(0) == '[') {
+                        c = Descriptor.toCtClass(className, classPool);
+                    } else {
+                        c = classPool.get(className);
+                    }
 
-                                TickTock.tockPrint();
+                    if (constPool.isConstructor(className, i) <= 0) {
+                        String name = constPool.getMethodrefName(i);
+                        String desc = constPool.getMethodrefType(i);
+                        CtMethod method = c.getMethod(name, desc);
 
+                        return StageAnnotation.forMethod(c, method);
+                    }
+                    break;
+                }
+                case ConstPool.CONST_InterfaceMethodref: {
+                    String className = constPool.getInterfaceMethodrefClassName(i);
+                    if (!StagedMemberIndex.mayBeStagedMethod(className, constPool.getInterfaceMethodrefName(i))) {
+                        break;
+                    }
 
-                                TickTock.tick("Weaving");
+                    CtClass c;
+                    if (className.charAt(0) == '[') {
+                        c = Descriptor.toCtClass(className, classPool);
+                    } else {
+                        c = classPool.get(className);
+                    }
 
-                                    weaveAnalyzer.getResult().weave();
+                    String name = constPool.getInterfaceMethodrefName(i);
+                    String desc = constPool.getInterfaceMethodrefType(i);
+                    CtMethod method = c.getMethod(name, desc);
 
-                                TickTock.tockPrint();
+                    return StageAnnotation.forMethod(c, method);
+                }
+                case ConstPool.CONST_Fieldref: {
+                    String className = constPool.getFieldrefClassName(i);
+                    if (!StagedMemberIndex.mayBeStagedField(className, constPool.getFieldrefName(i))) {
+                        break;
+                    }
 
-                            TickTock.tockPrint();
-                        }
+                    CtClass c;
+                    if (className.charAt(0) == '[') {
+                        c = Descriptor.toCtClass(className, classPool);
+                    } else {
+                        c = classPool.get(className);
                     }
-                }
 
-                if (clazz.isModified()) {
-                    return clazz.toBytecode();
+                    String name = constPool.getFieldrefName(i);
+                    String desc = constPool.getFieldrefType(i);
+                    CtField field = c.getField(name, desc);
+
+                    return StageAnnotation.forField(c, field);
                 }
-            } catch (IOException | NotFoundException | BadBytecode | CannotCompileException | RuntimeException | Error e) {
-                e.printStackTrace();
-                // throw new RuntimeException(e);
             }
-
-            return null;
+        } catch (NotFoundException e) {
+            // e.printStackTrace();
         }
+
+        return null;
     }
 
     private static boolean containsStaged(ClassPool classPool, CtClass clazz) {
         SuppressAnnotation suppressAnn = SuppressAnnotation.forClass(clazz);
 
-        ConstPool constPool = clazz.getClassFile().getConstPool();
+        ConstPool constPool = clazz.getClassFile2().getConstPool();
         int size = constPool.getSize();
         for (int i = 1; i < size; i++) {
-            StageAnnotation ann = null;
-
-            try {
-                switch (constPool.getTag(i)) {
-                    case ConstPool.CONST_Methodref: {
-                        String className = constPool.getMethodrefClassName(i);
-
-                        CtClass c;
-                        if (className.charAt(0) == '[') {
-                            c = Descriptor.toCtClass(className, classPool);
-                        } else {
-                            c = classPool.get(className);
-                        }
-
-                        if (constPool.isConstructor(className, i) <= 0) {
-                            String name = constPool.getMethodrefName(i);
-                            String desc = constPool.getMethodrefType(i);
-                            CtMethod method = c.getMethod(name, desc);
-
-                            ann = StageAnnotation.forMethod(c, method);
-                        }
-                        break;
-                    }
-                    case ConstPool.CONST_InterfaceMethodref: {
-                        String className = constPool.getInterfaceMethodrefClassName(i);
+            StageAnnotation ann = getStageAnnotation(classPool, constPool, i);
 
-                        CtClass c;
-                        if (className.charAt(0) == '[') {
-                            c = Descriptor.toCtClass(className, classPool);
-                        } else {
-                            c = classPool.get(className);
-                        }
+            if (ann != null) {
+                if (suppressAnn == null || !suppressAnn.isSurpressed(ann.getLanguage())) {
+                    return true;
+                }
+            }
+        }
 
-                        String name = constPool.getInterfaceMethodrefName(i);
-                        String desc = constPool.getInterfaceMethodrefType(i);
-                        CtMethod method = c.getMethod(name, desc);
+        return false;
+    }
 
-                        ann = StageAnnotation.forMethod(c, method);
-                        break;
-                    }
-                    case ConstPool.CONST_Fieldref: {
-                        String className = constPool.getFieldrefClassName(i);
+    // Besides the class file itself, a transformation depends on the class' supertypes (carrier or language?), on
+    // the suppressed languages (which may be inherited from enclosing classes and behaviors) and on the annotations
+    // of all staged members it refers to, as well as on the options that go into the woven code or decide whether a
+    // behavior is woven at all. The analysis time limit is left out, as classes that exceed it are not cached anyway.
+    private static byte[] makeCacheKey(ClassPool classPool, CtClass clazz, byte[] classfileBuffer) throws NotFoundException {
+        WovenClassCache.KeyBuilder builder = WovenClassCache.makeKeyBuilder();
+        builder.add(WeaveAnalyzer.traceCacheSize);
+        builder.add(AnalysisBudget.maxCodeLength).add(AnalysisBudget.maxIterations);
+        builder.add(classfileBuffer);
+        builder.add(Util.isCarrier(clazz));
+        builder.add(clazz.subtypeOf(Util.LANGUAGE_CLASS));
 
-                        CtClass c;
-                        if (className.charAt(0) == '[') {
-                            c = Descriptor.toCtClass(className, classPool);
-                        } else {
-                            c = classPool.get(className);
-                        }
+        SuppressAnnotation suppressAnn = SuppressAnnotation.forClass(clazz);
+        if (suppressAnn != null) {
+            for (CtClass language : suppressAnn.getLanguages()) {
+                builder.add(language.getName());
+            }
+        }
+        builder.add(false);
 
-                        String name = constPool.getFieldrefName(i);
-                        String desc = constPool.getFieldrefType(i);
-                        CtField field = c.getField(name, desc);
+        ConstPool constPool = clazz.getClassFile2().getConstPool();
+        int size = constPool.getSize();
+        for (int i = 1; i < size; i++) {
+            StageAnnotation ann = getStageAnnotation(classPool, constPool, i);
+            if (ann == null) {
+                continue;
+            }
 
-                        ann = StageAnnotation.forField(c, field);
-                        break;
-                    }
+            CtMember member = ann.getAnnotatedMember();
+            builder.add(true);
+            builder.add(member.getDeclaringClass().getName()).add(member.getName()).add(member.getSignature());
+            builder.add(ann.getLanguage().getName()).add(ann.isStrict());
+            // Expression classes call the language's closure factories (see ExpressionClassFactory)
+            for (CtMethod method : ann.getLanguage().getDeclaredMethods()) {
+                if (Modifier.isStatic(method.getModifiers()) && method.getName().startsWith("make")) {
+                    builder.add(true).add(method.getName());
                 }
-            } catch (NotFoundException e) {
-                // e.printStackTrace();
+            }
+            builder.add(false);
+            for (StaticInfo.Element element : ann.getStaticInfoElements()) {
+                builder.add(element.name());
             }
 
-            if (ann != null) {
-                if (suppressAnn == null || !suppressAnn.isSurpressed(ann.getLanguage())) {
-                    return true;
+            ImmutableList<AcceptAnnotation> acceptAnns;
+            if (member instanceof CtMethod) {
+                acceptAnns = AcceptAnnotation.forMethod((CtMethod) member);
+            } else {
+                acceptAnns = AcceptAnnotation.forField((CtField) member);
+            }
+            for (AcceptAnnotation acceptAnn : acceptAnns) {
+                builder.add(true);
+                for (CtClass language : acceptAnn.getLanguages()) {
+                    builder.add(language.getName());
                 }
             }
+            builder.add(false);
         }
 
-        return false;
+        return builder.build();
     }
 
     private static void checkAnnotations(CtClass clazz) {
@@ -504,8 +619,8 @@ final class Agent {
     private static boolean containsStaged(ClassPool classPool, CtBehavior behavior) throws BadBytecode {
         SuppressAnnotation suppressAnn = SuppressAnnotation.forBehavior(behavior);
 
-        ConstPool constPool = behavior.getMethodInfo().getConstPool();
-        CodeIterator codeIt = behavior.getMethodInfo().getCodeAttribute().iterator();
+        ConstPool constPool = behavior.getMethodInfo2().getConstPool();
+        CodeIterator codeIt = behavior.getMethodInfo2().getCodeAttribute().iterator();
         while (codeIt.hasNext()) {
             int pos = codeIt.next();
 
@@ -518,6 +633,9 @@ final class Agent {
                         int index = codeIt.u16bitAt(pos + 1);
 
                         String className = constPool.getFieldrefClassName(index);
+                        if (!StagedMemberIndex.mayBeStagedField(className, constPool.getFieldrefName(index))) {
+                            break;
+                        }
 
                         CtClass c;
                         if (className.charAt(0) == '[') {
@@ -546,6 +664,9 @@ final class Agent {
                         int index = codeIt.u16bitAt(pos + 1);
 
                         String className = constPool.getMethodrefClassName(index);
+                        if (!StagedMemberIndex.mayBeStagedMethod(className, constPool.getMethodrefName(index))) {
+                            break;
+                        }
 
                         CtClass c;
                         if (className.charAt(0) == '[') {
@@ -574,6 +695,9 @@ final class Agent {
                         int index = codeIt.u16bitAt(pos + 1);
 
                         String className = constPool.getInterfaceMethodrefClassName(index);
+                        if (!StagedMemberIndex.mayBeStagedMethod(className, constPool.getInterfaceMethodrefName(index))) {
+                            break;
+                        }
 
                         CtClass c;
                         if (className.charAt(0) == '[') {
@@ -0,0 +1,138 @@
+package tamestaj;
+
+import javassist.CtBehavior;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+// Bounds on the cost of analyzing a behavior (see BehaviorAnalysis): the length of its code, the number of
+// instructions each analysis may visit until it reaches a fixed point, and the wall-clock time of all its analyses,
+// including the weave analysis. A behavior that exceeds any of them is left as it is, i.e. unstaged, which is always
+// safe. Skipped behaviors are logged (to the logger "tamestaj") and counted (see AnalysisMXBean).
+// Limits that are not positive are disabled.
+
+final class AnalysisBudget {
+    enum Limit {
+        CODE_LENGTH,
+        ITERATIONS,
+        TIME
+    }
+
+    static final class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final Limit limit;
+
+        private ExceededException(Limit limit, String message) {
+            super(message);
+            this.limit = limit;
+        }
+
+        Limit getLimit() {
+            return limit;
+        }
+    }
+
+    private static final class Statistics implements AnalysisMXBean {
+        private final LongAdder analyzedBehaviorCount = new LongAdder();
+        private final LongAdder codeLengthSkipCount = new LongAdder();
+        private final LongAdder iterationSkipCount = new LongAdder();
+        private final LongAdder timeSkipCount = new LongAdder();
+
+        public int getMaxCodeLength() { return maxCodeLength; }
+        public int getMaxIterations() { return maxIterations; }
+        public long getMaxTimeMillis() { return maxTimeMillis; }
+
+        public long getAnalyzedBehaviorCount() { return analyzedBehaviorCount.sum(); }
+        public long getSkippedBehaviorCount() { return getCodeLengthSkipCount() + getIterationSkipCount() + getTimeSkipCount(); }
+
+        public long getCodeLengthSkipCount() { return codeLengthSkipCount.sum(); }
+        public long getIterationSkipCount() { return iterationSkipCount.sum(); }
+        public long getTimeSkipCount() { return timeSkipCount.sum(); }
+    }
+
+    static final int maxCodeLength = Options.getInt("analysisMaxCodeLength", 32768);
+    static final int maxIterations = Options.getInt("analysisMaxIterations", 1000000);
+    private static final long maxTimeMillis = Options.getLong("analysisMaxTime", 10000);
+
+    // The clock is only read every so many iterations
+    private static final int TIME_CHECK_INTERVAL = 1024;
+
+    private static final Logger logger = Logger.getLogger("tamestaj");
+
+    private static final Statistics statistics = new Statistics();
+
+    static {
+        if (Options.getBoolean("jmx", true)) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(statistics, AnalysisMXBean.class, true),
+                        new ObjectName("tamestaj:type=Analysis"));
+            } catch (JMException | SecurityException e) {
+                // Statistics are optional...
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // The time left is only updated when the analyses stop, the deadline only holds while they run
+    private long remainingNanos;
+    private long deadline;
+
+    private AnalysisBudget() {
+        remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxTimeMillis);
+    }
+
+    static AnalysisBudget make() {
+        return new AnalysisBudget();
+    }
+
+    void start() {
+        deadline = System.nanoTime() + remainingNanos;
+    }
+
+    void stop() {
+        remainingNanos = Math.max(0, deadline - System.nanoTime());
+    }
+
+    void checkCodeLength(int codeLength) {
+        if (maxCodeLength > 0 && codeLength > maxCodeLength) {
+            throw new ExceededException(Limit.CODE_LENGTH, "code length of " + codeLength + " bytes exceeds " + maxCodeLength);
+        }
+    }
+
+    // Called by analyses for every instruction they visit, counting from 1
+    void checkIterations(int iterations) {
+        if (maxIterations > 0 && iterations > maxIterations) {
+            throw new ExceededException(Limit.ITERATIONS, "more than " + maxIterations + " iterations");
+        }
+        if (maxTimeMillis > 0 && iterations % TIME_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0) {
+            throw new ExceededException(Limit.TIME, "more than " + maxTimeMillis + " ms");
+        }
+    }
+
+    static void reportAnalyzed() {
+        statistics.analyzedBehaviorCount.increment();
+    }
+
+    static void reportSkipped(CtBehavior behavior, ExceededException exception) {
+        switch (exception.getLimit()) {
+            case CODE_LENGTH:
+                statistics.codeLengthSkipCount.increment();
+                break;
+            case ITERATIONS:
+                statistics.iterationSkipCount.increment();
+                break;
+            case TIME:
+                statistics.timeSkipCount.increment();
+                break;
+        }
+
+        logger.warning("Behavior \"" + behavior.getLongName() + "\" is left unstaged, its analysis exceeds the budget: " + exception.getMessage());
+    }
+}
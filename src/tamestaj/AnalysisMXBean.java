@@ -0,0 +1,17 @@
+package tamestaj;
+
+// Management interface of the analysis statistics, registered as "tamestaj:type=Analysis".
+
+@SuppressWarnings("unused")
+public interface AnalysisMXBean {
+    int getMaxCodeLength();
+    int getMaxIterations();
+    long getMaxTimeMillis();
+
+    long getAnalyzedBehaviorCount();
+    long getSkippedBehaviorCount();
+
+    long getCodeLengthSkipCount();
+    long getIterationSkipCount();
+    long getTimeSkipCount();
+}
@@ -5,8 +5,6 @@ import javassist.CtBehavior;
 import javassist.CtClass;
 import javassist.NotFoundException;
 import javassist.bytecode.*;
-import javassist.bytecode.analysis.ControlFlow;
-import javassist.bytecode.analysis.Util;
 
 import java.util.*;
 
@@ -14,59 +12,35 @@ import java.util.*;
 abstract class Analyzer<T> implements Opcode {
     private final MethodInfo methodInfo;
     private final CodeAttribute codeAttribute;
-    private final int codeLength;
 
-    // States before and after an instruction
-    private final Object[] inState;
-    private final Object[] outState;
+    // Shared by all analyzers of a behavior (see the copy constructor)
+    private final ControlFlowGraph controlFlowGraph;
+    private final AnalysisBudget budget;
 
-    // Control flow data
-    private final int[][] predecessors;
-    private final int[][] successors;
-    private final Type[] caughtException;
-    private final int[] priorities;
+    // States before and after an instruction (by index, see ControlFlowGraph)
+    private Object[] inState;
+    private Object[] outState;
 
-    // Priority queue of instructions (positions) to analyze
-    private final PriorityQueue<Integer> queue;
+    // Binary heap of instructions (indices) to analyze, by priority; an instruction may be contained more than once
+    private int[] queue;
+    private int queueSize;
 
     private int[] ignoreNext;
 
-    private boolean analyzedControlFlow;
     private T initialState;
 
     protected final CtClass clazz;
     protected final CtBehavior behavior;
 
-    /*
-    private class PriorityComparator implements Comparator<Integer> {
-        public int compare(Integer o1, Integer o2) {
-            return Integer.compare(priorities[o2], priorities[o1]);
-        }
-
-        public boolean equals(Object obj) {
-            return false;
-        }
-    }
-    */
-
-    protected Analyzer(CtBehavior behavior) {
+    protected Analyzer(CtBehavior behavior, ControlFlowGraph controlFlowGraph, AnalysisBudget budget) {
         clazz = behavior.getDeclaringClass();
         this.behavior = behavior;
 
         methodInfo = behavior.getMethodInfo2();
         codeAttribute = methodInfo.getCodeAttribute();
-        codeLength = codeAttribute.getCodeLength();
-
-        inState = new Object[codeLength];
-        outState = new Object[codeLength];
 
-        predecessors = new int[codeLength][];
-        successors = new int[codeLength][];
-        caughtException = new Type[codeLength];
-        priorities = new int[codeLength];
-
-        // queue = new PriorityQueue<>(codeLength, new PriorityComparator());
-        queue = new PriorityQueue<>(codeLength, (o1, o2) -> Integer.compare(priorities[o2], priorities[o1]));
+        this.controlFlowGraph = controlFlowGraph;
+        this.budget = budget;
     }
 
     protected Analyzer(Analyzer<?> analyzer) {
@@ -75,32 +49,9 @@ abstract class Analyzer<T> implements Opcode {
 
         methodInfo = analyzer.methodInfo;
         codeAttribute = analyzer.codeAttribute;
-        codeLength = analyzer.codeLength;
-
-        inState = new Object[codeLength];
-        outState = new Object[codeLength];
-
-        predecessors = analyzer.predecessors;
-        successors = analyzer.successors;
-        caughtException = analyzer.caughtException;
-        priorities = analyzer.priorities;
 
-        // queue = new PriorityQueue<>(codeLength, new PriorityComparator());
-        queue = new PriorityQueue<>(codeLength, (o1, o2) -> Integer.compare(priorities[o2], priorities[o1]));
-
-        analyzedControlFlow = analyzer.analyzedControlFlow;
-    }
-
-    private int getLastBlockPosition(ControlFlow.Block block, CodeIterator codeIterator) throws BadBytecode {
-        int oldPos = codeIterator.lookAhead();
-        codeIterator.move(block.position());
-        int pos = block.position();
-        while (codeIterator.lookAhead() < block.position() + block.length()) {
-            pos = codeIterator.next();
-        }
-        codeIterator.move(oldPos);
-
-        return pos;
+        controlFlowGraph = analyzer.controlFlowGraph;
+        budget = analyzer.budget;
     }
 
     protected static Type getType(String name, int position) throws BadBytecode {
@@ -111,210 +62,35 @@ abstract class Analyzer<T> implements Opcode {
         }
     }
 
-    protected void analyzeControlFlow(CodeIterator codeIterator) throws BadBytecode {
-        ControlFlow.Block[] blocks = new ControlFlow(clazz, methodInfo).basicBlocks();
-
-        HashMap<Integer, List<Integer>> catchingSuccs = new HashMap<>();
-        HashMap<Integer, List<Integer>> caughtPreds = new HashMap<>();
-
-        for (ControlFlow.Block block : blocks) {
-            ControlFlow.Catcher[] catchers = block.catchers();
-            if (catchers.length > 0) {
-                for (ControlFlow.Catcher catcher : catchers) {
-                    int catcherPos = catcher.block().position();
-                    caughtException[catcherPos] = getType(catcher.type(), catcherPos);
-
-                    // We have to consider the predecessor instructions of the first actually covered instruction, too!
-                    // After all, the first instruction may not even finish properly, and its "in state" (the
-                    // combination of the "out states" of its predecessors) has to be considered.
-                    for (int i = 0; i < block.incomings(); i++) {
-                        int pos = getLastBlockPosition(block.incoming(i), codeIterator);
-
-                        List<Integer> csList = catchingSuccs.get(pos);
-                        if (csList == null) {
-                            csList = new ArrayList<>();
-                            catchingSuccs.put(pos, csList);
-                        }
-                        csList.add(catcherPos);
-
-                        List<Integer> cpList = caughtPreds.get(catcherPos);
-                        if (cpList == null) {
-                            cpList = new ArrayList<>();
-                            caughtPreds.put(catcherPos, cpList);
-                        }
-                        cpList.add(pos);
-                    }
-
-
-                    codeIterator.move(block.position());
-                    // I believed for exception handlers the end is actually exclusive... but that appears to be just
-                    // a general pattern, i.e. the last instruction is a "goto".
-                    // while (codeIterator.lookAhead() < getLastBlockPosition(block, codeIterator)) {
-                    while (codeIterator.lookAhead() < block.position() + block.length()) {
-                        int pos = codeIterator.next();
-                        List<Integer> csList = catchingSuccs.get(pos);
-                        if (csList == null) {
-                            csList = new ArrayList<>();
-                            catchingSuccs.put(pos, csList);
-                        }
-                        csList.add(catcherPos);
-
-                        List<Integer> cpList = caughtPreds.get(catcherPos);
-                        if (cpList == null) {
-                            cpList = new ArrayList<>();
-                            caughtPreds.put(catcherPos, cpList);
-                        }
-                        cpList.add(pos);
-                    }
-                    codeIterator.begin();
-                }
-            }
-        }
-
-        for (ControlFlow.Block block : blocks) {
-            int pos;
-
-            pos = getLastBlockPosition(block, codeIterator);
-            List<Integer> csList = catchingSuccs.get(pos);
-            if (block.exits() == 0) {
-                if (csList == null) {
-                    successors[pos] = new int[0];
-                } else {
-                    successors[pos] = new int[csList.size()];
-                    int i = 0;
-                    for (int succPos : csList) {
-                        successors[pos][i] = succPos;
-                        i++;
-                    }
-                }
-            } else if (block.exits() >= 1) {
-                int csLen = 0;
-                if (csList != null) {
-                    csLen = csList.size();
-                }
-                if (successors[pos] == null) {
-                    successors[pos] = new int[block.exits() + csLen];
-                }
-                for (int i = 0; i < block.exits(); i++) {
-                    int succPos = block.exit(i).position();
-                    successors[pos][i] = succPos;
-                }
-                if (csList != null) {
-                    int i = block.exits();
-                    for (int succPos : csList) {
-                        successors[pos][i] = succPos;
-                        i++;
-                    }
-                }
-            }
-
-            pos = block.position();
-            List<Integer> cpList = caughtPreds.get(pos);
-            if (cpList == null) {
-                if (block.incomings() == 0) {
-                    predecessors[pos] = new int[0];
-                } else if (block.incomings() >= 1) {
-                    if (predecessors[pos] == null) {
-                        predecessors[pos] = new int[block.incomings()];
-                    }
-                    for (int i = 0; i < block.incomings(); i++) {
-                        int predPos = getLastBlockPosition(block.incoming(i), codeIterator);
-                        predecessors[pos][i] = predPos;
-                    }
-                }
-            } else {
-                // With a regular Java compiler this seems to work fine, but if a catching block also has "normal"
-                // (i.e. code not under exception checking) predecessors this will not suffice. A workaround could
-                // simply be to add these predecessors to cpList (above).
-                predecessors[pos] = new int[cpList.size()];
-                int i = 0;
-                for (int predPos : cpList) {
-                    predecessors[pos][i] = predPos;
-                    i++;
-                }
-            }
-        }
-
-        while (codeIterator.hasNext()) {
-            int pos = codeIterator.next();
-            if (codeIterator.hasNext() && successors[pos] == null) {
-                List<Integer> csList = catchingSuccs.get(pos);
-                if (csList == null) {
-                    successors[pos] = new int[] { lookAhead(codeIterator, pos) };
-                } else {
-                    successors[pos] = new int[csList.size() + 1];
-                    successors[pos][0] = lookAhead(codeIterator, pos);
-                    int i = 1;
-                    for (int succPos : csList) {
-                        successors[pos][i] = succPos;
-                        i++;
-                    }
-                }
-
-                if (!Util.isJumpInstruction(codeIterator.byteAt(pos)) && predecessors[lookAhead(codeIterator, pos)] == null) {
-                    predecessors[lookAhead(codeIterator, pos)] = new int[] { pos };
-                }
-            }
-        }
-        codeIterator.begin();
-
-        // The following is a quick hack to calculate priorities for reverse post-order traversal!
-        // This requires optimization both in data structures (a non-boxing stack and priority queue etc.)
-        // as well as conceptually. Doing this on a per block (do not forget catchers!) basis and linear execution
-        // therein would be much faster.
-        boolean[] discovered = new boolean[codeLength];
-        boolean[] finished = new boolean[codeLength];
-        Stack<Integer> stack = new Stack<>();
-        stack.add(0);
-
-        int time = 1;
-        while (!stack.isEmpty()) {
-            Integer pos = stack.peek();
-            discovered[pos] = true;
-
-            if (finished[pos]) {
-                stack.pop();
-                priorities[pos] = time;
-                time++;
-            } else {
-                finished[pos] = true;
-                for (int s = successors[pos].length - 1; s >= 0; s--) {
-                    if (!discovered[successors[pos][s]]) {
-                        stack.push(successors[pos][s]);
-                        finished[pos] = false;
-                    }
-                }
-            }
-        }
-    }
-
     void analyze() throws BadBytecode {
         if (codeAttribute == null) {
             // Throw exception?
             return;
         }
 
-        CodeIterator codeIterator = codeAttribute.iterator();
-
-        if (!analyzedControlFlow) {
-            analyzeControlFlow(codeIterator);
-        }
-
         initialState = initialState();
 
-        /*
-        for (int i = 0; i < successors.length; i++) {
-            System.out.println(Arrays.toString(predecessors[i]) + " - " + i + " - " + Arrays.toString(successors[i]) + (caughtException[i] != null ? " {" + caughtException[i] + "}" : ""));
+        int instructionCount = controlFlowGraph.getInstructionCount();
+        if (inState == null) {
+            inState = new Object[instructionCount];
+            outState = new Object[instructionCount];
+            queue = new int[Math.max(instructionCount, 16)];
+        } else {
+            Arrays.fill(inState, null);
+            Arrays.fill(outState, null);
         }
-        */
 
-        Arrays.fill(inState, null);
-        Arrays.fill(outState, null);
-
-        queue.clear();
-        queue.offer(codeIterator.next());
-        while (!queue.isEmpty()) {
-            analyzeInstruction(codeIterator);
+        queueSize = 0;
+        offer(0);
+        int iterations = 0;
+        while (queueSize > 0) {
+            // Straight-line code is analyzed without going through the queue
+            int index = poll();
+            do {
+                iterations++;
+                budget.checkIterations(iterations);
+                index = analyzeInstruction(index);
+            } while (index >= 0);
         }
     }
 
@@ -345,45 +121,49 @@ abstract class Analyzer<T> implements Opcode {
     protected abstract T transfer(T inState, int at) throws BadBytecode;
 
     T getInState(int position) {
-        return (T) inState[position];
+        int index = controlFlowGraph.getIndex(position);
+        return index < 0 ? null : (T) inState[index];
     }
 
     T getOutState(int position) {
-        return (T) outState[position];
+        int index = controlFlowGraph.getIndex(position);
+        return index < 0 ? null : (T) outState[index];
     }
 
-    protected void analyzeInstruction(CodeIterator codeIterator) throws BadBytecode {
-        int pos = queue.poll();
-        codeIterator.move(pos);
-        codeIterator.next();
+    // Returns the instruction to analyze next without going through the queue (or -1), which is the successor in
+    // the same block unless the queue holds instructions of higher priority
+    private int analyzeInstruction(int index) throws BadBytecode {
+        int pos = controlFlowGraph.getPosition(index);
+        int[] predecessors = controlFlowGraph.getPredecessors(index);
 
-        Type caught = this.caughtException[pos];
+        Type caught = controlFlowGraph.getCaughtException(index);
         Object state;
-        if (predecessors[pos].length == 0) {
+        if (predecessors.length == 0) {
             // state = initialState;
             state = mergeStates(initialState, -1, pos);
-        } else if (predecessors[pos].length == 1) {
-            if (outState[predecessors[pos][0]] == null) {
+        } else if (predecessors.length == 1) {
+            if (outState[predecessors[0]] == null) {
                 // state = initialState;
                 state = mergeStates(initialState, -1, pos);
             } else {
-                int pred = predecessors[pos][0];
+                int pred = predecessors[0];
+                int predPos = controlFlowGraph.getPosition(pred);
                 if (caught == null) {
                     if (pos == 0) {
-                        state = mergeStates(initialState, (T) outState[pred], -1, pred, pos);
+                        state = mergeStates(initialState, (T) outState[pred], -1, predPos, pos);
                     } else {
-                        state = mergeStates((T) outState[pred], pred, pos);
+                        state = mergeStates((T) outState[pred], predPos, pos);
                     }
                 } else {
                     if (pos == 0) {
-                        state = mergeStatesOnCatch(initialState, (T) outState[pred], -1, pred, pos, caught);
+                        state = mergeStatesOnCatch(initialState, (T) outState[pred], -1, predPos, pos, caught);
                     } else {
-                        state = mergeStatesOnCatch((T) outState[pred], pred, pos, caught);
+                        state = mergeStatesOnCatch((T) outState[pred], predPos, pos, caught);
                     }
                 }
             }
         } else {
-            int[] preds = predecessors[pos];
+            int[] preds = predecessors;
 
             T state0 = pos == 0 ? initialState : null;
             T state1 = null;
@@ -408,28 +188,28 @@ abstract class Analyzer<T> implements Opcode {
                 state = mergeStates(initialState, -1, pos);
             } else if (i == 1) {
                 if (caught == null) {
-                    state = mergeStates(state0, preds[state0p], pos);
+                    state = mergeStates(state0, controlFlowGraph.getPosition(preds[state0p]), pos);
                 } else {
-                    state = mergeStatesOnCatch(state0, preds[state0p], pos, caught);
+                    state = mergeStatesOnCatch(state0, controlFlowGraph.getPosition(preds[state0p]), pos, caught);
                 }
             } else if (i == 2) {
                 if (caught == null) {
-                    state = mergeStates(state0, state1, preds[state0p], preds[state1p], pos);
+                    state = mergeStates(state0, state1, controlFlowGraph.getPosition(preds[state0p]), controlFlowGraph.getPosition(preds[state1p]), pos);
                 } else {
-                    state = mergeStatesOnCatch(state0, state1, preds[state0p], preds[state1p], pos, caught);
+                    state = mergeStatesOnCatch(state0, state1, controlFlowGraph.getPosition(preds[state0p]), controlFlowGraph.getPosition(preds[state1p]), pos, caught);
                 }
             } else {
                 ArrayList<T> states = new ArrayList<>(i);
                 states.add(state0);
                 states.add(state1);
                 int[] origins = new int[i];
-                origins[0] = preds[state0p];
-                origins[1] = preds[state1p];
+                origins[0] = controlFlowGraph.getPosition(preds[state0p]);
+                origins[1] = controlFlowGraph.getPosition(preds[state1p]);
                 i = 2;
                 for (int p = state1p + 1; p < preds.length; p++) {
                     if (outState[preds[p]] != null) {
                         states.add((T) outState[preds[p]]);
-                        origins[i] = preds[p];
+                        origins[i] = controlFlowGraph.getPosition(preds[p]);
                         i++;
                     }
                 }
@@ -446,11 +226,11 @@ abstract class Analyzer<T> implements Opcode {
         }
 
         // Do nothing if the previous (in state) and merged state has not changed
-        if (state.equals(inState[pos])) {
-            return;
+        if (state.equals(inState[index])) {
+            return -1;
         }
 
-        inState[pos] = state;
+        inState[index] = state;
 
         try {
             state = transfer((T) state, pos);
@@ -458,45 +238,38 @@ abstract class Analyzer<T> implements Opcode {
             throw new BadBytecode(e.getMessage() + "[position = " + pos + "]", e);
         }
 
-        // Not necessary since we do not even transfer if the in state is unchanged (after merging)
-        /*
-        boolean changed;
-        if (outState[pos] == null) {
-            changed = true;
-        } else {
-            changed = !stateEquals((T) state, (T) outState[pos]);
-        }
-        */
+        outState[index] = state;
 
-        outState[pos] = state;
+        int[] successors = controlFlowGraph.getSuccessors(index);
+        if (successors == null || successors.length == 0) {
+            handleExit((T) state, pos);
+            ignoreNext = null;
+            return -1;
+        }
 
-        // if (changed) {
         if (ignoreNext == null) {
-            if (successors[pos] != null && successors[pos].length > 0) {
-                for (int succPos : successors[pos]) {
-                    queue.offer(succPos);
-                }
-            } else {
-                handleExit((T) state, pos);
+            if (controlFlowGraph.continuesBlock(index) && (queueSize == 0 || controlFlowGraph.getPriority(queue[0]) < controlFlowGraph.getPriority(successors[0]))) {
+                return successors[0];
+            }
+
+            for (int succ : successors) {
+                offer(succ);
             }
         } else {
-            if (successors[pos] != null && successors[pos].length > 0) {
-                for (int succPos : successors[pos]) {
-                    if (Arrays.binarySearch(ignoreNext, succPos) < 0) {
-                        queue.offer(succPos);
-                    }
+            for (int succ : successors) {
+                if (Arrays.binarySearch(ignoreNext, controlFlowGraph.getPosition(succ)) < 0) {
+                    offer(succ);
                 }
-            } else {
-                handleExit((T) state, pos);
             }
 
             ignoreNext = null;
         }
-        // }
+
+        return -1;
     }
 
     protected void forceVisit(int position) {
-        queue.offer(position);
+        offer(controlFlowGraph.getIndex(position));
     }
 
     protected void ignoreSuccessors(int... positions) {
@@ -509,11 +282,44 @@ abstract class Analyzer<T> implements Opcode {
         }
     }
 
-    private int lookAhead(CodeIterator codeIterator, int position) throws BadBytecode {
-        if (!codeIterator.hasNext()) {
-            throw new BadBytecode("Execution falls off end! [position = " + position + "]");
+    private void offer(int index) {
+        if (queueSize == queue.length) {
+            queue = Arrays.copyOf(queue, queueSize * 2);
+        }
+
+        int priority = controlFlowGraph.getPriority(index);
+        int i = queueSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (controlFlowGraph.getPriority(queue[parent]) >= priority) {
+                break;
+            }
+            queue[i] = queue[parent];
+            i = parent;
+        }
+        queue[i] = index;
+    }
+
+    private int poll() {
+        int result = queue[0];
+        int index = queue[--queueSize];
+        int priority = controlFlowGraph.getPriority(index);
+
+        int i = 0;
+        int half = queueSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < queueSize && controlFlowGraph.getPriority(queue[child + 1]) > controlFlowGraph.getPriority(queue[child])) {
+                child++;
+            }
+            if (priority >= controlFlowGraph.getPriority(queue[child])) {
+                break;
+            }
+            queue[i] = queue[child];
+            i = child;
         }
+        queue[i] = index;
 
-        return codeIterator.lookAhead();
+        return result;
     }
 }
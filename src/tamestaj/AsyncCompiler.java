@@ -0,0 +1,94 @@
+package tamestaj;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Compiles closures in the background. Until a compiled closure is ready, its expression shape is evaluated with an
+// interim closure from the language's quick factory (see ClosureResolver). Failed compilations are logged (to the logger
+// "tamestaj"), the interim closure is then used for good. Each expression shape is compiled at most once at a time.
+
+final class AsyncCompiler {
+    private static final ThreadPoolExecutor executor;
+
+    private static final Logger logger = Logger.getLogger("tamestaj");
+
+    // Also found if the global cache has evicted them in the meantime
+    private static final ConcurrentMap<GlobalCache.ExpressionKey, ClosureHolder<?>> pendingClosureHolders = new ConcurrentHashMap<>();
+
+    static {
+        int threadCount = Math.max(1, Options.getInt("asyncCompilationThreads", 1));
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, Options.getInt("asyncCompilationQueueSize", 64))),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "tamestaj-compiler");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                // If the background cannot keep up, compilation falls back to being synchronous
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private AsyncCompiler() { }
+
+    @SuppressWarnings("unchecked")
+    static <T extends Closure<?>> ClosureHolder<T> getPendingClosureHolder(Expression.Staged staged) {
+        return (ClosureHolder<T>) pendingClosureHolders.get(GlobalCache.ExpressionKey.probe(staged));
+    }
+
+    static <T extends Closure<?>> ClosureHolder.Entry<T> compile(Expression.Staged staged, T interimClosure, Environment.Layout interimLayout, boolean isPermanent) {
+        // The background must not touch the client's expression, the clone also serves as global cache key
+        Expression.Staged clone = (Expression.Staged) staged.cacheClone(new IdentityHashMap<>());
+        GlobalCache.ExpressionKey key = GlobalCache.ExpressionKey.of(clone);
+        ClosureHolder<T> closureHolder = ClosureHolder.make(false);
+        ClosureHolder.Entry<T> interimEntry = ClosureHolder.Entry.makePending(interimClosure, interimLayout, closureHolder);
+        closureHolder.setEntry(interimEntry);
+
+        @SuppressWarnings("unchecked")
+        ClosureHolder<T> pendingClosureHolder = (ClosureHolder<T>) pendingClosureHolders.putIfAbsent(key, closureHolder);
+        if (pendingClosureHolder != null) {
+            return pendingClosureHolder.getEntry();
+        }
+        GlobalCache.put(key, closureHolder);
+
+        executor.execute(() -> {
+            try {
+                compileInBackground(clone, closureHolder, interimClosure, interimLayout, isPermanent);
+            } finally {
+                pendingClosureHolders.remove(key);
+            }
+        });
+
+        return interimEntry;
+    }
+
+    private static <T extends Closure<?>> void compileInBackground(Expression.Staged clone, ClosureHolder<T> closureHolder, T interimClosure, Environment.Layout interimLayout, boolean isPermanent) {
+        Environment.Binder binder = new Environment.Binder(clone);
+        T closure;
+        long compilationStart = System.nanoTime();
+        try {
+            @SuppressWarnings("unchecked")
+            T c = (T) clone.compileClosure(binder, isPermanent);
+            closure = c;
+        } catch (RuntimeException | Error e) {
+            // This might run on the caller's thread (see CallerRunsPolicy above), which must not notice
+            logger.log(Level.WARNING, "Background compilation failed, keeping the interim closure", e);
+            closureHolder.setEntry(new ClosureHolder.Entry<>(interimClosure, interimLayout));
+            return;
+        }
+        GlobalCache.recordCompilation(System.nanoTime() - compilationStart);
+
+        if (binder.inspectionOccurred()) {
+            // The compiled closure is specific to the clone's values, but the interim closure is not
+            closureHolder.setEntry(new ClosureHolder.Entry<>(interimClosure, interimLayout));
+        } else {
+            closureHolder.setEntry(new ClosureHolder.Entry<>(closure, binder.getLayout()));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package tamestaj;
+
+import javassist.CtBehavior;
+import javassist.bytecode.BadBytecode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+// The analysis pipeline for one behavior with staging code. Its control flow graph is built once, before any
+// analysis, and shared by all of them (see Analyzer). All analyses up to (excluding) the weave analysis only read the
+// behavior's class, so the behaviors of a class are analyzed in parallel, as are the value flow and the constant
+// analysis of a behavior, which only depend on the type analysis.
+// The weave analysis adds to the class' constant pool and weaving modifies the class, so both happen afterwards, one
+// behavior after the other in declaration order, which keeps the woven class deterministic.
+
+final class BehaviorAnalysis {
+    private static final boolean parallelAnalysis = Options.getBoolean("parallelAnalysis", true);
+
+    private static ForkJoinPool pool;
+
+    private final CtBehavior behavior;
+    private final AnalysisBudget budget;
+    private boolean isSkipped;
+
+    private ControlFlowGraph controlFlowGraph;
+    private TypeAnalyzer typeAnalyzer;
+    private ValueFlowAnalyzer.Result valueFlowAnalyzerResult;
+    private ConstantAnalyzer.Result constantAnalyzerResult;
+    private StageGraph stageGraph;
+    private LiftEstimateAnalyzer.Result liftEstimateAnalyzerResult;
+    private CachabilityAnalyzer.Result cachabilityAnalyzerResult;
+
+    private BehaviorAnalysis(CtBehavior behavior) {
+        this.behavior = behavior;
+        budget = AnalysisBudget.make();
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int threadCount = Math.max(1, Options.getInt("analysisThreads", Runtime.getRuntime().availableProcessors()));
+            pool = new ForkJoinPool(threadCount, p -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                thread.setName("tamestaj-analysis-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+
+        return pool;
+    }
+
+    // Returns the analyses in the order of the given behaviors
+    static ArrayList<BehaviorAnalysis> analyze(List<CtBehavior> behaviors) throws BadBytecode {
+        ArrayList<BehaviorAnalysis> analyses = new ArrayList<>(behaviors.size());
+        for (CtBehavior behavior : behaviors) {
+            analyses.add(new BehaviorAnalysis(behavior));
+        }
+
+        if (!parallelAnalysis) {
+            for (BehaviorAnalysis analysis : analyses) {
+                analysis.analyze(false);
+            }
+
+            return analyses;
+        }
+
+        ForkJoinPool pool = getPool();
+        ArrayList<Future<?>> futures = new ArrayList<>(analyses.size());
+        for (BehaviorAnalysis analysis : analyses) {
+            futures.add(pool.submit(() -> {
+                analysis.analyze(true);
+                return null;
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+
+        return analyses;
+    }
+
+    // Whether the behavior exceeded its budget, in which case it is not woven
+    boolean isSkipped() {
+        return isSkipped;
+    }
+
+    private void analyze(boolean isParallel) throws BadBytecode {
+        AnalysisBudget.reportAnalyzed();
+
+        budget.start();
+        try {
+            budget.checkCodeLength(behavior.getMethodInfo2().getCodeAttribute().getCodeLength());
+            analyzeWithinBudget(isParallel);
+        } catch (AnalysisBudget.ExceededException e) {
+            skip(e);
+        } finally {
+            budget.stop();
+        }
+    }
+
+    private void analyzeWithinBudget(boolean isParallel) throws BadBytecode {
+        long start = Telemetry.start();
+        controlFlowGraph = ControlFlowGraph.make(behavior);
+        Telemetry.stop(Telemetry.Phase.CONTROL_FLOW_ANALYSIS, behavior, start);
+        Telemetry.recordControlFlowGraph(behavior, controlFlowGraph);
+
+        start = Telemetry.start();
+        typeAnalyzer = new TypeAnalyzer(behavior, controlFlowGraph, budget);
+        typeAnalyzer.analyze();
+        Telemetry.stop(Telemetry.Phase.TYPE_ANALYSIS, behavior, start);
+
+        ConstantAnalyzer constantAnalyzer = new ConstantAnalyzer(typeAnalyzer);
+        ForkJoinTask<ConstantAnalyzer.Result> constantAnalysis = ForkJoinTask.adapt(() -> {
+            long constantStart = Telemetry.start();
+            constantAnalyzer.analyze();
+            Telemetry.stop(Telemetry.Phase.CONSTANT_ANALYSIS, behavior, constantStart);
+
+            return constantAnalyzer.getResult();
+        });
+        if (isParallel) {
+            constantAnalysis.fork();
+        }
+
+        start = Telemetry.start();
+        ValueFlowAnalyzer valueFlowAnalyzer = new ValueFlowAnalyzer(typeAnalyzer);
+        valueFlowAnalyzer.analyze();
+        valueFlowAnalyzerResult = valueFlowAnalyzer.getResult();
+        Telemetry.stop(Telemetry.Phase.VALUE_FLOW_ANALYSIS, behavior, start);
+
+        try {
+            constantAnalyzerResult = isParallel ? constantAnalysis.join() : constantAnalysis.invoke();
+        } catch (RuntimeException | Error e) {
+            throw rethrow(e);
+        }
+
+        start = Telemetry.start();
+        StageAnalyzer stageAnalyzer = new StageAnalyzer(typeAnalyzer, valueFlowAnalyzerResult);
+        stageAnalyzer.analyze();
+        stageGraph = stageAnalyzer.getResult().getStageGraph();
+        Telemetry.stop(Telemetry.Phase.STAGE_ANALYSIS, behavior, start);
+
+        start = Telemetry.start();
+        liftEstimateAnalyzerResult = LiftEstimateAnalyzer.analyze(stageGraph, valueFlowAnalyzerResult, constantAnalyzerResult);
+        Telemetry.stop(Telemetry.Phase.LIFT_ESTIMATE_ANALYSIS, behavior, start);
+
+        start = Telemetry.start();
+        cachabilityAnalyzerResult = CachabilityAnalyzer.analyze(stageGraph, valueFlowAnalyzerResult, constantAnalyzerResult);
+        Telemetry.stop(Telemetry.Phase.CACHABILITY_ANALYSIS, behavior, start);
+    }
+
+    private void skip(AnalysisBudget.ExceededException exception) {
+        AnalysisBudget.reportSkipped(behavior, exception);
+        isSkipped = true;
+    }
+
+    // Tasks rethrow checked exceptions wrapped (possibly more than once)
+    private static RuntimeException rethrow(Throwable throwable) throws BadBytecode {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof BadBytecode) {
+                throw (BadBytecode) t;
+            }
+        }
+
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        } else if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+        throw new RuntimeException(throwable);
+    }
+
+    void weave() throws BadBytecode {
+        if (isSkipped) {
+            return;
+        }
+
+        WeaveAnalyzer weaveAnalyzer = new WeaveAnalyzer(typeAnalyzer, stageGraph, valueFlowAnalyzerResult, constantAnalyzerResult, cachabilityAnalyzerResult, liftEstimateAnalyzerResult);
+        budget.start();
+        try {
+            long start = Telemetry.start();
+            weaveAnalyzer.analyze();
+            Telemetry.stop(Telemetry.Phase.WEAVE_ANALYSIS, behavior, start);
+        } catch (AnalysisBudget.ExceededException e) {
+            // The weave analysis only adds to the constant pool, so the behavior is still as it was
+            skip(e);
+            return;
+        } finally {
+            budget.stop();
+        }
+
+        int codeLength = behavior.getMethodInfo2().getCodeAttribute().getCodeLength();
+        long start = Telemetry.start();
+        weaveAnalyzer.getResult().weave();
+        Telemetry.stop(Telemetry.Phase.WEAVING, behavior, start);
+        Telemetry.recordCodeLengths(behavior, codeLength, behavior.getMethodInfo2().getCodeAttribute().getCodeLength());
+    }
+}
@@ -12,7 +12,12 @@ final class CarrierTransformer {
 
     private CarrierTransformer() { }
 
-    static void transformCarrierChecked(CtClass clazz) {
+    static synchronized ArrayList<CtClass> getTransformedCarriers() {
+        return new ArrayList<>(transformedCarriers);
+    }
+
+    // Also transforms the carrier's superclasses, which other threads might be transforming at the same time
+    static synchronized void transformCarrierChecked(CtClass clazz) {
         if (!Util.isCarrier(clazz) || transformedCarriers.contains(clazz)) { return; }
 
         ArrayList<CtClass> classChain = new ArrayList<>();
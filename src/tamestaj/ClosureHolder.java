@@ -5,27 +5,112 @@ package tamestaj;
 // We cannot really guarantee this, but we can at least temporarily make sure that it only becomes
 // public at run time.
 
-import java.util.HashMap;
-
 abstract class ClosureHolder<T extends Closure<?>> {
+    // Closure and environment layout are published together, such that a single (volatile) read of the entry
+    // suffices to use both on the fast path
+    static final class Entry<T extends Closure<?>> {
+        private static final int FINAL = -1;
+
+        final T closure;
+        final Environment.Layout environmentLayout;
+
+        // Interim entries are resolved again once they have been invoked this many times, e.g. to tier up a quick
+        // closure or to pick up a closure that has been compiled in the background
+        private final int threshold;
+        // For entries whose closure is compiled in the background, the closure holder that the compiled closure ends
+        // up in
+        private final ClosureHolder<T> pendingClosureHolder;
+        // Counted without synchronization, it only needs to be roughly right
+        private int invocationCount;
+        private boolean isClaimed;
+
+        Entry(T closure, Environment.Layout environmentLayout) {
+            this(closure, environmentLayout, FINAL, null, true);
+        }
+
+        private Entry(T closure, Environment.Layout environmentLayout, int threshold, ClosureHolder<T> pendingClosureHolder, boolean isClaimed) {
+            this.closure = closure;
+            this.environmentLayout = environmentLayout;
+            this.threshold = threshold;
+            this.pendingClosureHolder = pendingClosureHolder;
+            this.isClaimed = isClaimed;
+        }
+
+        // A closure from a quick factory, which should be replaced once it turns out to be hot
+        static <T extends Closure<?>> Entry<T> makeQuick(T closure, Environment.Layout environmentLayout, int threshold) {
+            return new Entry<>(closure, environmentLayout, threshold, null, false);
+        }
+
+        // A closure that is resolved again on every invocation, as it is going to be replaced by someone else (or not
+        // cached at all)
+        static <T extends Closure<?>> Entry<T> makeInterim(T closure, Environment.Layout environmentLayout) {
+            return new Entry<>(closure, environmentLayout, 0, null, true);
+        }
+
+        // A closure that is used until the given closure holder, which initially holds this very entry, is set to the
+        // one compiled in the background. Until then, it is not resolved again.
+        static <T extends Closure<?>> Entry<T> makePending(T closure, Environment.Layout environmentLayout, ClosureHolder<T> pendingClosureHolder) {
+            return new Entry<>(closure, environmentLayout, 0, pendingClosureHolder, true);
+        }
+
+        boolean isInterim() {
+            return threshold != FINAL;
+        }
+
+        // Null unless the entry is pending and its replacement has been compiled
+        Entry<T> getCompiledEntry() {
+            if (pendingClosureHolder == null) {
+                return null;
+            }
+
+            Entry<T> entry = pendingClosureHolder.getEntry();
+            return entry == this ? null : entry;
+        }
+
+        // Counts an invocation and tells whether the entry should be resolved again
+        boolean isDue() {
+            if (threshold == FINAL) {
+                return false;
+            }
+            if (pendingClosureHolder != null) {
+                return pendingClosureHolder.getEntry() != this;
+            }
+
+            if (invocationCount < threshold) {
+                invocationCount++;
+                return false;
+            }
+
+            return true;
+        }
+
+        // Only the first caller gets to replace an interim entry
+        synchronized boolean claim() {
+            if (isClaimed) {
+                return false;
+            }
+
+            isClaimed = true;
+            return true;
+        }
+    }
+
     private ClosureHolder() { }
 
     static <T extends Closure<?>> ClosureHolder<T> make(boolean isPermanent) {
         return new ClosureHolder<T>() {
-            private T closure;
-            private int environmentSize;
+            private volatile Entry<T> entry;
 
-            void set(T closure, int environmentSize) {
-                this.closure = closure;
-                this.environmentSize = environmentSize;
+            void setEntry(Entry<T> entry) {
+                this.entry = entry;
             }
 
-            T getClosure() {
-                return closure;
+            Entry<T> getEntry() {
+                return entry;
             }
 
-            int getEnvironmentSize() {
-                return environmentSize;
+            Object getLock() {
+                return this;
             }
 
             public boolean isPermanent() {
@@ -34,33 +119,30 @@ abstract class ClosureHolder<T extends Closure<?>> {
         };
     }
 
-    static <T extends Closure<?>> ClosureHolder<T> makeTraceCacheProxy(Trace trace, HashMap<Trace, ClosureHolder<T>> map) {
+    static <T extends Closure<?>> ClosureHolder<T> makeTraceCacheProxy(Trace trace, TraceCache<T> cache) {
         return new ClosureHolder<T>() {
             private ClosureHolder<T> closureHolder;
 
-            private void initializeClosureHolder() {
+            // The proxy itself is local to one expression, but the closure holder it resolves to may be shared
+            // between threads, so compilation locks the latter.
+            private ClosureHolder<T> getClosureHolder() {
                 if (closureHolder == null) {
-                    closureHolder = map.get(trace);
-                    if (closureHolder == null) {
-                        closureHolder = ClosureHolder.make(false);
-                        map.put(trace, closureHolder);
-                    }
+                    closureHolder = cache.getOrMakeClosureHolder(trace);
                 }
+
+                return closureHolder;
             }
 
-            void set(T closure, int environmentSize) {
-                initializeClosureHolder();
-                closureHolder.set(closure, environmentSize);
+            void setEntry(Entry<T> entry) {
+                getClosureHolder().setEntry(entry);
             }
 
-            T getClosure() {
-                initializeClosureHolder();
-                return closureHolder.getClosure();
+            Entry<T> getEntry() {
+                return getClosureHolder().getEntry();
             }
 
-            int getEnvironmentSize() {
-                initializeClosureHolder();
-                return closureHolder.getEnvironmentSize();
+            Object getLock() {
+                return getClosureHolder().getLock();
             }
 
             boolean isPermanent() {
@@ -69,8 +151,10 @@ abstract class ClosureHolder<T extends Closure<?>> {
         };
     }
 
-    abstract void set(T closure, int environmentSize);
-    abstract T getClosure();
-    abstract int getEnvironmentSize();
+    abstract void setEntry(Entry<T> entry);
+    // Null as long as no closure has been set
+    abstract Entry<T> getEntry();
+    // Held while resolving a closure for this holder, such that there is at most one compilation
+    abstract Object getLock();
     abstract boolean isPermanent();
 }
@@ -0,0 +1,117 @@
+package tamestaj;
+
+// Finds (or makes) the closure for an expression whose closure holder has none yet, or only an interim one.
+// Languages may provide a quick closure factory in addition to their regular (optimizing) one, as static
+// "makeInterpreted<Closure interface>" methods (e.g. "makeInterpretedObjectClosure") with the same parameters.
+// With tiered compilation, new expression shapes start out with a quick closure and are only compiled with the
+// optimizing factory once they have been evaluated often enough. With asynchronous compilation, the optimizing
+// factory runs in the background and the quick closure is used in the meantime.
+
+final class ClosureResolver {
+    private static final boolean asyncCompilation = Options.getBoolean("asyncCompilation", false);
+    private static final boolean tieredCompilation = Options.getBoolean("tieredCompilation", false);
+    private static final int tieredCompilationThreshold = Math.max(0, Options.getInt("tieredCompilationThreshold", 1000));
+
+    private ClosureResolver() { }
+
+    static ClosureHolder.Entry<?> resolve(Expression.Staged staged, ClosureHolder<?> closureHolder) {
+        if (closureHolder == null) {
+            return resolveGlobally(staged, false);
+        }
+
+        return resolveLocally(staged, closureHolder);
+    }
+
+    private static <T extends Closure<?>> ClosureHolder.Entry<T> resolveLocally(Expression.Staged staged, ClosureHolder<T> closureHolder) {
+        synchronized (closureHolder.getLock()) {
+            ClosureHolder.Entry<T> entry = closureHolder.getEntry();
+            // Another thread might have resolved it in the meantime
+            if (entry != null && !entry.isDue()) {
+                return entry;
+            }
+
+            // A closure compiled in the background is picked up even if it has been evicted from the global cache
+            ClosureHolder.Entry<T> compiledEntry = entry == null ? null : entry.getCompiledEntry();
+            entry = compiledEntry != null ? compiledEntry : resolveGlobally(staged, closureHolder.isPermanent());
+            closureHolder.setEntry(entry);
+            return entry;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Closure<?>> ClosureHolder.Entry<T> resolveGlobally(Expression.Staged staged, boolean isPermanent) {
+        ClosureHolder<T> cachedClosureHolder = GlobalCache.getCachedClosureHolder(staged);
+        if (cachedClosureHolder == null && asyncCompilation) {
+            // Evicted while its compilation is still pending
+            cachedClosureHolder = AsyncCompiler.getPendingClosureHolder(staged);
+        }
+        if (cachedClosureHolder == null) {
+            return compile(staged, isPermanent);
+        }
+
+        ClosureHolder.Entry<T> entry = cachedClosureHolder.getEntry();
+        if (entry.isInterim() && entry.isDue() && entry.claim()) {
+            return tierUp(staged, cachedClosureHolder, entry, isPermanent);
+        }
+
+        return entry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Closure<?>> ClosureHolder.Entry<T> compile(Expression.Staged staged, boolean isPermanent) {
+        if (tieredCompilation || asyncCompilation) {
+            Environment.Binder binder = new Environment.Binder(staged);
+            long compilationStart = System.nanoTime();
+            T closure = (T) staged.compileQuickClosure(binder, isPermanent);
+            if (closure != null) {
+                GlobalCache.recordCompilation(System.nanoTime() - compilationStart);
+
+                if (binder.inspectionOccurred()) {
+                    return ClosureHolder.Entry.makeInterim(closure, binder.getLayout());
+                } else if (tieredCompilation) {
+                    ClosureHolder.Entry<T> entry = ClosureHolder.Entry.makeQuick(closure, binder.getLayout(), tieredCompilationThreshold);
+                    GlobalCache.cache(staged, entry);
+                    return entry;
+                } else {
+                    return AsyncCompiler.compile(staged, closure, binder.getLayout(), isPermanent);
+                }
+            }
+        }
+
+        Environment.Binder binder = new Environment.Binder(staged);
+        long compilationStart = System.nanoTime();
+        T closure = (T) staged.compileClosure(binder, isPermanent);
+        GlobalCache.recordCompilation(System.nanoTime() - compilationStart);
+
+        if (binder.inspectionOccurred()) {
+            return ClosureHolder.Entry.makeInterim(closure, binder.getLayout());
+        }
+
+        ClosureHolder.Entry<T> entry = new ClosureHolder.Entry<>(closure, binder.getLayout());
+        GlobalCache.cache(staged, entry);
+        return entry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Closure<?>> ClosureHolder.Entry<T> tierUp(Expression.Staged staged, ClosureHolder<T> cachedClosureHolder, ClosureHolder.Entry<T> quickEntry, boolean isPermanent) {
+        if (asyncCompilation) {
+            return AsyncCompiler.compile(staged, quickEntry.closure, quickEntry.environmentLayout, isPermanent);
+        }
+
+        Environment.Binder binder = new Environment.Binder(staged);
+        long compilationStart = System.nanoTime();
+        T closure = (T) staged.compileClosure(binder, isPermanent);
+        GlobalCache.recordCompilation(System.nanoTime() - compilationStart);
+
+        ClosureHolder.Entry<T> entry;
+        if (binder.inspectionOccurred()) {
+            // The optimized closure is specific to this expression's values, so the quick one has to do
+            entry = new ClosureHolder.Entry<>(quickEntry.closure, quickEntry.environmentLayout);
+        } else {
+            entry = new ClosureHolder.Entry<>(closure, binder.getLayout());
+        }
+        cachedClosureHolder.setEntry(entry);
+
+        return entry;
+    }
+}
@@ -6,10 +6,12 @@ import javassist.NotFoundException;
 import javassist.bytecode.AnnotationsAttribute;
 import javassist.bytecode.annotation.*;
 
+import java.util.Collections;
 import java.util.IdentityHashMap;
+import java.util.Map;
 
 final class ConfigureAnnotation {
-    private static final IdentityHashMap<CtClass, ConfigureAnnotation> classCache = new IdentityHashMap<>();
+    private static final Map<CtClass, ConfigureAnnotation> classCache = Collections.synchronizedMap(new IdentityHashMap<>());
 
     private final CtClass language;
     private final boolean hasRestrictedAcceptAccessibility;
@@ -89,8 +91,9 @@ final class ConfigureAnnotation {
 
         cached = new ConfigureAnnotation(clazz, hasRestrictedAcceptAccessibility, hasRestrictedStageAccessibility, hasRestrictedSuppressAccessibility);
 
-        classCache.put(clazz, cached);
+        // Another thread may have resolved the same class meanwhile, the first result wins
+        ConfigureAnnotation otherCached = classCache.putIfAbsent(clazz, cached);
 
-        return cached;
+        return otherCached == null ? cached : otherCached;
     }
 }
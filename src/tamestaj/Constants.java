@@ -0,0 +1,90 @@
+package tamestaj;
+
+import javassist.*;
+import javassist.bytecode.MethodInfo;
+
+// Woven and generated classes refer to Javassist objects of the weaving (accepted languages, staged members, and
+// static information). Rather than being handed over in memory, which does not outlive the weaving JVM (see Weaver),
+// they are written into the classes as literals (names and descriptors). Languages are compared by name, members
+// are described without Javassist (see MemberDescriptor), and static information is compared by its literals, so
+// Javassist objects are only resolved once code asks for them (see StaticInfo).
+
+final class Constants {
+    private Constants() { }
+
+    static String quote(String string) {
+        return "\"" + string.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String quoteOrNull(String string) {
+        return string == null ? "null" : quote(string);
+    }
+
+    static String makeMemberDescriptorSource(CtMember member) {
+        MemberDescriptor.Kind kind = member instanceof CtField ? MemberDescriptor.Kind.FIELD : MemberDescriptor.Kind.METHOD;
+        return Util.DISPATCHER_CLASS.getName() + ".makeMemberDescriptor(" + MemberDescriptor.Kind.class.getName() + "." + kind.name() + ", "
+                + quote(member.getDeclaringClass().getName()) + ", " + quote(member.getName()) + ", " + quote(member.getSignature()) + ")";
+    }
+
+    static String makeStaticInfoSource(StaticInfo staticInfo) {
+        return Util.DISPATCHER_CLASS.getName() + ".makeStaticInfo("
+                + quoteOrNull(staticInfo.getOriginClassName()) + ", " + quoteOrNull(staticInfo.getOriginName()) + ", " + quoteOrNull(staticInfo.getOriginDescriptor()) + ", "
+                + staticInfo.getOriginPosition() + ", " + staticInfo.getOriginLineNumber() + ", " + quoteOrNull(staticInfo.getInferredTypeNames()) + ")";
+    }
+
+    // The type names, separated by commas, with the type itself coming last
+    static String makeInferredTypeNames(StaticInfo.InferredTypes inferredTypes) {
+        if (inferredTypes == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < inferredTypes.getArgumentTypesLength(); i++) {
+            sb.append(getTypeName(inferredTypes.getArgumentType(i))).append(',');
+        }
+        sb.append(getTypeName(inferredTypes.getType()));
+        return sb.toString();
+    }
+
+    private static String getTypeName(Type type) {
+        // Only the null type is special here
+        return type.isSpecial() ? "null" : type.getCtClass().getName();
+    }
+
+    private static Type getType(ClassPool cp, String name) throws NotFoundException {
+        return name.equals("null") ? Type.NULL : Type.of(cp.get(name));
+    }
+
+    static StaticInfo.Origin resolveOrigin(String className, String name, String descriptor, int position, int lineNumber) {
+        try {
+            CtClass clazz = ClassPool.getDefault().get(className);
+            CtBehavior behavior;
+            if (name.equals(MethodInfo.nameInit)) {
+                behavior = clazz.getConstructor(descriptor);
+            } else if (name.equals(MethodInfo.nameClinit)) {
+                behavior = clazz.getClassInitializer();
+            } else {
+                behavior = clazz.getMethod(name, descriptor);
+            }
+
+            return StaticInfo.Origin.make(behavior, position, lineNumber);
+        } catch (NotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static StaticInfo.InferredTypes resolveInferredTypes(String typeNames) {
+        ClassPool cp = ClassPool.getDefault();
+        try {
+            String[] names = typeNames.split(",");
+            Type[] argumentTypes = new Type[names.length - 1];
+            for (int i = 0; i < argumentTypes.length; i++) {
+                argumentTypes[i] = getType(cp, names[i]);
+            }
+
+            return StaticInfo.InferredTypes.make(getType(cp, names[names.length - 1]), argumentTypes);
+        } catch (NotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
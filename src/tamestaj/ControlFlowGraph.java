@@ -0,0 +1,426 @@
+package tamestaj;
+
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.analysis.ControlFlow;
+import javassist.bytecode.analysis.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// The control flow of a behavior between its instructions, including the edges to exception handlers, as the
+// analyses need it (see Analyzer). Instructions are numbered densely in code order and everything is kept in arrays
+// indexed by these numbers, so analyses can keep their states in arrays of the same length. The graph only depends on
+// the bytecode, which is why all analyses of a behavior share it.
+// Priorities order instructions in reverse post-order, such that a worklist visits predecessors first (where
+// possible). Dominators are only computed once asked for.
+
+final class ControlFlowGraph {
+    // Positions by index, and indices by position (or -1 within an instruction)
+    private final int[] positions;
+    private final int[] indices;
+
+    // Both are null for instructions that are neither the first nor the last of a basic block (nor follow a catching
+    // block's predecessors), hence unreachable unless covered by some other edge
+    private final int[][] predecessors;
+    private final int[][] successors;
+    private final Type[] caughtExceptions;
+    private final int[] priorities;
+
+    // Whether control passes from an instruction only to a single other one, which is only reached from there, i.e.
+    // whether both belong to the same (extended) basic block
+    private final boolean[] continuesBlock;
+
+    // By index, -1 for the first instruction and unreachable ones
+    private volatile int[] immediateDominators;
+
+    private ControlFlowGraph(int[] positions, int[] indices, int[][] predecessors, int[][] successors, Type[] caughtExceptions, int[] priorities) {
+        this.positions = positions;
+        this.indices = indices;
+        this.predecessors = predecessors;
+        this.successors = successors;
+        this.caughtExceptions = caughtExceptions;
+        this.priorities = priorities;
+
+        continuesBlock = new boolean[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            if (successors[i] != null && successors[i].length == 1) {
+                int s = successors[i][0];
+                continuesBlock[i] = predecessors[s] != null && predecessors[s].length == 1 && predecessors[s][0] == i && caughtExceptions[s] == null;
+            }
+        }
+    }
+
+    static ControlFlowGraph make(CtBehavior behavior) throws BadBytecode {
+        CtClass clazz = behavior.getDeclaringClass();
+        MethodInfo methodInfo = behavior.getMethodInfo2();
+        CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+        CodeIterator codeIterator = codeAttribute.iterator();
+        int codeLength = codeAttribute.getCodeLength();
+
+        int[] indices = new int[codeLength];
+        Arrays.fill(indices, -1);
+        int[] positions = new int[codeLength];
+        int count = 0;
+        while (codeIterator.hasNext()) {
+            int pos = codeIterator.next();
+            indices[pos] = count;
+            positions[count] = pos;
+            count++;
+        }
+        positions = Arrays.copyOf(positions, count);
+        codeIterator.begin();
+
+        // By index, but with positions as elements until all edges are known
+        int[][] predecessors = new int[count][];
+        int[][] successors = new int[count][];
+        Type[] caughtExceptions = new Type[count];
+
+        ControlFlow.Block[] blocks = new ControlFlow(clazz, methodInfo).basicBlocks();
+
+        HashMap<Integer, List<Integer>> catchingSuccs = new HashMap<>();
+        HashMap<Integer, List<Integer>> caughtPreds = new HashMap<>();
+
+        for (ControlFlow.Block block : blocks) {
+            for (ControlFlow.Catcher catcher : block.catchers()) {
+                int catcherPos = catcher.block().position();
+                caughtExceptions[indices[catcherPos]] = Analyzer.getType(catcher.type(), catcherPos);
+
+                // We have to consider the predecessor instructions of the first actually covered instruction, too!
+                // After all, the first instruction may not even finish properly, and its "in state" (the
+                // combination of the "out states" of its predecessors) has to be considered.
+                for (int i = 0; i < block.incomings(); i++) {
+                    int pos = getLastBlockPosition(block.incoming(i), indices, positions);
+                    catchingSuccs.computeIfAbsent(pos, k -> new ArrayList<>()).add(catcherPos);
+                    caughtPreds.computeIfAbsent(catcherPos, k -> new ArrayList<>()).add(pos);
+                }
+
+                // I believed for exception handlers the end is actually exclusive... but that appears to be just
+                // a general pattern, i.e. the last instruction is a "goto".
+                for (int i = indices[block.position()]; i < count && positions[i] < block.position() + block.length(); i++) {
+                    int pos = positions[i];
+                    catchingSuccs.computeIfAbsent(pos, k -> new ArrayList<>()).add(catcherPos);
+                    caughtPreds.computeIfAbsent(catcherPos, k -> new ArrayList<>()).add(pos);
+                }
+            }
+        }
+
+        for (ControlFlow.Block block : blocks) {
+            int pos = getLastBlockPosition(block, indices, positions);
+            int index = indices[pos];
+            List<Integer> csList = catchingSuccs.get(pos);
+            if (block.exits() == 0) {
+                successors[index] = csList == null ? new int[0] : toArray(csList, 0);
+            } else {
+                if (successors[index] == null) {
+                    successors[index] = new int[block.exits() + (csList == null ? 0 : csList.size())];
+                }
+                for (int i = 0; i < block.exits(); i++) {
+                    successors[index][i] = block.exit(i).position();
+                }
+                if (csList != null) {
+                    int i = block.exits();
+                    for (int succPos : csList) {
+                        successors[index][i] = succPos;
+                        i++;
+                    }
+                }
+            }
+
+            pos = block.position();
+            index = indices[pos];
+            List<Integer> cpList = caughtPreds.get(pos);
+            if (cpList == null) {
+                if (block.incomings() == 0) {
+                    predecessors[index] = new int[0];
+                } else {
+                    if (predecessors[index] == null) {
+                        predecessors[index] = new int[block.incomings()];
+                    }
+                    for (int i = 0; i < block.incomings(); i++) {
+                        predecessors[index][i] = getLastBlockPosition(block.incoming(i), indices, positions);
+                    }
+                }
+            } else {
+                // With a regular Java compiler this seems to work fine, but if a catching block also has "normal"
+                // (i.e. code not under exception checking) predecessors this will not suffice. A workaround could
+                // simply be to add these predecessors to cpList (above).
+                predecessors[index] = toArray(cpList, 0);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            int pos = positions[i];
+            if (i + 1 < count && successors[i] == null) {
+                int nextPos = positions[i + 1];
+                List<Integer> csList = catchingSuccs.get(pos);
+                if (csList == null) {
+                    successors[i] = new int[] { nextPos };
+                } else {
+                    successors[i] = toArray(csList, 1);
+                    successors[i][0] = nextPos;
+                }
+
+                if (!Util.isJumpInstruction(codeIterator.byteAt(pos)) && predecessors[i + 1] == null) {
+                    predecessors[i + 1] = new int[] { pos };
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            toIndices(predecessors[i], indices);
+            toIndices(successors[i], indices);
+        }
+
+        return new ControlFlowGraph(positions, indices, predecessors, successors, caughtExceptions, computePriorities(successors));
+    }
+
+    // Post-order finishing times of a depth-first search from the first instruction
+    private static int[] computePriorities(int[][] successors) {
+        int count = successors.length;
+        int[] priorities = new int[count];
+        boolean[] discovered = new boolean[count];
+        boolean[] finished = new boolean[count];
+
+        // Instructions are pushed once per edge at most
+        int edgeCount = 1;
+        for (int[] succs : successors) {
+            if (succs != null) {
+                edgeCount += succs.length;
+            }
+        }
+        int[] stack = new int[edgeCount];
+        int size = 0;
+        stack[size++] = 0;
+
+        int time = 1;
+        while (size > 0) {
+            int index = stack[size - 1];
+            discovered[index] = true;
+
+            if (finished[index]) {
+                size--;
+                priorities[index] = time;
+                time++;
+            } else {
+                finished[index] = true;
+                int[] succs = successors[index];
+                for (int s = succs.length - 1; s >= 0; s--) {
+                    if (!discovered[succs[s]]) {
+                        stack[size++] = succs[s];
+                        finished[index] = false;
+                    }
+                }
+            }
+        }
+
+        return priorities;
+    }
+
+    // The algorithm of Cooper, Harvey and Kennedy (A Simple, Fast Dominance Algorithm)
+    private int[] computeImmediateDominators() {
+        int count = positions.length;
+
+        // A proper post-order, which the priorities are not necessarily (see above), and the predecessors as given
+        // by the successors, since not every edge is recorded in both directions
+        int[] numbers = new int[count];
+        Arrays.fill(numbers, -1);
+        int[] postOrder = new int[count];
+        int[] predecessorCounts = new int[count];
+        int[] stack = new int[count];
+        int[] cursors = new int[count];
+        int size = 0;
+        int n = 0;
+        stack[size++] = 0;
+        cursors[0] = 0;
+        boolean[] visited = new boolean[count];
+        visited[0] = true;
+        while (size > 0) {
+            int index = stack[size - 1];
+            int[] succs = successors[index];
+            if (succs != null && cursors[index] < succs.length) {
+                int s = succs[cursors[index]++];
+                predecessorCounts[s]++;
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[size++] = s;
+                }
+            } else {
+                size--;
+                numbers[index] = n;
+                postOrder[n++] = index;
+            }
+        }
+
+        int[][] preds = new int[count][];
+        for (int i = 0; i < count; i++) {
+            preds[i] = new int[predecessorCounts[i]];
+            predecessorCounts[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            if (numbers[i] >= 0 && successors[i] != null) {
+                for (int s : successors[i]) {
+                    preds[s][predecessorCounts[s]++] = i;
+                }
+            }
+        }
+
+        int[] idoms = new int[count];
+        Arrays.fill(idoms, -1);
+        idoms[0] = 0;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            // Reverse post-order, the first instruction (which comes last) excluded
+            for (int k = n - 2; k >= 0; k--) {
+                int index = postOrder[k];
+                int idom = -1;
+                for (int p : preds[index]) {
+                    if (idoms[p] >= 0) {
+                        idom = idom < 0 ? p : intersect(p, idom, idoms, numbers);
+                    }
+                }
+                if (idoms[index] != idom) {
+                    idoms[index] = idom;
+                    changed = true;
+                }
+            }
+        }
+        idoms[0] = -1;
+
+        return idoms;
+    }
+
+    private static int intersect(int index, int otherIndex, int[] idoms, int[] numbers) {
+        while (index != otherIndex) {
+            while (numbers[index] < numbers[otherIndex]) {
+                index = idoms[index];
+            }
+            while (numbers[otherIndex] < numbers[index]) {
+                otherIndex = idoms[otherIndex];
+            }
+        }
+
+        return index;
+    }
+
+    private static int getLastBlockPosition(ControlFlow.Block block, int[] indices, int[] positions) {
+        int end = block.position() + block.length();
+        int i = indices[block.position()];
+        while (i + 1 < positions.length && positions[i + 1] < end) {
+            i++;
+        }
+
+        return positions[i];
+    }
+
+    private static int[] toArray(List<Integer> list, int offset) {
+        int[] array = new int[list.size() + offset];
+        int i = offset;
+        for (int element : list) {
+            array[i] = element;
+            i++;
+        }
+
+        return array;
+    }
+
+    private static void toIndices(int[] positions, int[] indices) {
+        if (positions != null) {
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = indices[positions[i]];
+            }
+        }
+    }
+
+    int getInstructionCount() {
+        return positions.length;
+    }
+
+    int getPosition(int index) {
+        return positions[index];
+    }
+
+    // Returns -1 for positions within (or beyond) instructions
+    int getIndex(int position) {
+        return position >= 0 && position < indices.length ? indices[position] : -1;
+    }
+
+    int[] getPredecessors(int index) {
+        return predecessors[index];
+    }
+
+    int[] getSuccessors(int index) {
+        return successors[index];
+    }
+
+    Type getCaughtException(int index) {
+        return caughtExceptions[index];
+    }
+
+    int getPriority(int index) {
+        return priorities[index];
+    }
+
+    boolean continuesBlock(int index) {
+        return continuesBlock[index];
+    }
+
+    // Returns -1 for the first instruction and unreachable ones
+    int getImmediateDominator(int index) {
+        return getImmediateDominators()[index];
+    }
+
+    boolean dominates(int index, int otherIndex) {
+        int[] idoms = getImmediateDominators();
+        for (int i = otherIndex; i >= 0; i = idoms[i]) {
+            if (i == index) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Analyses of the same behavior might ask concurrently, in which case both compute the same result
+    private int[] getImmediateDominators() {
+        int[] idoms = immediateDominators;
+        if (idoms == null) {
+            idoms = computeImmediateDominators();
+            immediateDominators = idoms;
+        }
+
+        return idoms;
+    }
+
+    // An estimate of the heap space taken up by the graph in bytes (assuming compressed references), not counting
+    // the caught exception types, which are shared
+    long getFootprint() {
+        int count = positions.length;
+        // Positions, priorities, caught exceptions, and the outer arrays of predecessors and successors
+        long footprint = 5 * arraySize(count, 4) + arraySize(indices.length, 4) + arraySize(count, 1);
+        for (int i = 0; i < count; i++) {
+            if (predecessors[i] != null) {
+                footprint += arraySize(predecessors[i].length, 4);
+            }
+            if (successors[i] != null) {
+                footprint += arraySize(successors[i].length, 4);
+            }
+        }
+        if (immediateDominators != null) {
+            footprint += arraySize(count, 4);
+        }
+
+        return footprint;
+    }
+
+    private static long arraySize(int length, int elementSize) {
+        return (16 + (long) length * elementSize + 7) & ~7L;
+    }
+}
@@ -8,8 +8,12 @@ package tamestaj;
 final class Dispatcher {
     private Dispatcher() { }
 
-    public static Object removePersistent(int id) { return Persistor.remove(id); }
-    public static int addPersistent(Object object) { return Persistor.add(object); }
+    public static MemberDescriptor makeMemberDescriptor(MemberDescriptor.Kind kind, String declaringClassName, String name, String descriptor) {
+        return MemberDescriptor.make(kind, declaringClassName, name, descriptor);
+    }
+    public static StaticInfo makeStaticInfo(String originClassName, String originName, String originDescriptor, int originPosition, int originLineNumber, String inferredTypeNames) {
+        return StaticInfo.make(originClassName, originName, originDescriptor, originPosition, originLineNumber, inferredTypeNames);
+    }
 
     public static <T extends Closure<?>> ClosureHolder<T> makeClosureHolder(boolean isPermanent) {
         return ClosureHolder.make(isPermanent);
@@ -33,6 +37,8 @@ final class Dispatcher {
 
     public static Expression.Value makeConstant(Expression expression) { return ((Expression.Value) expression).makeConstant();  }
 
+    public static Expression.Staged intern(Expression.Staged staged) { return ExpressionInterner.intern(staged); }
+
     public static <V> Expression.Value<V> liftConstantObject(V value) { return Expression.ObjectValue.makeConstant(value); }
     public static Expression.Value<Boolean> liftConstantBoolean(boolean value) { return Expression.BooleanValue.makeConstant(value); }
     public static Expression.Value<Integer> liftConstantInteger(int value) { return Expression.IntegerValue.makeConstant(value); }
@@ -1,101 +1,312 @@
 package tamestaj;
 
-import com.google.common.primitives.Ints;
+import javassist.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Stack;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
 
 @SuppressWarnings("unused")
 public final class Environment {
-    public static final class Binder {
-        private final Expression.Staged staged;
+    // Generating accessor classes only pays off for deep expressions that are evaluated very often,
+    // see ValueAccessorBenchmark in the mini example
+    private static final boolean generateValueAccessors = Options.getBoolean("generateValueAccessors", false);
+    // Closures must not let the environment escape their evaluation for this to be safe
+    private static final boolean reuseEnvironments = Options.getBoolean("reuseEnvironments", false);
 
-        private final HashMap<Expression.Value<?>, Closure<?>> closureCache;
+    // Retrieves a bound value from the expression DAG an environment is created for
+    public static abstract class ValueAccessor {
+        private static final ConcurrentHashMap<String, ValueAccessor> generatedAccessors = new ConcurrentHashMap<>();
 
-        private boolean inspectionOccurred;
-        private int boundCount;
+        protected ValueAccessor() { }
 
-        Binder(Expression.Staged staged) {
-            closureCache = new HashMap<>();
-            this.staged = staged;
+        public abstract Expression.Value<?> get(Expression.Staged staged);
+
+        // The same path occurs in many expression shapes, so there is at most one class per path
+        static ValueAccessor getGenerated(int[] path) {
+            StringBuilder name = new StringBuilder(Util.ENVIRONMENT_CLASS.getName() + "$GeneratedValueAccessor");
+            for (int index : path) {
+                name.append('$').append(index);
+            }
+
+            return generatedAccessors.computeIfAbsent(name.toString(), n -> generate(n, path));
         }
 
-        int getBoundCount() {
-            return boundCount;
+        private static synchronized ValueAccessor generate(String name, int[] path) {
+            ClassPool cp = ClassPool.getDefault();
+            try {
+                CtClass accessorClazz = cp.makeClass(name, cp.get(ValueAccessor.class.getName()));
+                accessorClazz.addConstructor(CtNewConstructor.defaultConstructor(accessorClazz));
+
+                String stagedClassName = Util.EXPRESSION_CLASS.getName() + "$Staged";
+                String code = "$1";
+                for (int i = 0; i < path.length - 1; i++) {
+                    code = "((" + stagedClassName + ") " + code + ".getArgument(" + path[i] + "))";
+                }
+                String accessorSource =
+                        "public " + Util.VALUE_CLASS.getName() + " get(" + stagedClassName + " staged) {\n"
+                      + "    return (" + Util.VALUE_CLASS.getName() + ") " + code + ".getArgument(" + path[path.length - 1] + ");\n"
+                      + "}";
+                accessorClazz.addMethod(CtNewMethod.make(accessorSource, accessorClazz));
+
+                Class<?> accessorClass = cp.toClass(accessorClazz, ValueAccessor.class.getClassLoader(), ValueAccessor.class.getProtectionDomain());
+                accessorClazz.detach();
+
+                return (ValueAccessor) accessorClass.newInstance();
+            } catch (CannotCompileException | NotFoundException | InstantiationException | IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
         }
+    }
+
+    // Interprets the argument indices on the way from the root to the value
+    private static final class PathValueAccessor extends ValueAccessor {
+        private final int[] path;
+
+        PathValueAccessor(int[] path) {
+            this.path = path;
+        }
+
+        public Expression.Value<?> get(Expression.Staged staged) {
+            for (int i = 0; i < path.length - 1; i++) {
+                staged = (Expression.Staged) staged.getArgument(path[i]);
+            }
 
-        private int[] pathTo(Expression.Value<?> value) {
-            Stack<Integer> pathStack = new Stack<>();
-            pathStack.push(0);
-            Stack<Expression.Staged> stack = new Stack<>();
-            stack.push(staged);
+            return (Expression.Value<?>) staged.getArgument(path[path.length - 1]);
+        }
+    }
 
-            while (!stack.empty()) {
-                Expression.Staged staged = stack.peek();
-                int index = pathStack.peek();
+    // Where each node of an expression DAG is first reached in a depth-first traversal from the root, such that the
+    // path to a value is that of the first occurrence (like with the generated accessors, any other would do as well).
+    // Nodes are numbered in one pass and each records the number of the node it was reached from and its argument
+    // index there, so a path is read off backwards from the value.
+    private static final class LeafIndex {
+        private Object[] nodes;
+        private int[] numbers;
+        private int shift;
+
+        private int[] parents;
+        private int[] argumentIndices;
+        private int count;
+
+        LeafIndex(Expression.Staged root) {
+            nodes = new Object[64];
+            numbers = new int[64];
+            shift = Integer.SIZE - 6;
+            parents = new int[32];
+            argumentIndices = new int[32];
+
+            add(root, -1, -1);
+
+            Expression.Staged[] stack = new Expression.Staged[8];
+            int[] stackNumbers = new int[8];
+            int[] nextArguments = new int[8];
+            int depth = 0;
+            stack[0] = root;
+
+            while (depth >= 0) {
+                Expression.Staged staged = stack[depth];
+                int index = nextArguments[depth];
 
                 if (index < staged.getArgumentCount()) {
-                    Expression arg = staged.getArgument(index);
-                    if (arg instanceof Expression.Staged) {
-                        stack.push((Expression.Staged) arg);
-                        pathStack.push(0);
-                    } else if (arg == value) {
-                        return Ints.toArray(pathStack);
-                    } else {
-                        pathStack.push(pathStack.pop() + 1);
+                    nextArguments[depth]++;
+
+                    Expression argument = staged.getArgument(index);
+                    if (slotOf(argument) < 0) {
+                        int number = add(argument, stackNumbers[depth], index);
+                        if (argument instanceof Expression.Staged) {
+                            depth++;
+                            if (depth == stack.length) {
+                                stack = Arrays.copyOf(stack, depth * 2);
+                                stackNumbers = Arrays.copyOf(stackNumbers, depth * 2);
+                                nextArguments = Arrays.copyOf(nextArguments, depth * 2);
+                            }
+                            stack[depth] = (Expression.Staged) argument;
+                            stackNumbers[depth] = number;
+                            nextArguments[depth] = 0;
+                        }
                     }
                 } else {
-                    stack.pop();
-                    pathStack.pop();
-                    pathStack.push(pathStack.pop() + 1);
+                    depth--;
                 }
             }
+        }
 
-            throw new RuntimeException();
+        // Open addressing by identity, returns the slot of the node or the complement of the free slot for it
+        private int slotOf(Object node) {
+            int mask = nodes.length - 1;
+            int slot = (System.identityHashCode(node) * 0x9E3779B9) >>> shift;
+            while (nodes[slot] != null) {
+                if (nodes[slot] == node) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            return ~slot;
         }
 
-        // Code generation instead of interpretation does not seem to be worth it...
-        /*
-        private Function<Expression.Staged, Expression.Value<?>> makeValueAccessor(int[] path) {
-            ClassPool cp = ClassPool.getDefault();
-            try {
-                CtClass funClazz = cp.makeClass(Util.ENVIRONMENT_CLASS.getName() + "$ValueAccessor");
-                funClazz.setInterfaces(new CtClass[]{ cp.get("java.util.function.Function") });
+        private int add(Object node, int parent, int argumentIndex) {
+            if (count == parents.length) {
+                parents = Arrays.copyOf(parents, count * 2);
+                argumentIndices = Arrays.copyOf(argumentIndices, count * 2);
+                rehash(nodes.length * 2);
+            }
 
-                funClazz.addConstructor(CtNewConstructor.defaultConstructor(funClazz));
+            int number = count++;
+            parents[number] = parent;
+            argumentIndices[number] = argumentIndex;
 
-                StringBuilder funSource = new StringBuilder();
-                funSource.append("public Object apply(Object staged) {\n");
-                String code = "((" + Expression.Staged.class.getName() + ") staged)";
-                for (int i = 0; i < path.length - 1; i++) {
-                    code = "((" + Expression.Staged.class.getName() + ") " + code + ".getArgument(" + path[i] + "))";
+            int slot = ~slotOf(node);
+            nodes[slot] = node;
+            numbers[slot] = number;
+
+            return number;
+        }
+
+        private void rehash(int capacity) {
+            Object[] oldNodes = nodes;
+            int[] oldNumbers = numbers;
+            nodes = new Object[capacity];
+            numbers = new int[capacity];
+            shift--;
+
+            for (int i = 0; i < oldNodes.length; i++) {
+                if (oldNodes[i] != null) {
+                    int slot = ~slotOf(oldNodes[i]);
+                    nodes[slot] = oldNodes[i];
+                    numbers[slot] = oldNumbers[i];
                 }
-                funSource.append("    return " + code + ".getArgument(" + path[path.length - 1] + ");\n");
-                funSource.append("}");
-                CtMethod funMethod = CtNewMethod.make(funSource.toString(), funClazz);
-                funClazz.addMethod(funMethod);
+            }
+        }
+
+        int[] pathTo(Expression.Value<?> value) {
+            int slot = slotOf(value);
+            if (slot < 0) {
+                throw new RuntimeException();
+            }
 
-                CtClassLoader loader = new CtClassLoader();
-                Class<?> funClass = loader.load(funClazz);
-                funClazz.detach();
+            int length = 0;
+            for (int number = numbers[slot]; parents[number] >= 0; number = parents[number]) {
+                length++;
+            }
 
-                return (Function<Expression.Staged, Expression.Value<?>>) funClass.newInstance();
-            } catch (CannotCompileException | NotFoundException | InstantiationException | IllegalAccessException | IOException e) {
-                throw new RuntimeException(e);
+            int[] path = new int[length];
+            for (int number = numbers[slot]; parents[number] >= 0; number = parents[number]) {
+                path[--length] = argumentIndices[number];
+            }
+
+            return path;
+        }
+    }
+
+    // Where the bound values of an expression DAG go, shared by all environments for the same (cached) closure
+    static final class Layout {
+        private final ValueAccessor[] objectAccessors;
+        private final ValueAccessor[] booleanAccessors;
+        private final ValueAccessor[] intAccessors;
+        private final ValueAccessor[] longAccessors;
+        private final ValueAccessor[] floatAccessors;
+        private final ValueAccessor[] doubleAccessors;
+        private final int memoCount;
+
+        // One reusable environment per thread
+        private final ThreadLocal<Environment> pooledEnvironment;
+
+        private Layout(ValueAccessor[] objectAccessors, ValueAccessor[] booleanAccessors, ValueAccessor[] intAccessors,
+                       ValueAccessor[] longAccessors, ValueAccessor[] floatAccessors, ValueAccessor[] doubleAccessors,
+                       int memoCount) {
+            this.objectAccessors = objectAccessors;
+            this.booleanAccessors = booleanAccessors;
+            this.intAccessors = intAccessors;
+            this.longAccessors = longAccessors;
+            this.floatAccessors = floatAccessors;
+            this.doubleAccessors = doubleAccessors;
+            this.memoCount = memoCount;
+
+            pooledEnvironment = reuseEnvironments ? new ThreadLocal<>() : null;
+        }
+    }
+
+    public static final class Binder {
+        private final Expression.Staged staged;
+
+        private final HashMap<Expression.Value<?>, Closure<?>> closureCache;
+
+        // Bound values are stored in one slot array per primitive kind (byte, char, and short share int slots)
+        private final ArrayList<ValueAccessor> objectAccessors;
+        private final ArrayList<ValueAccessor> booleanAccessors;
+        private final ArrayList<ValueAccessor> intAccessors;
+        private final ArrayList<ValueAccessor> longAccessors;
+        private final ArrayList<ValueAccessor> floatAccessors;
+        private final ArrayList<ValueAccessor> doubleAccessors;
+        private int memoCount;
+
+        private boolean inspectionOccurred;
+        private Layout layout;
+        private LeafIndex leafIndex;
+
+        Binder(Expression.Staged staged) {
+            closureCache = new HashMap<>();
+            this.staged = staged;
+
+            objectAccessors = new ArrayList<>();
+            booleanAccessors = new ArrayList<>();
+            intAccessors = new ArrayList<>();
+            longAccessors = new ArrayList<>();
+            floatAccessors = new ArrayList<>();
+            doubleAccessors = new ArrayList<>();
+        }
+
+        Layout getLayout() {
+            if (layout == null) {
+                layout = new Layout(
+                        toArray(objectAccessors),
+                        toArray(booleanAccessors),
+                        toArray(intAccessors),
+                        toArray(longAccessors),
+                        toArray(floatAccessors),
+                        toArray(doubleAccessors),
+                        memoCount);
+            }
+
+            return layout;
+        }
+
+        private static ValueAccessor[] toArray(ArrayList<ValueAccessor> accessors) {
+            return accessors.toArray(new ValueAccessor[accessors.size()]);
+        }
+
+        private int addSlot(ArrayList<ValueAccessor> accessors, Expression.Value<?> value) {
+            if (layout != null) {
+                throw new IllegalStateException("Binding after the environment layout has been fixed!");
+            }
+
+            accessors.add(makeValueAccessor(value));
+            return accessors.size() - 1;
+        }
+
+        private ValueAccessor makeValueAccessor(Expression.Value<?> value) {
+            if (leafIndex == null) {
+                leafIndex = new LeafIndex(staged);
+            }
+
+            int[] path = leafIndex.pathTo(value);
+            if (generateValueAccessors) {
+                return ValueAccessor.getGenerated(path);
+            } else {
+                return new PathValueAccessor(path);
             }
         }
-        */
 
         @SuppressWarnings("unchecked")
         <V> ObjectClosure<V> bind(Expression.ObjectValue<V> value) {
             ObjectClosure<V> closure = (ObjectClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(objectAccessors, value);
 
-                closure = environment -> (V) environment.getValue(cacheIndex, path).materializeAsObject();
+                closure = environment -> (V) environment.objects[slot];
                 closureCache.put(value, closure);
             }
 
@@ -115,11 +326,9 @@ public final class Environment {
         BooleanClosure bind(Expression.BooleanValue value) {
             BooleanClosure closure = (BooleanClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(booleanAccessors, value);
 
-                closure = environment -> environment.getValue(cacheIndex, path).materializeAsBoolean();
+                closure = environment -> environment.booleans[slot];
                 closureCache.put(value, closure);
             }
 
@@ -128,7 +337,7 @@ public final class Environment {
         BooleanClosure bind(Expression.BooleanValue.Constant constant) {
             BooleanClosure closure = (BooleanClosure) closureCache.get(constant);
             if (closure == null) {
-                Boolean value = constant.materializeAsBoolean();
+                boolean value = constant.materializeAsBoolean();
                 closure = environment -> value;
                 closureCache.put(constant, closure);
             }
@@ -139,11 +348,9 @@ public final class Environment {
         IntegerClosure bind(Expression.IntegerValue value) {
             IntegerClosure closure = (IntegerClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(intAccessors, value);
 
-                closure = environment -> environment.getValue(cacheIndex, path).materializeAsInteger();
+                closure = environment -> environment.ints[slot];
                 closureCache.put(value, closure);
             }
 
@@ -152,7 +359,7 @@ public final class Environment {
         IntegerClosure bind(Expression.IntegerValue.Constant constant) {
             IntegerClosure closure = (IntegerClosure) closureCache.get(constant);
             if (closure == null) {
-                Integer value = constant.materializeAsInteger();
+                int value = constant.materializeAsInteger();
                 closure = environment -> value;
                 closureCache.put(constant, closure);
             }
@@ -163,11 +370,9 @@ public final class Environment {
         LongClosure bind(Expression.LongValue value) {
             LongClosure closure = (LongClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(longAccessors, value);
 
-                closure = environment -> environment.getValue(cacheIndex, path).materializeAsLong();
+                closure = environment -> environment.longs[slot];
                 closureCache.put(value, closure);
             }
 
@@ -176,7 +381,7 @@ public final class Environment {
         LongClosure bind(Expression.LongValue.Constant constant) {
             LongClosure closure = (LongClosure) closureCache.get(constant);
             if (closure == null) {
-                Long value = constant.materializeAsLong();
+                long value = constant.materializeAsLong();
                 closure = environment -> value;
                 closureCache.put(constant, closure);
             }
@@ -187,11 +392,9 @@ public final class Environment {
         FloatClosure bind(Expression.FloatValue value) {
             FloatClosure closure = (FloatClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(floatAccessors, value);
 
-                closure = environment -> environment.getValue(cacheIndex, path).materializeAsFloat();
+                closure = environment -> environment.floats[slot];
                 closureCache.put(value, closure);
             }
 
@@ -200,7 +403,7 @@ public final class Environment {
         FloatClosure bind(Expression.FloatValue.Constant constant) {
             FloatClosure closure = (FloatClosure) closureCache.get(constant);
             if (closure == null) {
-                Float value = constant.materializeAsFloat();
+                float value = constant.materializeAsFloat();
                 closure = environment -> value;
                 closureCache.put(constant, closure);
             }
@@ -211,11 +414,9 @@ public final class Environment {
         DoubleClosure bind(Expression.DoubleValue value) {
             DoubleClosure closure = (DoubleClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(doubleAccessors, value);
 
-                closure = environment -> environment.getValue(cacheIndex, path).materializeAsDouble();
+                closure = environment -> environment.doubles[slot];
                 closureCache.put(value, closure);
             }
 
@@ -224,7 +425,7 @@ public final class Environment {
         DoubleClosure bind(Expression.DoubleValue.Constant constant) {
             DoubleClosure closure = (DoubleClosure) closureCache.get(constant);
             if (closure == null) {
-                Double value = constant.materializeAsDouble();
+                double value = constant.materializeAsDouble();
                 closure = environment -> value;
                 closureCache.put(constant, closure);
             }
@@ -235,11 +436,9 @@ public final class Environment {
         ByteClosure bind(Expression.ByteValue value) {
             ByteClosure closure = (ByteClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(intAccessors, value);
 
-                closure = environment -> environment.getValue(cacheIndex, path).materializeAsByte();
+                closure = environment -> (byte) environment.ints[slot];
                 closureCache.put(value, closure);
             }
 
@@ -248,7 +447,7 @@ public final class Environment {
         ByteClosure bind(Expression.ByteValue.Constant constant) {
             ByteClosure closure = (ByteClosure) closureCache.get(constant);
             if (closure == null) {
-                Byte value = constant.materializeAsByte();
+                byte value = constant.materializeAsByte();
                 closure = environment -> value;
                 closureCache.put(constant, closure);
             }
@@ -259,11 +458,9 @@ public final class Environment {
         CharacterClosure bind(Expression.CharacterValue value) {
             CharacterClosure closure = (CharacterClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(intAccessors, value);
 
-                closure = environment -> environment.getValue(cacheIndex, path).materializeAsCharacter();
+                closure = environment -> (char) environment.ints[slot];
                 closureCache.put(value, closure);
             }
 
@@ -272,7 +469,7 @@ public final class Environment {
         CharacterClosure bind(Expression.CharacterValue.Constant constant) {
             CharacterClosure closure = (CharacterClosure) closureCache.get(constant);
             if (closure == null) {
-                Character value = constant.materializeAsCharacter();
+                char value = constant.materializeAsCharacter();
                 closure = environment -> value;
                 closureCache.put(constant, closure);
             }
@@ -283,11 +480,9 @@ public final class Environment {
         ShortClosure bind(Expression.ShortValue value) {
             ShortClosure closure = (ShortClosure) closureCache.get(value);
             if (closure == null) {
-                int[] path = pathTo(value);
-                int cacheIndex = boundCount;
-                boundCount++;
+                int slot = addSlot(intAccessors, value);
 
-                closure = environment -> environment.getValue(cacheIndex, path).materializeAsShort();
+                closure = environment -> (short) environment.ints[slot];
                 closureCache.put(value, closure);
             }
 
@@ -296,7 +491,7 @@ public final class Environment {
         ShortClosure bind(Expression.ShortValue.Constant constant) {
             ShortClosure closure = (ShortClosure) closureCache.get(constant);
             if (closure == null) {
-                Short value = constant.materializeAsShort();
+                short value = constant.materializeAsShort();
                 closure = environment -> value;
                 closureCache.put(constant, closure);
             }
@@ -304,6 +499,27 @@ public final class Environment {
             return closure;
         }
 
+        // The returned closure evaluates the given one at most once per evaluation of the whole expression and
+        // remembers its result, e.g. for a subexpression that several others share (see Expression.DagVisitor).
+        // Only closures without side effects can be memoized like this.
+        @SuppressWarnings("unchecked")
+        public <V> ObjectClosure<V> memoize(ObjectClosure<V> closure) {
+            if (layout != null) {
+                throw new IllegalStateException("Memoizing after the environment layout has been fixed!");
+            }
+
+            int slot = memoCount++;
+            return environment -> {
+                Object result = environment.memos[slot];
+                if (result == UNEVALUATED) {
+                    result = closure.evaluate(environment);
+                    environment.memos[slot] = result;
+                }
+
+                return (V) result;
+            };
+        }
+
         boolean inspectionOccurred() {
             return inspectionOccurred;
         }
@@ -312,28 +528,109 @@ public final class Environment {
         }
     }
 
-    private final Expression.Staged staged;
-    private final Expression.Value<?>[] cachedValues;
+    private static final Object[] EMPTY_OBJECTS = new Object[0];
+    private static final boolean[] EMPTY_BOOLEANS = new boolean[0];
+    private static final int[] EMPTY_INTS = new int[0];
+    private static final long[] EMPTY_LONGS = new long[0];
+    private static final float[] EMPTY_FLOATS = new float[0];
+    private static final double[] EMPTY_DOUBLES = new double[0];
+
+    // Memoized results may well be null
+    private static final Object UNEVALUATED = new Object();
+
+    private final Layout layout;
+    private final boolean isPooled;
+    private boolean isInUse;
+
+    private final Object[] objects;
+    private final boolean[] booleans;
+    private final int[] ints;
+    private final long[] longs;
+    private final float[] floats;
+    private final double[] doubles;
+    private final Object[] memos;
+
+    private Environment(Layout layout, boolean isPooled) {
+        this.layout = layout;
+        this.isPooled = isPooled;
+
+        objects = layout.objectAccessors.length == 0 ? EMPTY_OBJECTS : new Object[layout.objectAccessors.length];
+        booleans = layout.booleanAccessors.length == 0 ? EMPTY_BOOLEANS : new boolean[layout.booleanAccessors.length];
+        ints = layout.intAccessors.length == 0 ? EMPTY_INTS : new int[layout.intAccessors.length];
+        longs = layout.longAccessors.length == 0 ? EMPTY_LONGS : new long[layout.longAccessors.length];
+        floats = layout.floatAccessors.length == 0 ? EMPTY_FLOATS : new float[layout.floatAccessors.length];
+        doubles = layout.doubleAccessors.length == 0 ? EMPTY_DOUBLES : new double[layout.doubleAccessors.length];
+        memos = layout.memoCount == 0 ? EMPTY_OBJECTS : new Object[layout.memoCount];
+    }
 
-    Environment(Expression.Staged staged, int size) {
-        this.staged = staged;
-        this.cachedValues = new Expression.Value<?>[size];
+    static Environment acquire(Expression.Staged staged, Layout layout) {
+        Environment environment;
+        if (layout.pooledEnvironment == null) {
+            environment = new Environment(layout, false);
+        } else {
+            environment = layout.pooledEnvironment.get();
+            if (environment == null) {
+                environment = new Environment(layout, true);
+                layout.pooledEnvironment.set(environment);
+            } else if (environment.isInUse) {
+                // Reentrant evaluation of the same closure (e.g. a nested materialization), the outer evaluation
+                // still needs its slots
+                environment = new Environment(layout, false);
+            }
+            environment.isInUse = environment.isPooled;
+        }
+
+        try {
+            environment.fill(staged);
+        } catch (Throwable t) {
+            environment.release();
+            throw t;
+        }
+        return environment;
+    }
+
+    // Must be called once evaluation is done, whether it completes or throws, or the pooled environment stays in use
+    void release() {
+        if (isPooled) {
+            // Do not keep bound objects reachable
+            Arrays.fill(objects, null);
+            Arrays.fill(memos, null);
+            isInUse = false;
+        }
     }
 
-    private Expression.Value<?> getValue(int cacheIndex, int[] path) {
-        Expression.Value<?> value = cachedValues[cacheIndex];
-        if (value != null) {
-            return value;
+    // All value slots are filled up front, such that closures only ever read (unboxed) slots, memos start out empty
+    private void fill(Expression.Staged staged) {
+        ValueAccessor[] accessors = layout.objectAccessors;
+        for (int i = 0; i < accessors.length; i++) {
+            objects[i] = accessors[i].get(staged).materializeAsObject();
+        }
+
+        accessors = layout.booleanAccessors;
+        for (int i = 0; i < accessors.length; i++) {
+            booleans[i] = accessors[i].get(staged).materializeAsBoolean();
+        }
+
+        accessors = layout.intAccessors;
+        for (int i = 0; i < accessors.length; i++) {
+            ints[i] = accessors[i].get(staged).materializeAsInteger();
         }
 
-        Expression.Staged staged = this.staged;
+        accessors = layout.longAccessors;
+        for (int i = 0; i < accessors.length; i++) {
+            longs[i] = accessors[i].get(staged).materializeAsLong();
+        }
+
+        accessors = layout.floatAccessors;
+        for (int i = 0; i < accessors.length; i++) {
+            floats[i] = accessors[i].get(staged).materializeAsFloat();
+        }
 
-        for (int i = 0; i < path.length - 1; i++) {
-            staged = (Expression.Staged) staged.getArgument(path[i]);
+        accessors = layout.doubleAccessors;
+        for (int i = 0; i < accessors.length; i++) {
+            doubles[i] = accessors[i].get(staged).materializeAsDouble();
         }
 
-        value = (Expression.Value<?>) staged.getArgument(path[path.length - 1]);
-        cachedValues[cacheIndex] = value;
-        return value;
+        Arrays.fill(memos, UNEVALUATED);
     }
 }
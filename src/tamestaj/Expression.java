@@ -2,6 +2,8 @@ package tamestaj;
 
 import javassist.*;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.IdentityHashMap;
 import java.util.Optional;
 
@@ -17,7 +19,7 @@ public abstract class Expression {
     abstract boolean isIsomorphicTo(IdentityHashMap<Object, Object> identityMap, Expression expression);
     abstract Expression cacheClone(IdentityHashMap<Expression, Expression> identityMap);
 
-    abstract boolean isAcceptedBy(CtClass language);
+    abstract boolean isAcceptedBy(String languageName);
     abstract Expression asValueIfEvaluated();
     abstract Expression getRaw();
 
@@ -59,6 +61,143 @@ public abstract class Expression {
         return ToShortConversion.make(this.getRaw());
     }
 
+    // Expressions are DAGs, e.g. whenever staged code passes the same expression on twice. A DAG visitor visits each
+    // node only once, however many paths lead to it: visit methods traverse arguments (instead of accepting them) and
+    // pass their result on by setting it, later traversals of the same node just return that result. Nodes are
+    // numbered in the order they are first visited.
+    // Visitors whose visits do not depend on state set up by the visits above may visit arguments first: traversing a
+    // node then visits all nodes below it bottom-up, with an explicit stack, such that the visit of any node only
+    // finds results of its arguments, however deep the DAG.
+    public abstract static class DagVisitor<R> implements Visitor {
+        private final boolean visitsArgumentsFirst;
+
+        private final IdentityHashMap<Expression, Integer> ids = new IdentityHashMap<>();
+        private final ArrayList<R> results = new ArrayList<>();
+        private int currentId = -1;
+
+        private Expression root;
+        private IdentityHashMap<Expression, Integer> referenceCounts;
+
+        protected DagVisitor() {
+            this(false);
+        }
+
+        protected DagVisitor(boolean visitsArgumentsFirst) {
+            this.visitsArgumentsFirst = visitsArgumentsFirst;
+        }
+
+        public final R traverse(Expression expression) {
+            Integer id = ids.get(expression);
+            if (id != null) {
+                return results.get(id);
+            }
+
+            if (root == null) {
+                root = expression;
+            }
+
+            if (visitsArgumentsFirst && expression instanceof Staged) {
+                visitBelow((Staged) expression);
+            }
+
+            return visit(expression);
+        }
+
+        private void visitBelow(Staged staged) {
+            ArrayDeque<Expression> pending = new ArrayDeque<>();
+            pushUnvisitedArguments(pending, staged);
+
+            while (!pending.isEmpty()) {
+                Expression expression = pending.peek();
+                if (ids.containsKey(expression)) {
+                    pending.pop();
+                } else if (!(expression instanceof Staged) || !pushUnvisitedArguments(pending, (Staged) expression)) {
+                    pending.pop();
+                    visit(expression);
+                }
+            }
+        }
+
+        // The first argument ends up on top, such that arguments are visited from left to right
+        private boolean pushUnvisitedArguments(ArrayDeque<Expression> pending, Staged staged) {
+            boolean hasPushed = false;
+            for (int i = staged.getArgumentCount() - 1; i >= 0; i--) {
+                Expression argument = staged.getArgument(i);
+                if (!ids.containsKey(argument)) {
+                    pending.push(argument);
+                    hasPushed = true;
+                }
+            }
+
+            return hasPushed;
+        }
+
+        private R visit(Expression expression) {
+            int outerId = currentId;
+            currentId = results.size();
+            ids.put(expression, currentId);
+            results.add(null);
+            try {
+                expression.accept(this);
+                return results.get(currentId);
+            } finally {
+                currentId = outerId;
+            }
+        }
+
+        protected final void setResult(R result) {
+            results.set(currentId, result);
+        }
+
+        // The id of the node being visited
+        protected final int getId() {
+            return currentId;
+        }
+        // -1 if the node has not been visited (yet)
+        protected final int getId(Expression expression) {
+            return ids.getOrDefault(expression, -1);
+        }
+
+        public final int getNodeCount() {
+            return results.size();
+        }
+
+        // Whether more than one path leads from the root (the first node traversed) to the node
+        protected final boolean isShared(Expression expression) {
+            if (referenceCounts == null) {
+                referenceCounts = countReferences(root);
+            }
+
+            return referenceCounts.getOrDefault(expression, 0) > 1;
+        }
+
+        private static IdentityHashMap<Expression, Integer> countReferences(Expression root) {
+            IdentityHashMap<Expression, Integer> referenceCounts = new IdentityHashMap<>();
+            ArrayDeque<Expression> pending = new ArrayDeque<>();
+            referenceCounts.put(root, 0);
+            pending.push(root);
+
+            while (!pending.isEmpty()) {
+                Expression expression = pending.pop();
+                if (expression instanceof Staged) {
+                    Staged staged = (Staged) expression;
+                    for (int i = 0; i < staged.getArgumentCount(); i++) {
+                        Expression argument = staged.getArgument(i);
+                        Integer referenceCount = referenceCounts.get(argument);
+                        if (referenceCount == null) {
+                            referenceCounts.put(argument, 1);
+                            pending.push(argument);
+                        } else {
+                            referenceCounts.put(argument, referenceCount + 1);
+                        }
+                    }
+                }
+            }
+
+            return referenceCounts;
+        }
+    }
+
     public abstract static class Staged extends Expression {
         public interface Visitor {
             void visit(FieldRead staged);
@@ -69,25 +208,31 @@ public abstract class Expression {
         volatile boolean isomorphicHashCodeHasBeenCalculated;
         int isomorphicHashCode;
 
+        // Null in generated classes of small arity, which keep their arguments in fields instead
         private final Expression[] arguments;
 
         final StaticInfo staticInfo;
         final ClosureHolder<?> closureHolder;
 
-        Value<?> value;
+        volatile Value<?> value;
 
         private Staged(Expression[] arguments, StaticInfo staticInfo, ClosureHolder<?> closureHolder) {
             this.arguments = arguments;
             this.staticInfo = staticInfo;
             this.closureHolder = closureHolder;
         }
+        private Staged(StaticInfo staticInfo, ClosureHolder<?> closureHolder) {
+            this(null, staticInfo, closureHolder);
+        }
 
         int isomorphicHashCode(int memberHashCode) {
+            calculateArgumentIsomorphicHashCodes();
+
             // if (!isomorphicHashCodeHasBeenCalculated) {
                 int isomorphicHashCode = memberHashCode;
                 isomorphicHashCode += 31 * getStaticInfo().hashCode();
-                for (Expression argument : arguments) {
-                    isomorphicHashCode = 31 * isomorphicHashCode + argument.isomorphicHashCode();
+                for (int i = 0; i < getArgumentCount(); i++) {
+                    isomorphicHashCode = 31 * isomorphicHashCode + getArgument(i).isomorphicHashCode();
                 }
 
                 this.isomorphicHashCode = isomorphicHashCode;
@@ -97,6 +242,49 @@ public abstract class Expression {
             return isomorphicHashCode;
         }
 
+        // Chains of staged expressions can be much deeper than the stack, so the hash codes of all staged nodes below
+        // are calculated bottom-up first, leaving only hash codes that are known already to the calculation above
+        private void calculateArgumentIsomorphicHashCodes() {
+            ArrayDeque<Staged> pending = null;
+            for (int i = 0; i < getArgumentCount(); i++) {
+                Expression argument = getArgument(i);
+                if (argument instanceof Staged && !((Staged) argument).isomorphicHashCodeHasBeenCalculated) {
+                    if (pending == null) {
+                        pending = new ArrayDeque<>();
+                    }
+                    pending.push((Staged) argument);
+                }
+            }
+            if (pending == null) {
+                return;
+            }
+
+            while (!pending.isEmpty()) {
+                Staged staged = pending.peek();
+                boolean isReady = true;
+                for (int i = 0; i < staged.getArgumentCount(); i++) {
+                    Expression argument = staged.getArgument(i);
+                    if (argument instanceof Staged && !((Staged) argument).isomorphicHashCodeHasBeenCalculated) {
+                        pending.push((Staged) argument);
+                        isReady = false;
+                    }
+                }
+
+                if (isReady) {
+                    pending.pop();
+                    staged.isomorphicHashCode();
+                }
+            }
+        }
+
+        // Interned expressions (see ExpressionInterner) may be evaluated by several threads at once, the first value
+        // wins, such that all of them materialize the same one
+        final synchronized void setValue(Value<?> value) {
+            if (this.value == null) {
+                this.value = value;
+            }
+        }
+
         final Expression asValueIfEvaluated() {
             if (value == null) {
                 return this;
@@ -143,15 +331,21 @@ public abstract class Expression {
             return value.materializeAsShort();
         }
 
-        public abstract CtMember getMember();
+        public abstract MemberDescriptor getMember();
 
         public final Optional<StaticInfo> getStaticInfo() { return Optional.ofNullable(staticInfo); }
 
         void setStaticInfo(StaticInfo staticInfo) { }
         <T extends Closure<?>> void setClosureHolder(ClosureHolder<T> closureHolder) { }
 
-        public final int getArgumentCount() { return arguments.length; }
-        public final Expression getArgument(int index) { return arguments[index]; }
+        // Generated, calling the language's closure factories (see ClosureResolver)
+        Closure<?> compileClosure(Environment.Binder binder, boolean isPermanent) { throw new UnsupportedOperationException(); }
+        // Null if the language does not provide a quick closure factory
+        Closure<?> compileQuickClosure(Environment.Binder binder, boolean isPermanent) { return null; }
+
+        // Overridden by generated classes of small arity
+        public int getArgumentCount() { return arguments.length; }
+        public Expression getArgument(int index) { return arguments[index]; }
 
         /*
         boolean argumentsEqual(Staged staged) {
@@ -169,45 +363,108 @@ public abstract class Expression {
         boolean isIsomorphicTo(IdentityHashMap<Object, Object> identityMap, Expression expression) {
             // Specific behavior in generated classes!
 
-            if (isomorphicHashCode() != expression.isomorphicHashCode()) { return false; }
-
-            Object o = identityMap.get(this);
-            if (o != null) {
-                return o == expression;
-            } else {
-                // if (this != expression) {
-                    Staged staged = (Staged) expression;
-                    if (!getStaticInfo().equals(staged.getStaticInfo())) {
-                        return false;
-                    }
-                    /*
-                    if (arguments == staged.arguments) {
-                        identityMap.put(this, staged);
-                        return true;
-                    }
-                    if (arguments.length != staged.arguments.length) {
+            // Pairs of staged nodes still to be checked, with an explicit stack as chains can be much deeper than the
+            // stack. Only the root is checked by its generated class, the generated classes of the nodes below are
+            // checked here. Every pair is checked either way, so the order does not change the result.
+            ArrayDeque<Expression> pending = null;
+            Staged current = this;
+            while (true) {
+                if (current.isomorphicHashCode() != expression.isomorphicHashCode()) { return false; }
+
+                Object o = identityMap.get(current);
+                if (o != null) {
+                    if (o != expression) {
                         return false;
                     }
-                    */
-
-                    for (int i = 0; i < arguments.length; i++) {
-                        if (!arguments[i].isIsomorphicTo(identityMap, staged.arguments[i])) {
+                } else {
+                    // if (current != expression) {
+                        Staged staged = (Staged) expression;
+                        if (!current.getStaticInfo().equals(staged.getStaticInfo())) {
                             return false;
                         }
+                        /*
+                        if (current.arguments == staged.arguments) {
+                            identityMap.put(current, staged);
+                            continue;
+                        }
+                        if (current.arguments.length != staged.arguments.length) {
+                            return false;
+                        }
+                        */
+
+                        for (int i = 0; i < current.getArgumentCount(); i++) {
+                            Expression argument = current.getArgument(i);
+                            Expression otherArgument = staged.getArgument(i);
+                            if (argument instanceof Staged) {
+                                if (argument.getClass() != otherArgument.getClass()) {
+                                    return false;
+                                }
+
+                                if (pending == null) {
+                                    pending = new ArrayDeque<>();
+                                }
+                                pending.push(argument);
+                                pending.push(otherArgument);
+                            } else if (!argument.isIsomorphicTo(identityMap, otherArgument)) {
+                                return false;
+                            }
+                        }
+                    // }
+
+                    identityMap.put(current, expression);
+                }
+
+                if (pending == null || pending.isEmpty()) {
+                    return true;
+                }
+                expression = pending.pop();
+                current = (Staged) pending.pop();
+            }
+        }
+
+        // Chains can be much deeper than the stack, so all staged nodes below are cloned bottom-up first, leaving only
+        // clones that are known already to the cloning of the arguments
+        private void cacheCloneStagedArguments(IdentityHashMap<Expression, Expression> identityMap) {
+            ArrayDeque<Staged> pending = null;
+            for (int i = 0; i < getArgumentCount(); i++) {
+                Expression argument = getArgument(i);
+                if (argument instanceof Staged && !identityMap.containsKey(argument)) {
+                    if (pending == null) {
+                        pending = new ArrayDeque<>();
                     }
-                // }
+                    pending.push((Staged) argument);
+                }
+            }
+            if (pending == null) {
+                return;
+            }
 
-                identityMap.put(this, expression);
-                return true;
+            while (!pending.isEmpty()) {
+                Staged staged = pending.peek();
+                boolean isReady = true;
+                for (int i = 0; i < staged.getArgumentCount(); i++) {
+                    Expression argument = staged.getArgument(i);
+                    if (argument instanceof Staged && !identityMap.containsKey(argument)) {
+                        pending.push((Staged) argument);
+                        isReady = false;
+                    }
+                }
+
+                if (isReady) {
+                    pending.pop();
+                    staged.cacheClone(identityMap);
+                }
             }
         }
 
         Expression[] cacheCloneArguments(IdentityHashMap<Expression, Expression> identityMap) {
+            cacheCloneStagedArguments(identityMap);
+
             boolean doClone = false;
-            Expression[] clonedArguments = new Expression[arguments.length];
-            for (int i = 0; i < arguments.length; i++) {
-                clonedArguments[i] = arguments[i].cacheClone(identityMap);
-                if (clonedArguments[i] != arguments[i]) {
+            Expression[] clonedArguments = new Expression[getArgumentCount()];
+            for (int i = 0; i < clonedArguments.length; i++) {
+                clonedArguments[i] = getArgument(i).cacheClone(identityMap);
+                if (clonedArguments[i] != getArgument(i)) {
                     doClone = true;
                 }
             }
@@ -222,9 +479,9 @@ public abstract class Expression {
         public String toString() {
             StringBuilder sb = new StringBuilder(getMember().getName());
             sb.append("(");
-            for (int i = 0; i < arguments.length; i++) {
-                sb.append(arguments[i].toString());
-                if (i < arguments.length - 1) {
+            for (int i = 0; i < getArgumentCount(); i++) {
+                sb.append(getArgument(i).toString());
+                if (i < getArgumentCount() - 1) {
                     sb.append(", ");
                 }
             }
@@ -236,8 +493,10 @@ public abstract class Expression {
         FieldRead(Expression[] arguments, StaticInfo staticInfo, ClosureHolder<?> closureHolder) {
             super(arguments, staticInfo, closureHolder);
         }
+        FieldRead(StaticInfo staticInfo, ClosureHolder<?> closureHolder) {
+            super(staticInfo, closureHolder);
+        }
 
-        public abstract CtField getMember();
         /*
         // If at all, this ought to be done without reflection, and only in the second stage... with binder etc.
         public Object readField(Object target) throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException {
@@ -261,8 +520,10 @@ public abstract class Expression {
         FieldAssignment(Expression[] arguments, StaticInfo staticInfo, ClosureHolder<?> closureHolder) {
             super(arguments, staticInfo, closureHolder);
         }
+        FieldAssignment(StaticInfo staticInfo, ClosureHolder<?> closureHolder) {
+            super(staticInfo, closureHolder);
+        }
 
-        public abstract CtField getMember();
         /*
         // If at all, this ought to be done without reflection, and only in the second stage... with binder etc.
         public void assignField(Object target, Object value) throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException {
@@ -290,8 +551,10 @@ public abstract class Expression {
         MethodInvocation(Expression[] arguments, StaticInfo staticInfo, ClosureHolder<?> closureHolder) {
             super(arguments, staticInfo, closureHolder);
         }
+        MethodInvocation(StaticInfo staticInfo, ClosureHolder<?> closureHolder) {
+            super(staticInfo, closureHolder);
+        }
 
-        public abstract CtMethod getMember();
         /*
         // If at all, this ought to be done without reflection, and only in the second stage... with binder etc.
         public Object invokeMethod(Object target, Object... arguments) throws ClassNotFoundException, NoSuchFieldException, InvocationTargetException, IllegalAccessException, NotFoundException, NoSuchMethodException {
@@ -340,8 +603,8 @@ public abstract class Expression {
             return this.convertee.cacheClone(identityMap);
         }
 
-        final boolean isAcceptedBy(CtClass language) {
-            return convertee.isAcceptedBy(language);
+        final boolean isAcceptedBy(String languageName) {
+            return convertee.isAcceptedBy(languageName);
         }
         final Expression asValueIfEvaluated() {
             return convertee.asValueIfEvaluated();
@@ -535,7 +798,7 @@ public abstract class Expression {
 
         private Value() { }
 
-        final boolean isAcceptedBy(CtClass language) { return true; }
+        final boolean isAcceptedBy(String languageName) { return true; }
         final Value<V> asValueIfEvaluated() { return this; }
         final Expression getRaw() { return this; }
 
@@ -709,7 +972,7 @@ public abstract class Expression {
                 return e;
             } else {
                 Value<?> v = make(null);
-                identityMap.put(this, make(null));
+                identityMap.put(this, v);
                 return v;
             }
         }
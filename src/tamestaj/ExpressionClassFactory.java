@@ -3,13 +3,90 @@ package tamestaj;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import javassist.*;
-
+import javassist.bytecode.Descriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 final class ExpressionClassFactory {
-    private static int id = 0;
+    // Expression classes by name, which only depends on the staged member (and its kind of use), such that woven
+    // classes refer to the same expression classes whenever and wherever they are woven (see WovenClassCache and
+    // Weaver). Locked while making an expression class, such that there is exactly one per name even if several
+    // threads weave at the same time.
+    private final static HashMap<String, CtClass> expressionClasses = new HashMap<>();
+    // Also guarded by expressionClasses
+    private final static LinkedHashSet<CtClass> languages = new LinkedHashSet<>();
+
+    // Expression classes with at most this many arguments keep them in fields instead of an array
+    private static final int MAX_FIELD_ARGUMENT_COUNT = 4;
+
+    // The language classes the expression classes made so far refer to (which have been made public)
+    static ArrayList<CtClass> getLanguages() {
+        synchronized (expressionClasses) {
+            return new ArrayList<>(languages);
+        }
+    }
+
+    static TreeMap<String, byte[]> getExpressionClassFiles() {
+        synchronized (expressionClasses) {
+            TreeMap<String, byte[]> classFiles = new TreeMap<>();
+            for (CtClass clazz : expressionClasses.values()) {
+                classFiles.put(clazz.getName(), getClassFile(clazz));
+            }
+            return classFiles;
+        }
+    }
+
+    // The expression classes a (woven) class refers to
+    static TreeMap<String, byte[]> getExpressionClassFiles(CtClass clazz) {
+        synchronized (expressionClasses) {
+            TreeMap<String, byte[]> classFiles = new TreeMap<>();
+            for (Object o : clazz.getClassFile2().getConstPool().getClassNames()) {
+                CtClass expressionClass = expressionClasses.get(Descriptor.toJavaName((String) o));
+                if (expressionClass != null) {
+                    classFiles.put(expressionClass.getName(), getClassFile(expressionClass));
+                }
+            }
+            return classFiles;
+        }
+    }
+
+    // Expression classes that were made by an earlier run, unless they have been made (or defined) already
+    static void defineExpressionClasses(Map<String, byte[]> classFiles) {
+        synchronized (expressionClasses) {
+            ClassPool cp = ClassPool.getDefault();
+            for (Map.Entry<String, byte[]> entry : classFiles.entrySet()) {
+                if (expressionClasses.containsKey(entry.getKey())) {
+                    continue;
+                }
 
-    private final static IdentityHashMap<CtMember, CtClass> memberToExpressionClass = new IdentityHashMap<>();
+                try {
+                    CtClass clazz = cp.makeClass(new ByteArrayInputStream(entry.getValue()));
+                    clazz.toClass();
+                    expressionClasses.put(clazz.getName(), clazz);
+                } catch (IOException | CannotCompileException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    // Classes defined from class files are not modified, so they cannot be written by toBytecode
+    private static byte[] getClassFile(CtClass clazz) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            clazz.getClassFile2().write(new DataOutputStream(out));
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
     static CtMethod getInvokeMethod(Source.Staged staged) {
         try {
@@ -19,7 +96,37 @@ final class ExpressionClassFactory {
         }
     }
 
-    private static String generateLanguageAcceptCheck(String expression, ImmutableSet<CtClass> acceptedLanguages, HashMap<CtClass, String> acceptedLanguageMap) {
+    // Like the invoke method, but returns the expression itself instead of a local carrier for it
+    static CtMethod getUncarriedInvokeMethod(Source.Staged staged) {
+        if (!hasUncarriedInvokeMethod(staged)) {
+            throw new IllegalArgumentException();
+        }
+
+        try {
+            return makeExpressionClass(staged).getDeclaredMethod("invokeUncarried");
+        } catch (NotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Only results that would otherwise be put in a plain local carrier can do without one
+    static boolean hasUncarriedInvokeMethod(Source.Staged staged) {
+        return !staged.isStrict() && !Util.isCarrier(staged.getType()) && staged.getType().isReference();
+    }
+
+    // Interning (see ExpressionInterner) shares one expression between several results, so it must not drop the effects
+    // of the others
+    private static boolean isInternable(Source.Staged staged) {
+        return !staged.isStrict() && !staged.getType().equals(Type.VOID) && !(staged instanceof Source.Staged.FieldAssignment);
+    }
+
+    // Plain reference arguments are passed in a local carrier or, if the weaver elides the carrier, as an expression
+    static boolean acceptsUncarried(Type argumentType) {
+        return argumentType.isReference() && !Util.couldBeCarrier(argumentType);
+    }
+
+    // Languages are compared by name, no staged expression has the language base class as its language
+    private static String generateLanguageAcceptCheck(String expression, ImmutableSet<CtClass> acceptedLanguages) {
         if (acceptedLanguages.isEmpty()) {
             return "false";
         }
@@ -27,7 +134,7 @@ final class ExpressionClassFactory {
         StringBuilder sb = new StringBuilder();
         int i = 0;
         for (CtClass l : acceptedLanguages) {
-            sb.append(expression).append(".isAcceptedBy(").append(acceptedLanguageMap.get(l)).append(")");
+            sb.append(expression).append(".isAcceptedBy(").append(Constants.quote(l.getName())).append(")");
             if (i < acceptedLanguages.size() - 1) {
                 sb.append(" || ");
             }
@@ -38,6 +145,24 @@ final class ExpressionClassFactory {
         return sb.toString();
     }
 
+    // Overloads are told apart by a digest of their descriptor
+    private static String makeExpressionClassName(String superClassName, CtMember member) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(member.getSignature().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        StringBuilder sb = new StringBuilder(superClassName).append("$Generated$");
+        sb.append(member.getDeclaringClass().getName().replace(".", "_")).append("$").append(member.getName().replace(".", "_")).append("$");
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", digest[i]));
+        }
+
+        return sb.toString();
+    }
+
     private static Class<?> getClosureInterface(Type type) {
         if (!type.isReference()) {
             if (type.equals(Type.VOID)) {
@@ -66,6 +191,16 @@ final class ExpressionClassFactory {
         }
     }
 
+    private static boolean hasQuickFactory(CtClass language, Class<?> closureInterface) {
+        for (CtMethod method : language.getDeclaredMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) && method.getName().equals("makeInterpreted" + closureInterface.getSimpleName())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private static String generateConversionSuffix(Type type) {
         if (type.isReference()) {
             return "";
@@ -74,7 +209,7 @@ final class ExpressionClassFactory {
         return "." + Util.getConversionMethodName(type) + "()";
     }
 
-    private static CtClass makeExpressionClass(Source.Staged staged, String superClassName, String memberClassName) {
+    private static CtClass makeExpressionClass(Source.Staged staged, String name, String superClassName) {
         // Here we make the language class accessible!
         if (!Modifier.isPublic(staged.getLanguage().getModifiers())) {
             staged.getLanguage().setModifiers(Modifier.setPublic(staged.getLanguage().getModifiers()));
@@ -85,46 +220,63 @@ final class ExpressionClassFactory {
             ClassPool cp = ClassPool.getDefault();
 
             CtClass superClass = cp.getCtClass(superClassName);
-            clazz = cp.makeClass(superClass.getName() + "$Generated" + id + "$" + staged.getMember().getDeclaringClass().getName().replace(".", "_") + "$" + staged.getMember().getName().replace(".", "_"), superClass);
-            id++;
-
-            // Make accepted language static fields
-            HashMap<CtClass, String> acceptedLanguageMap = new HashMap<>();
-            for (Use.Argument a : staged.getArguments()) {
-                for (CtClass l : a.getAcceptedLanguages()) {
-                    if (!acceptedLanguageMap.containsKey(l) && !l.equals(Util.LANGUAGE_CLASS)) {
-                        String lName = "acceptedLanguage" + acceptedLanguageMap.size();
-                        int lPersistentId = Dispatcher.addPersistent(l);
-                        CtField lField = CtField.make("private static final " + CtClass.class.getName() + " " + lName + " = ("  + CtClass.class.getName() + ") " + Util.DISPATCHER_CLASS.getName() + ".removePersistent(" + lPersistentId + ");", clazz);
-                        clazz.addField(lField);
-
-                        acceptedLanguageMap.put(l, lName);
-                    }
-                }
-            }
-
-            // Make language field
-            String languageName = "language";
-            int languagePersistentId = Dispatcher.addPersistent(staged.getLanguage());
-            CtField languageField = CtField.make("private static final " + CtClass.class.getName() + " " + languageName + " = (" + CtClass.class.getName() + ") " + Util.DISPATCHER_CLASS.getName() + ".removePersistent(" + languagePersistentId + ");", clazz);
-            clazz.addField(languageField);
+            clazz = cp.makeClass(name, superClass);
 
             // Make member field
             String memberName = "member";
-            int memberPersistentId = Dispatcher.addPersistent(staged.getMember());
-            CtField memberField = CtField.make("private static final " + memberClassName + " " + memberName + " = (" + memberClassName + ")" + Util.DISPATCHER_CLASS.getName() + ".removePersistent(" + memberPersistentId + ");", clazz);
+            CtField memberField = CtField.make("private static final " + MemberDescriptor.class.getName() + " " + memberName + " = " + Constants.makeMemberDescriptorSource(staged.getMember()) + ";", clazz);
             clazz.addField(memberField);
 
+            ImmutableList<Use.Argument> args = staged.getArguments();
+            boolean hasArgumentFields = args.size() <= MAX_FIELD_ARGUMENT_COUNT;
+
             // Make constructor
-            String constructorSource =
-                    "private constructor(" + Util.EXPRESSION_CLASS.getName() + "[] arguments, " + Util.STATIC_INFO_CLASS.getName() + " staticInfo, " + Util.CLOSURE_HOLDER_CLASS.getName() + " closureHolder) {\n"
-                  + "    super(arguments, staticInfo, closureHolder);\n"
-                  + "}";
-            CtConstructor constructor = CtNewConstructor.make(constructorSource, clazz);
-            clazz.addConstructor(constructor);
+            if (hasArgumentFields) {
+                StringBuilder constructorSource = new StringBuilder("private constructor(");
+                for (int i = 0; i < args.size(); i++) {
+                    constructorSource.append(Util.EXPRESSION_CLASS.getName()).append(" argument").append(i).append(", ");
+                }
+                constructorSource.append(Util.STATIC_INFO_CLASS.getName() + " staticInfo, " + Util.CLOSURE_HOLDER_CLASS.getName() + " closureHolder) {\n");
+                constructorSource.append("    super(staticInfo, closureHolder);\n");
+                for (int i = 0; i < args.size(); i++) {
+                    constructorSource.append("    $0.arg").append(i).append(" = argument").append(i).append(";\n");
+                }
+                constructorSource.append("}");
+
+                for (int i = 0; i < args.size(); i++) {
+                    CtField argumentField = CtField.make("private final " + Util.EXPRESSION_CLASS.getName() + " arg" + i + ";", clazz);
+                    clazz.addField(argumentField);
+                }
+                CtConstructor constructor = CtNewConstructor.make(constructorSource.toString(), clazz);
+                clazz.addConstructor(constructor);
+
+                // Make argument retrieval methods
+                String getArgumentCountSource = "public int getArgumentCount() { return " + args.size() + "; }";
+                CtMethod getArgumentCount = CtMethod.make(getArgumentCountSource, clazz);
+                clazz.addMethod(getArgumentCount);
+
+                StringBuilder getArgumentSource = new StringBuilder("public " + Util.EXPRESSION_CLASS.getName() + " getArgument(int index) {\n");
+                if (!args.isEmpty()) {
+                    getArgumentSource.append("    switch (index) {\n");
+                    for (int i = 0; i < args.size(); i++) {
+                        getArgumentSource.append("        case ").append(i).append(": return $0.arg").append(i).append(";\n");
+                    }
+                    getArgumentSource.append("    }\n");
+                }
+                getArgumentSource.append("    throw new IndexOutOfBoundsException(String.valueOf(index));\n");
+                getArgumentSource.append("}");
+                CtMethod getArgument = CtMethod.make(getArgumentSource.toString(), clazz);
+                clazz.addMethod(getArgument);
+            } else {
+                String constructorSource =
+                        "private constructor(" + Util.EXPRESSION_CLASS.getName() + "[] arguments, " + Util.STATIC_INFO_CLASS.getName() + " staticInfo, " + Util.CLOSURE_HOLDER_CLASS.getName() + " closureHolder) {\n"
+                      + "    super(arguments, staticInfo, closureHolder);\n"
+                      + "}";
+                CtConstructor constructor = CtNewConstructor.make(constructorSource, clazz);
+                clazz.addConstructor(constructor);
+            }
 
             // Make factory-like invoke methods
-            ImmutableList<Use.Argument> args = staged.getArguments();
             StringBuilder invokeSource = new StringBuilder();
             if (staged.isStrict() || Util.isCarrier(staged.getType())) {
                 invokeSource.append("public static " + staged.getType().getCtClass().getName() + " invoke(");
@@ -133,6 +285,7 @@ final class ExpressionClassFactory {
             } else {
                 invokeSource.append("public static " + clazz.getName() + " invoke(");
             }
+            int invokeParametersStart = invokeSource.length();
 
             if (staged.getArguments().size() > 253) {
                 invokeSource.append("Object[] objectArguments, ");
@@ -143,6 +296,8 @@ final class ExpressionClassFactory {
                 for (int i = 0; i < args.size(); i++) {
                     if (Util.isGlobalCarrier(args.get(i).getType())) {
                         invokeSource.append("    ").append(Util.GLOBAL_CARRIER_CLASS.getName()).append(" argument").append(i).append(" = (").append(Util.GLOBAL_CARRIER_CLASS.getName()).append(") objectArguments[").append(i).append("];\n");
+                    } else if (acceptsUncarried(args.get(i).getType())) {
+                        invokeSource.append("    ").append(Type.OBJECT.getCtClass().getName()).append(" argument").append(i).append(" = objectArguments[").append(i).append("];\n");
                     } else if (Util.isLocalCarrier(args.get(i).getType()) || (args.get(i).getType().isReference() && !Util.couldBeGlobalCarrier(args.get(i).getType()))) {
                         invokeSource.append("    ").append(Util.LOCAL_CARRIER_CLASS.getName()).append(" argument").append(i).append(" = (").append(Util.LOCAL_CARRIER_CLASS.getName()).append(") objectArguments[").append(i).append("];\n");
                     } else if (args.get(i).getType().isReference()) {
@@ -156,6 +311,8 @@ final class ExpressionClassFactory {
                 for (int i = 0; i < args.size(); i++) {
                     if (Util.isGlobalCarrier(args.get(i).getType())) {
                         invokeSource.append(Util.GLOBAL_CARRIER_CLASS.getName()).append(" argument").append(i);
+                    } else if (acceptsUncarried(args.get(i).getType())) {
+                        invokeSource.append(Type.OBJECT.getCtClass().getName()).append(" argument").append(i);
                     } else if (Util.isLocalCarrier(args.get(i).getType()) || (args.get(i).getType().isReference() && !Util.couldBeGlobalCarrier(args.get(i).getType()))) {
                         invokeSource.append(Util.LOCAL_CARRIER_CLASS.getName()).append(" argument").append(i);
                     } else if (args.get(i).getType().isReference()) {
@@ -172,25 +329,40 @@ final class ExpressionClassFactory {
                 invokeSource.append(Util.CLOSURE_HOLDER_CLASS.getName() + " closureHolder) {\n");
             }
 
-            invokeSource.append(
-                      "    " + Util.EXPRESSION_CLASS.getName() + " payload;\n"
-                    + "    " + Util.EXPRESSION_CLASS.getName() + "[] arguments = new " + Util.EXPRESSION_CLASS.getName() + "[" + args.size() + "];\n"
-            );
+            invokeSource.append("    " + Util.EXPRESSION_CLASS.getName() + " payload;\n");
+            if (hasArgumentFields) {
+                for (int i = 0; i < args.size(); i++) {
+                    invokeSource.append("    " + Util.EXPRESSION_CLASS.getName() + " expression" + i + ";\n");
+                }
+            } else {
+                invokeSource.append("    " + Util.EXPRESSION_CLASS.getName() + "[] arguments = new " + Util.EXPRESSION_CLASS.getName() + "[" + args.size() + "];\n");
+            }
             for (int i = 0; i < args.size(); i++) {
+                String target = hasArgumentFields ? "expression" + i : "arguments[" + i + "]";
                 if (Util.isGlobalCarrier(args.get(i).getType())) {
                     invokeSource.append(
                               "    payload = " + Util.DISPATCHER_CLASS.getName() + ".unloadGlobalCarrierChecked(argument" + i + ");\n"
-                            + "    if (!(" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages(), acceptedLanguageMap) + ")) {\n"
-                            + "        arguments[" + i + "] = " + Util.DISPATCHER_CLASS.getName() + ".selfLiftGlobalCarrier(argument" + i + ");\n"
+                            + "    if (!(" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages()) + ")) {\n"
+                            + "        " + target + " = " + Util.DISPATCHER_CLASS.getName() + ".selfLiftGlobalCarrier(argument" + i + ");\n"
                             + "    } else {\n"
-                            + "        arguments[" + i + "] = payload;\n"
+                            + "        " + target + " = payload;\n"
                             + "    }\n"
                     );
                 } else if (Util.isLocalCarrier(args.get(i).getType()) || (args.get(i).getType().isReference() && !Util.couldBeGlobalCarrier(args.get(i).getType()))) {
+                    if (acceptsUncarried(args.get(i).getType())) {
+                        invokeSource.append(
+                                  "    if (argument" + i + " instanceof " + Util.EXPRESSION_CLASS.getName() + ") {\n"
+                                + "        payload = (" + Util.EXPRESSION_CLASS.getName() + ") argument" + i + ";\n"
+                                + "    } else {\n"
+                                + "        payload = " + Util.DISPATCHER_CLASS.getName() + ".unloadLocalCarrierChecked((" + Util.LOCAL_CARRIER_CLASS.getName() + ") argument" + i + ");\n"
+                                + "    }\n"
+                        );
+                    } else {
+                        invokeSource.append("    payload = " + Util.DISPATCHER_CLASS.getName() + ".unloadLocalCarrierChecked(argument" + i + ");\n");
+                    }
                     invokeSource.append(
-                              "    payload = " + Util.DISPATCHER_CLASS.getName() + ".unloadLocalCarrierChecked(argument" + i + ");\n"
-                            + "    if (" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages(), acceptedLanguageMap) + ") {\n"
-                            + "        arguments[" + i + "] = payload.getRaw();\n"
+                              "    if (" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages()) + ") {\n"
+                            + "        " + target + " = payload.getRaw();\n"
                             + "    } else {\n"
                             + "        payload.evaluate();\n"
 
@@ -200,13 +372,13 @@ final class ExpressionClassFactory {
                             + "        Object obj = value.materializeAsObject(); \n"
                             + "        if (obj instanceof " + Util.GLOBAL_CARRIER_CLASS.getName() + ") {\n"
                             + "            payload = " + Util.DISPATCHER_CLASS.getName() + ".unloadGlobalCarrier((" + Util.GLOBAL_CARRIER_CLASS.getName() + ") obj);\n"
-                            + "            if (payload == null || !(" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages(), acceptedLanguageMap) + ")) {\n"
-                            + "                arguments[" + i + "] = value;\n"
+                            + "            if (payload == null || !(" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages()) + ")) {\n"
+                            + "                " + target + " = value;\n"
                             + "            } else {\n"
-                            + "                arguments[" + i + "] = payload;\n"
+                            + "                " + target + " = payload;\n"
                             + "            }\n"
                             + "        } else {\n"
-                            + "            arguments[" + i + "] = value;\n"
+                            + "            " + target + " = value;\n"
                             + "        }\n"
 
                             + "    }\n"
@@ -215,8 +387,8 @@ final class ExpressionClassFactory {
                     invokeSource.append(
                               "    if (argument" + i + " instanceof " + Util.LOCAL_CARRIER_CLASS.getName() + ") {\n"
                             + "        payload = " + Util.DISPATCHER_CLASS.getName() + ".unloadLocalCarrierChecked((" + Util.LOCAL_CARRIER_CLASS.getName() + ") argument" + i + ");\n"
-                            + "        if (" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages(), acceptedLanguageMap) + ") {\n"
-                            + "            arguments[" + i + "] = payload.getRaw();\n"
+                            + "        if (" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages()) + ") {\n"
+                            + "            " + target + " = payload.getRaw();\n"
                             + "        } else {\n"
                             + "            payload.evaluate();\n"
 
@@ -226,45 +398,56 @@ final class ExpressionClassFactory {
                             + "            Object obj = value.materializeAsObject(); \n"
                             + "            if (obj instanceof " + Util.GLOBAL_CARRIER_CLASS.getName() + ") {\n"
                             + "                payload = " + Util.DISPATCHER_CLASS.getName() + ".unloadGlobalCarrier((" + Util.GLOBAL_CARRIER_CLASS.getName() + ") obj);\n"
-                            + "                if (payload == null || !(" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages(), acceptedLanguageMap) + ")) {\n"
-                            + "                    arguments[" + i + "] = value;\n"
+                            + "                if (payload == null || !(" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages()) + ")) {\n"
+                            + "                    " + target + " = value;\n"
                             + "                } else {\n"
-                            + "                    arguments[" + i + "] = payload;\n"
+                            + "                    " + target + " = payload;\n"
                             + "                }\n"
                             + "            } else {\n"
-                            + "                arguments[" + i + "] = value;\n"
+                            + "                " + target + " = value;\n"
                             + "            }\n"
 
                             + "        }\n"
                             + "    } else if (argument" + i + " instanceof " + Util.GLOBAL_CARRIER_CLASS.getName() + ") {\n"
                             + "        payload = " + Util.DISPATCHER_CLASS.getName() + ".unloadGlobalCarrierChecked((" + Util.GLOBAL_CARRIER_CLASS.getName() + ") argument" + i + ");\n"
-                            + "        if (!(" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages(), acceptedLanguageMap) + ")) {\n"
-                            + "            arguments[" + i + "] = " + Util.DISPATCHER_CLASS.getName() + ".selfLiftGlobalCarrier((" + Util.GLOBAL_CARRIER_CLASS.getName() + ") argument" + i + ");\n"
+                            + "        if (!(" + generateLanguageAcceptCheck("payload", args.get(i).getAcceptedLanguages()) + ")) {\n"
+                            + "            " + target + " = " + Util.DISPATCHER_CLASS.getName() + ".selfLiftGlobalCarrier((" + Util.GLOBAL_CARRIER_CLASS.getName() + ") argument" + i + ");\n"
                             + "        } else {\n"
-                            + "            arguments[" + i + "] = payload;\n"
+                            + "            " + target + " = payload;\n"
                             + "        }\n"
                             + "    } else {\n"
-                            + "        arguments[" + i + "] = " + Util.DISPATCHER_CLASS.getName() + "." + Util.getLiftMethodName(Type.OBJECT) + "(argument" + i + ");\n"
+                            + "        " + target + " = " + Util.DISPATCHER_CLASS.getName() + "." + Util.getLiftMethodName(Type.OBJECT) + "(argument" + i + ");\n"
                             + "    }\n"
                     );
                 } else {
                     invokeSource.append(
-                            "    if (" + generateLanguageAcceptCheck("argument" + i, args.get(i).getAcceptedLanguages(), acceptedLanguageMap) + ") {\n"
-                            + "        arguments[" + i + "] = argument" + i + generateConversionSuffix(args.get(i).getType()) + ".getRaw();\n"
+                            "    if (" + generateLanguageAcceptCheck("argument" + i, args.get(i).getAcceptedLanguages()) + ") {\n"
+                            + "        " + target + " = argument" + i + generateConversionSuffix(args.get(i).getType()) + ".getRaw();\n"
                             + "    } else {\n"
                             + "        argument" + i + ".evaluate();\n"
-                            + "        arguments[" + i + "] = argument" + i + ".asValueIfEvaluated();\n"
+                            + "        " + target + " = argument" + i + ".asValueIfEvaluated();\n"
                             + "    }\n"
                     );
                 }
             }
 
-            String construction;
+            String construction = "new " + clazz.getName() + "(";
+            if (hasArgumentFields) {
+                for (int i = 0; i < args.size(); i++) {
+                    construction += "expression" + i + ", ";
+                }
+            } else {
+                construction += "arguments, ";
+            }
             if (!staged.getStaticInfoElements().isEmpty()) {
-                construction = "new " + clazz.getName() + "(arguments, staticInfo, closureHolder)";
+                construction += "staticInfo, closureHolder)";
             } else {
-                construction = "new " + clazz.getName() + "(arguments, null, closureHolder)";
+                construction += "null, closureHolder)";
+            }
+            if (isInternable(staged)) {
+                construction = "((" + clazz.getName() + ") " + Util.DISPATCHER_CLASS.getName() + ".intern(" + construction + "))";
             }
+            String invokeParametersAndBody = invokeSource.substring(invokeParametersStart);
             if (staged.isStrict()) {
                 Type type = staged.getType();
                 if (type.isReference()) {
@@ -313,11 +496,20 @@ final class ExpressionClassFactory {
             CtMethod invoke = CtMethod.make(invokeSource.toString(), clazz);
             clazz.addMethod(invoke);
 
+            if (hasUncarriedInvokeMethod(staged)) {
+                String invokeUncarriedSource =
+                          "public static " + clazz.getName() + " invokeUncarried(" + invokeParametersAndBody
+                        + "    return " + construction + ";\n"
+                        + "}";
+                CtMethod invokeUncarried = CtMethod.make(invokeUncarriedSource, clazz);
+                clazz.addMethod(invokeUncarried);
+            }
+
             // Make isomorphic hash code method
             String isomorphicHashCodeSource =
                     "int isomorphicHashCode() {\n"
                   + "    if (!$0.isomorphicHashCodeHasBeenCalculated) {\n"
-                  + "        super.isomorphicHashCode(" + staged.getMember().hashCode() + ");\n"
+                  + "        super.isomorphicHashCode(" + name.hashCode() + ");\n"
                   + "    }"
                   + "    return $0.isomorphicHashCode;"
                   + "}";
@@ -334,6 +526,15 @@ final class ExpressionClassFactory {
             clazz.addMethod(isIsomorphicTo);
 
             // Make cache clone (with empty leaves to save memory) creation method
+            String clonedArgumentsSource;
+            if (hasArgumentFields) {
+                clonedArgumentsSource = "";
+                for (int i = 0; i < args.size(); i++) {
+                    clonedArgumentsSource += "clonedArguments[" + i + "], ";
+                }
+            } else {
+                clonedArgumentsSource = "clonedArguments, ";
+            }
             String cacheCloneSource =
                     Util.EXPRESSION_CLASS.getName() + " cacheClone(java.util.IdentityHashMap identityMap) {\n"
                     + "    " + Util.EXPRESSION_CLASS.getName() + " e = (" + Util.EXPRESSION_CLASS.getName() + ") identityMap.get(this);\n"
@@ -342,7 +543,7 @@ final class ExpressionClassFactory {
                     + "    } else {\n"
                     + "        " + Util.EXPRESSION_CLASS.getName() + "[] clonedArguments = super.cacheCloneArguments(identityMap);\n"
                     + "        if (clonedArguments != null) {\n"
-                    + "            " + clazz.getName() + " s = new " + clazz.getName() + "(clonedArguments, $0.staticInfo, null);\n"
+                    + "            " + clazz.getName() + " s = new " + clazz.getName() + "(" + clonedArgumentsSource + "$0.staticInfo, null);\n"
                     + "            s.isomorphicHashCode = $0.isomorphicHashCode();\n"
                     + "            s.isomorphicHashCodeHasBeenCalculated = true;\n"
                     + "            identityMap.put(this, s);\n"
@@ -357,12 +558,12 @@ final class ExpressionClassFactory {
             clazz.addMethod(cacheClone);
 
             // Make language acceptance check method
-            String isAcceptedBySource = "boolean isAcceptedBy(" + CtClass.class.getName() + " language) { return $0.language.equals(language); }";
+            String isAcceptedBySource = "boolean isAcceptedBy(String languageName) { return " + Constants.quote(staged.getLanguage().getName()) + ".equals(languageName); }";
             CtMethod isAcceptedBy = CtMethod.make(isAcceptedBySource, clazz);
             clazz.addMethod(isAcceptedBy);
 
             // Make polymorphic member retrieval method
-            String getMemberSource = "public " + memberClassName + " getMember() { return $0." + memberName + "; }";
+            String getMemberSource = "public " + MemberDescriptor.class.getName() + " getMember() { return $0." + memberName + "; }";
             CtMethod getMember = CtMethod.make(getMemberSource, clazz);
             clazz.addMethod(getMember);
 
@@ -372,54 +573,48 @@ final class ExpressionClassFactory {
             if (Util.isGlobalCarrier(staged.getType()) && !staged.isStrict()) {
                 evaluateSource = "public void evaluate() { throw new UnsupportedOperationException(); }";
             } else {
+                // Fast path: a single volatile read once a closure holder has been resolved, everything else
+                // (caching, compilation, tiering) is up to the resolver
                 evaluateSource =
                           "public void evaluate() {\n"
                         + "    if ($0.value != null) { return; }\n"
-                        + "    " + closureInterface.getName() + " closure;\n"
-                        + "    " + Util.ENVIRONMENT_CLASS.getName() + " environment;\n"
-                        + "    if ($0.closureHolder == null) {\n"
-                        + "        " + Util.CLOSURE_HOLDER_CLASS.getName() + " cachedClosureHolder = " + GlobalCache.class.getName() + ".getCachedClosureHolder($0);\n"
-                        + "        if (cachedClosureHolder == null) {\n"
-                        + "            " + Util.BINDER_CLASS.getName() + " binder = new " + Util.BINDER_CLASS.getName() + "($0);\n"
-                        + "            closure = " + staged.getLanguage().getName() + ".make" + closureInterface.getSimpleName() + "($0, binder, false);\n"
-                        + "            environment = new " + Util.ENVIRONMENT_CLASS.getName() + "($0, binder.getBoundCount());\n"
-                        + "            if (!binder.inspectionOccurred()) {\n"
-                        + "                " + GlobalCache.class.getName() + ".cache($0, closure, binder.getBoundCount());\n"
-                        + "            }\n"
-                        + "        } else {\n"
-                        + "            closure = (" + closureInterface.getName() + ") cachedClosureHolder.getClosure();\n"
-                        + "            environment = new " + Util.ENVIRONMENT_CLASS.getName() + "($0, cachedClosureHolder.getEnvironmentSize());\n"
-                        + "        }\n"
-                        + "    } else {\n"
-                        + "        synchronized ($0.closureHolder) {"
-                        + "            closure = (" + closureInterface.getName() + ") $0.closureHolder.getClosure();\n"
-                        + "            if (closure == null) {\n"
-                        + "                " + Util.CLOSURE_HOLDER_CLASS.getName() + " cachedClosureHolder = " + GlobalCache.class.getName() + ".getCachedClosureHolder($0);\n"
-                        + "                if (cachedClosureHolder == null) {\n"
-                        + "                    " + Util.BINDER_CLASS.getName() + " binder = new " + Util.BINDER_CLASS.getName() + "($0);\n"
-                        + "                    closure = " + staged.getLanguage().getName() + ".make" + closureInterface.getSimpleName() + "($0, binder, $0.closureHolder.isPermanent());\n"
-                        + "                    environment = new " + Util.ENVIRONMENT_CLASS.getName() + "($0, binder.getBoundCount());\n"
-                        + "                    if (!binder.inspectionOccurred()) {\n"
-                        + "                        $0.closureHolder.set(closure, binder.getBoundCount());\n"
-                        + "                        " + GlobalCache.class.getName() + ".cache($0, closure, binder.getBoundCount());\n"
-                        + "                    }\n"
-                        + "                } else {\n"
-                        + "                    closure = (" + closureInterface.getName() + ") cachedClosureHolder.getClosure();\n"
-                        + "                    environment = new " + Util.ENVIRONMENT_CLASS.getName() + "($0, cachedClosureHolder.getEnvironmentSize());\n"
-                        + "                    $0.closureHolder.set(closure, cachedClosureHolder.getEnvironmentSize());\n"
-                        + "                }\n"
-                        + "            } else {\n"
-                        + "                environment = new " + Util.ENVIRONMENT_CLASS.getName() + "($0, $0.closureHolder.getEnvironmentSize());\n"
-                        + "           }\n"
-                        + "        }\n"
+                        + "    " + Util.CLOSURE_HOLDER_CLASS.getName() + "$Entry entry = null;\n"
+                        + "    if ($0.closureHolder != null) {\n"
+                        + "        entry = $0.closureHolder.getEntry();\n"
+                        + "    }\n"
+                        + "    if (entry == null || entry.isDue()) {\n"
+                        + "        entry = " + ClosureResolver.class.getName() + ".resolve($0, $0.closureHolder);\n"
                         + "    }\n"
+                        + "    " + closureInterface.getName() + " closure = (" + closureInterface.getName() + ") entry.closure;\n"
+                        + "    " + Util.ENVIRONMENT_CLASS.getName() + " environment = " + Util.ENVIRONMENT_CLASS.getName() + ".acquire($0, entry.environmentLayout);\n"
+                        + "    try {\n"
                         + (
                         staged.getType().equals(Type.VOID) ?
-                          "    closure.evaluate(environment);\n"
+                          "        closure.evaluate(environment);\n"
                         :
-                          "    $0.value = " + Util.DISPATCHER_CLASS.getName() + "." + Util.getLiftMethodName(staged.getType()) + "(closure.evaluate(environment));\n"
+                          "        $0.setValue(" + Util.DISPATCHER_CLASS.getName() + "." + Util.getLiftMethodName(staged.getType()) + "(closure.evaluate(environment)));\n"
                         )
+                        + "    } finally {\n"
+                        + "        environment.release();\n"
+                        + "    }\n"
                         + "}";
+
+                // Make compilation methods
+                String compileClosureSource =
+                          Closure.class.getName() + " compileClosure(" + Util.BINDER_CLASS.getName() + " binder, boolean isPermanent) {\n"
+                        + "    return " + staged.getLanguage().getName() + ".make" + closureInterface.getSimpleName() + "($0, binder, isPermanent);\n"
+                        + "}";
+                CtMethod compileClosure = CtMethod.make(compileClosureSource, clazz);
+                clazz.addMethod(compileClosure);
+
+                if (hasQuickFactory(staged.getLanguage(), closureInterface)) {
+                    String compileQuickClosureSource =
+                              Closure.class.getName() + " compileQuickClosure(" + Util.BINDER_CLASS.getName() + " binder, boolean isPermanent) {\n"
+                            + "    return " + staged.getLanguage().getName() + ".makeInterpreted" + closureInterface.getSimpleName() + "($0, binder, isPermanent);\n"
+                            + "}";
+                    CtMethod compileQuickClosure = CtMethod.make(compileQuickClosureSource, clazz);
+                    clazz.addMethod(compileQuickClosure);
+                }
             }
             CtMethod evaluate = CtMethod.make(evaluateSource, clazz);
             clazz.addMethod(evaluate);
@@ -433,23 +628,28 @@ final class ExpressionClassFactory {
     }
 
     private static CtClass makeExpressionClass(Source.Staged staged) {
-        CtMember key = staged.getMember();
-
-        CtClass clazz = memberToExpressionClass.get(key);
-        if (clazz == null) {
-            if (staged instanceof Source.Staged.FieldRead) {
-                clazz = makeExpressionClass(staged, Expression.FieldRead.class.getName(), CtField.class.getName());
-            } else if (staged instanceof Source.Staged.FieldAssignment) {
-                clazz = makeExpressionClass(staged, Expression.FieldAssignment.class.getName(), CtField.class.getName());
-            } else if (staged instanceof Source.Staged.MethodInvocation) {
-                clazz = makeExpressionClass(staged, Expression.MethodInvocation.class.getName(), CtMethod.class.getName());
-            } else {
-                // This should never happen!
-                throw new RuntimeException();
-            }
-            memberToExpressionClass.put(key, clazz);
+        String superClassName;
+        if (staged instanceof Source.Staged.FieldRead) {
+            superClassName = Expression.FieldRead.class.getName();
+        } else if (staged instanceof Source.Staged.FieldAssignment) {
+            superClassName = Expression.FieldAssignment.class.getName();
+        } else if (staged instanceof Source.Staged.MethodInvocation) {
+            superClassName = Expression.MethodInvocation.class.getName();
+        } else {
+            // This should never happen!
+            throw new RuntimeException();
         }
+        String name = makeExpressionClassName(superClassName, staged.getMember());
+
+        synchronized (expressionClasses) {
+            CtClass clazz = expressionClasses.get(name);
+            if (clazz == null) {
+                clazz = makeExpressionClass(staged, name, superClassName);
+                expressionClasses.put(name, clazz);
+                languages.add(staged.getLanguage());
+            }
 
-        return clazz;
+            return clazz;
+        }
     }
 }
@@ -0,0 +1,93 @@
+package tamestaj;
+
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+
+// Hash-consing of staged expressions (see the internExpressions option): a staged expression that is made at the same
+// call site over the same arguments as one that is still alive is replaced by the latter. Only expressions over constants
+// and interned expressions are interned, such that interning bottom-up collapses repeated fragments over constants into
+// one DAG node, while fragments over any other value (which might be mutated in between) are left alone. That node keeps
+// its isomorphic hash code and, once evaluated, its value, so rebuilding a fragment neither hashes nor evaluates it
+// again. As the node is shared between threads, its value is published safely (see Expression.Staged.setValue). This
+// assumes that staged members are free of side effects and that the identity of their results does not matter, which is
+// why only expressions of non-strict, non-void staged field reads and method invocations are interned (see
+// ExpressionClassFactory). Expressions are only weakly referenced here.
+
+final class ExpressionInterner {
+    private static final class Key {
+        private final Class<?> clazz;
+        private final StaticInfo staticInfo;
+        private final ClosureHolder<?> closureHolder;
+        private final Expression[] arguments;
+        private final int hashCode;
+
+        private Key(Expression.Staged staged) {
+            clazz = staged.getClass();
+            staticInfo = staged.staticInfo;
+            closureHolder = staged.closureHolder;
+            arguments = new Expression[staged.getArgumentCount()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = staged.getArgument(i);
+            }
+
+            // Constants hash by value, interned expressions by identity
+            int h = clazz.hashCode();
+            h = 31 * h + System.identityHashCode(closureHolder);
+            h = 31 * h + Arrays.hashCode(arguments);
+            hashCode = h;
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(Object obj) {
+            if (this == obj) { return true; }
+            if (!(obj instanceof Key)) { return false; }
+
+            Key key = (Key) obj;
+            if (hashCode != key.hashCode || clazz != key.clazz || closureHolder != key.closureHolder) {
+                return false;
+            }
+            if (staticInfo == null ? key.staticInfo != null : !staticInfo.equals(key.staticInfo)) {
+                return false;
+            }
+
+            return Arrays.equals(arguments, key.arguments);
+        }
+    }
+
+    private static final boolean isEnabled = Options.getBoolean("internExpressions", false);
+
+    private static final ConcurrentMap<Key, Expression.Staged> expressions = isEnabled ?
+            CacheBuilder.newBuilder().weakValues().<Key, Expression.Staged>build().asMap() : null;
+
+    private ExpressionInterner() { }
+
+    static Expression.Staged intern(Expression.Staged staged) {
+        if (!isEnabled) {
+            return staged;
+        }
+
+        for (int i = 0; i < staged.getArgumentCount(); i++) {
+            if (!isInternedOrConstant(staged.getArgument(i))) {
+                return staged;
+            }
+        }
+
+        Expression.Staged interned = expressions.putIfAbsent(new Key(staged), staged);
+        return interned == null ? staged : interned;
+    }
+
+    private static boolean isInternedOrConstant(Expression argument) {
+        if (argument instanceof Expression.Value) {
+            return ((Expression.Value<?>) argument).isConstant();
+        } else if (argument instanceof Expression.Staged) {
+            return expressions.get(new Key((Expression.Staged) argument)) == argument;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,200 @@
+package tamestaj;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+
+// A canonical, precomputed encoding of the structure of an expression DAG (in pre-order). It is built once for an
+// expression that is kept (i.e. a cache key) and allows checking other expressions against it linearly, without any
+// heap allocation in the steady state. The check has the same semantics as Expression.isIsomorphicTo with this
+// fingerprint's expression as receiver, i.e. nodes of the fingerprinted expression must map to nodes of the other
+// expression functionally (but not necessarily injectively).
+
+final class Fingerprint {
+    private static final int NEW_STAGED = -1;
+    private static final int NEW_VALUE = -2;
+    private static final int CONSTANT = -3;
+    // Non-negative codes refer back to the node that has been assigned the respective index on its first visit
+
+    private static final class Scratch {
+        private Expression[] nodes = new Expression[16];
+        private Expression.Staged[] stagedStack = new Expression.Staged[16];
+        private int[] argumentIndexStack = new int[16];
+
+        private int nodeCount;
+        private int stackSize;
+
+        void addNode(Expression expression) {
+            if (nodeCount == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodeCount * 2);
+            }
+            nodes[nodeCount] = expression;
+            nodeCount++;
+        }
+
+        void push(Expression.Staged staged) {
+            if (stackSize == stagedStack.length) {
+                stagedStack = Arrays.copyOf(stagedStack, stackSize * 2);
+                argumentIndexStack = Arrays.copyOf(argumentIndexStack, stackSize * 2);
+            }
+            stagedStack[stackSize] = staged;
+            argumentIndexStack[stackSize] = 0;
+            stackSize++;
+        }
+
+        void clear() {
+            // Do not keep the checked expressions reachable
+            Arrays.fill(nodes, 0, nodeCount, null);
+            Arrays.fill(stagedStack, 0, stackSize, null);
+            nodeCount = 0;
+            stackSize = 0;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final int[] codes;
+    // The fingerprinted expression's node at each code, for comparing generated classes, static infos and constants
+    private final Expression[] operands;
+
+    private Fingerprint(int[] codes, Expression[] operands) {
+        this.codes = codes;
+        this.operands = operands;
+    }
+
+    private static Expression unwrap(Expression expression) {
+        while (expression instanceof Expression.Conversion) {
+            expression = ((Expression.Conversion) expression).convertee;
+        }
+
+        return expression;
+    }
+
+    static Fingerprint of(Expression.Staged staged) {
+        ArrayList<Integer> codes = new ArrayList<>();
+        ArrayList<Expression> operands = new ArrayList<>();
+        IdentityHashMap<Expression, Integer> indices = new IdentityHashMap<>();
+
+        // Pre-order traversal with explicit stacks, mirrored by matches(...)
+        ArrayDeque<Expression.Staged> stagedStack = new ArrayDeque<>();
+        ArrayDeque<Integer> argumentIndexStack = new ArrayDeque<>();
+
+        indices.put(staged, 0);
+        codes.add(NEW_STAGED);
+        operands.add(staged);
+        stagedStack.push(staged);
+        argumentIndexStack.push(0);
+
+        while (!stagedStack.isEmpty()) {
+            Expression.Staged s = stagedStack.peek();
+            int i = argumentIndexStack.pop();
+            if (i == s.getArgumentCount()) {
+                stagedStack.pop();
+                continue;
+            }
+            argumentIndexStack.push(i + 1);
+
+            Expression argument = unwrap(s.getArgument(i));
+            Integer index = indices.get(argument);
+            if (index != null) {
+                codes.add(index);
+                operands.add(argument);
+            } else if (argument instanceof Expression.Staged) {
+                indices.put(argument, indices.size());
+                codes.add(NEW_STAGED);
+                operands.add(argument);
+                stagedStack.push((Expression.Staged) argument);
+                argumentIndexStack.push(0);
+            } else if (((Expression.Value<?>) argument).isConstant()) {
+                codes.add(CONSTANT);
+                operands.add(argument);
+            } else {
+                indices.put(argument, indices.size());
+                codes.add(NEW_VALUE);
+                operands.add(argument);
+            }
+        }
+
+        int[] c = new int[codes.size()];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = codes.get(i);
+        }
+
+        return new Fingerprint(c, operands.toArray(new Expression[operands.size()]));
+    }
+
+    private static boolean matchesStaged(Expression.Staged operand, Expression expression) {
+        if (operand.getClass() != expression.getClass()) { return false; }
+
+        Expression.Staged staged = (Expression.Staged) expression;
+        return operand.getArgumentCount() == staged.getArgumentCount() && Objects.equals(operand.staticInfo, staged.staticInfo);
+    }
+
+    boolean matches(Expression.Staged staged) {
+        Scratch s = scratch.get();
+        try {
+            return matches(staged, s);
+        } finally {
+            s.clear();
+        }
+    }
+
+    private boolean matches(Expression.Staged staged, Scratch s) {
+        if (!matchesStaged((Expression.Staged) operands[0], staged)) { return false; }
+
+        s.addNode(staged);
+        s.push(staged);
+
+        int position = 1;
+        while (s.stackSize > 0) {
+            int top = s.stackSize - 1;
+            Expression.Staged current = s.stagedStack[top];
+            int i = s.argumentIndexStack[top];
+            if (i == current.getArgumentCount()) {
+                s.stagedStack[top] = null;
+                s.stackSize--;
+                continue;
+            }
+            s.argumentIndexStack[top] = i + 1;
+
+            if (position == codes.length) { return false; }
+
+            Expression argument = unwrap(current.getArgument(i));
+            int code = codes[position];
+            Expression operand = operands[position];
+            position++;
+
+            switch (code) {
+                case NEW_STAGED: {
+                    if (!matchesStaged((Expression.Staged) operand, argument)) { return false; }
+                    s.addNode(argument);
+                    s.push((Expression.Staged) argument);
+                    break;
+                }
+                case NEW_VALUE: {
+                    // The operand is not a constant, so its class is the value kind, e.g. ObjectValue, which a
+                    // constant of that kind (a subclass) must not match
+                    if (operand.getClass() != argument.getClass()) { return false; }
+                    s.addNode(argument);
+                    break;
+                }
+                case CONSTANT: {
+                    if (!operand.equals(argument)) { return false; }
+                    break;
+                }
+                default: {
+                    if (s.nodes[code] != argument) { return false; }
+                    break;
+                }
+            }
+        }
+
+        return position == codes.length;
+    }
+
+    int size() {
+        return codes.length;
+    }
+}
@@ -1,43 +1,265 @@
 package tamestaj;
 
-import com.google.common.cache.CacheBuilder;
-
+import javax.management.*;
+import java.lang.management.ManagementFactory;
 import java.util.IdentityHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 final class GlobalCache {
-    private final static class ExpressionKey {
+    final static class ExpressionKey {
         private final Expression.Staged staged;
+        // Only present for keys that are actually cached, probing keys are checked against it
+        private final Fingerprint fingerprint;
 
         private ExpressionKey(Expression.Staged staged) {
+            this(staged, null);
+        }
+
+        private ExpressionKey(Expression.Staged staged, Fingerprint fingerprint) {
             this.staged = staged;
+            this.fingerprint = fingerprint;
+        }
+
+        static ExpressionKey probe(Expression.Staged staged) {
+            return new ExpressionKey(staged);
+        }
+
+        // The expression must be a cache clone, i.e. not reachable from client code
+        static ExpressionKey of(Expression.Staged clone) {
+            return new ExpressionKey(clone, Fingerprint.of(clone));
         }
 
         public int hashCode() { return staged.isomorphicHashCode(); }
 
         public boolean equals(Object obj) {
+            ExpressionKey key = (ExpressionKey) obj;
+
+            if (key.fingerprint != null) {
+                return key.fingerprint.matches(staged);
+            } else if (fingerprint != null) {
+                return fingerprint.matches(key.staged);
+            }
+
             // return expression.isIsomorphicTo(new IdentityHashMap<>(), ((CachedExpression) obj).expression);
 
             // For whatever reason (???) changing the order here speeds up a lot!
-            return ((ExpressionKey) obj).staged.isIsomorphicTo(new IdentityHashMap<>(), staged);
+            return key.staged.isIsomorphicTo(new IdentityHashMap<>(), staged);
         }
     }
 
-    // final static ConcurrentMap<CachedExpression, Object> closureHolderCache = new ConcurrentHashMap<>();
-    // TODO: We should maybe opt for class-local / method-local / thread-local caches
-    private static final ConcurrentMap<ExpressionKey, ClosureHolder<?>> map = CacheBuilder.newBuilder()
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .maximumSize(100)
-            .<ExpressionKey, ClosureHolder<?>>build().asMap();
+    private static final class Statistics implements GlobalCacheMXBean {
+        private final LongAdder hitCount = new LongAdder();
+        private final LongAdder missCount = new LongAdder();
+        private final LongAdder evictionCount = new LongAdder();
+        private final LongAdder compilationCount = new LongAdder();
+        private final LongAdder compilationTimeNanos = new LongAdder();
+
+        public int getShardCount() { return shards.length; }
+        public long getMaximumWeight() { return maximumWeight; }
+        public long getExpireAfterAccessSeconds() { return expireAfterAccessSeconds; }
+
+        public long getSize() {
+            long size = 0;
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    size += shard.entries.size();
+                }
+            }
+            return size;
+        }
+        public long getWeight() { return totalWeight.get(); }
+
+        public long getHitCount() { return hitCount.sum(); }
+        public long getMissCount() { return missCount.sum(); }
+        public long getEvictionCount() { return evictionCount.sum(); }
+
+        public long getCompilationCount() { return compilationCount.sum(); }
+        public long getCompilationTimeNanos() { return compilationTimeNanos.sum(); }
 
-    static ClosureHolder getCachedClosureHolder(Expression.Staged expression) {
-        return map.get(new ExpressionKey(expression));
+        public void invalidateAll() {
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    for (ExpressionKey key : shard.entries.keySet()) {
+                        totalWeight.addAndGet(-key.fingerprint.size());
+                    }
+                    shard.entries.clear();
+                }
+            }
+        }
     }
 
-    static <T extends Closure<?>> void cache(Expression.Staged staged, T closure, int environmentSize) {
+    private static final class CachedClosureHolder {
+        private final ClosureHolder<?> closureHolder;
+        private long accessNanos;
+
+        private CachedClosureHolder(ClosureHolder<?> closureHolder, long accessNanos) {
+            this.closureHolder = closureHolder;
+            this.accessNanos = accessNanos;
+        }
+    }
+
+    // Guarded by itself, a shard only ever locks itself, so that no two shards are locked at once
+    private static final class Shard {
+        // In access order, so the eldest entry is the least recently used one
+        private final LinkedHashMap<ExpressionKey, CachedClosureHolder> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private synchronized ClosureHolder<?> get(ExpressionKey key, long nanos) {
+            CachedClosureHolder cachedClosureHolder = entries.get(key);
+            if (cachedClosureHolder == null) {
+                return null;
+            }
+            if (isExpired(cachedClosureHolder, nanos)) {
+                evict(key);
+                return null;
+            }
+
+            cachedClosureHolder.accessNanos = nanos;
+            return cachedClosureHolder.closureHolder;
+        }
+
+        private synchronized void put(ExpressionKey key, ClosureHolder<?> closureHolder, long nanos) {
+            // An equal key that is present already stays, and so does its weight
+            if (entries.put(key, new CachedClosureHolder(closureHolder, nanos)) == null) {
+                totalWeight.addAndGet(key.fingerprint.size());
+            }
+
+            Iterator<Map.Entry<ExpressionKey, CachedClosureHolder>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<ExpressionKey, CachedClosureHolder> entry = iterator.next();
+                if (!isExpired(entry.getValue(), nanos)) {
+                    break;
+                }
+                iterator.remove();
+                totalWeight.addAndGet(-entry.getKey().fingerprint.size());
+                statistics.evictionCount.increment();
+            }
+        }
+
+        // Long.MIN_VALUE if empty, nano times are only compared by difference as they may overflow
+        private synchronized long getEldestAge(long nanos) {
+            if (entries.isEmpty()) {
+                return Long.MIN_VALUE;
+            }
+            return nanos - entries.values().iterator().next().accessNanos;
+        }
+
+        private synchronized void evictEldest() {
+            if (!entries.isEmpty()) {
+                evict(entries.keySet().iterator().next());
+            }
+        }
+
+        private void evict(ExpressionKey key) {
+            entries.remove(key);
+            totalWeight.addAndGet(-key.fingerprint.size());
+            statistics.evictionCount.increment();
+        }
+    }
+
+    // The total weight of all shards is bounded, where the weight of an entry is the size of its expression's
+    // fingerprint, i.e. roughly the number of nodes in the DAG. Expressions that are larger tend to produce larger closures.
+    // The bound is global rather than per shard, so that any expression up to the maximum weight can be cached, and the
+    // least recently used entry of all shards is evicted first.
+    private static final long maximumWeight = Options.getLong("globalCacheMaxWeight", 10000);
+    private static final long expireAfterAccessSeconds = Options.getLong("globalCacheExpireAfterAccess", 600);
+    private static final long expireAfterAccessNanos = TimeUnit.SECONDS.toNanos(expireAfterAccessSeconds);
+
+    private static final Shard[] shards;
+    private static final int shardMask;
+
+    private static final AtomicLong totalWeight = new AtomicLong();
+
+    private static final Statistics statistics = new Statistics();
+
+    static {
+        // Round up to a power of two so that we can select shards by masking
+        int shardCount = Integer.highestOneBit(Math.max(1, Options.getInt("globalCacheShards", 16)) * 2 - 1);
+
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+        shardMask = shardCount - 1;
+
+        if (Options.getBoolean("jmx", true)) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(statistics, GlobalCacheMXBean.class, true),
+                        new ObjectName("tamestaj:type=GlobalCache"));
+            } catch (JMException | SecurityException e) {
+                // Statistics are optional, so caching must work regardless...
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private GlobalCache() { }
+
+    private static Shard getShard(int isomorphicHashCode) {
+        // Spread the higher bits, as hash codes of similar expressions tend to only differ in these
+        int h = isomorphicHashCode ^ (isomorphicHashCode >>> 16);
+        return shards[h & shardMask];
+    }
+
+    private static boolean isExpired(CachedClosureHolder cachedClosureHolder, long nanos) {
+        return nanos - cachedClosureHolder.accessNanos >= expireAfterAccessNanos;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends Closure<?>> ClosureHolder<T> getCachedClosureHolder(Expression.Staged expression) {
+        ExpressionKey key = ExpressionKey.probe(expression);
+        ClosureHolder<?> closureHolder = getShard(key.hashCode()).get(key, System.nanoTime());
+        if (closureHolder == null) {
+            statistics.missCount.increment();
+        } else {
+            statistics.hitCount.increment();
+        }
+
+        return (ClosureHolder<T>) closureHolder;
+    }
+
+    static <T extends Closure<?>> void cache(Expression.Staged staged, ClosureHolder.Entry<T> entry) {
         ClosureHolder<T> closureHolder = ClosureHolder.make(false);
-        closureHolder.set(closure, environmentSize);
-        map.put(new ExpressionKey((Expression.Staged) staged.cacheClone(new IdentityHashMap<>())), closureHolder);
+        closureHolder.setEntry(entry);
+
+        put((Expression.Staged) staged.cacheClone(new IdentityHashMap<>()), closureHolder);
+    }
+
+    // The expression must be a cache clone, i.e. not reachable from client code
+    static void put(Expression.Staged clone, ClosureHolder<?> closureHolder) {
+        put(ExpressionKey.of(clone), closureHolder);
+    }
+
+    static void put(ExpressionKey key, ClosureHolder<?> closureHolder) {
+        long nanos = System.nanoTime();
+        getShard(key.hashCode()).put(key, closureHolder, nanos);
+
+        // Evict the least recently used entries of all shards until the total weight is within bounds again, which
+        // evicts an expression that is heavier than the maximum weight on its own last
+        while (totalWeight.get() > maximumWeight) {
+            Shard eldestShard = null;
+            long eldestAge = Long.MIN_VALUE;
+            for (Shard shard : shards) {
+                long age = shard.getEldestAge(nanos);
+                if (age != Long.MIN_VALUE && (eldestShard == null || age > eldestAge)) {
+                    eldestShard = shard;
+                    eldestAge = age;
+                }
+            }
+            if (eldestShard == null) {
+                break;
+            }
+            eldestShard.evictEldest();
+        }
+    }
+
+    static void recordCompilation(long nanos) {
+        statistics.compilationCount.increment();
+        statistics.compilationTimeNanos.add(nanos);
     }
 }
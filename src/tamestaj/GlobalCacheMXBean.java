@@ -0,0 +1,22 @@
+package tamestaj;
+
+// Management interface of the global closure cache, registered as "tamestaj:type=GlobalCache".
+
+@SuppressWarnings("unused")
+public interface GlobalCacheMXBean {
+    int getShardCount();
+    long getMaximumWeight();
+    long getExpireAfterAccessSeconds();
+
+    long getSize();
+    long getWeight();
+
+    long getHitCount();
+    long getMissCount();
+    long getEvictionCount();
+
+    long getCompilationCount();
+    long getCompilationTimeNanos();
+
+    void invalidateAll();
+}
@@ -48,8 +48,8 @@ abstract class HighLevelAnalyzer<L, S, F extends Frame<L, S>> extends LowLevelAn
         IS_NON_NULL
     }
 
-    protected HighLevelAnalyzer(CtBehavior behavior) {
-        super(behavior);
+    protected HighLevelAnalyzer(CtBehavior behavior, ControlFlowGraph controlFlowGraph, AnalysisBudget budget) {
+        super(behavior, controlFlowGraph, budget);
     }
 
     protected HighLevelAnalyzer(Analyzer<?> analyzer) {
@@ -7,8 +7,8 @@ import java.util.ArrayList;
 
 @SuppressWarnings("unused")
 abstract class HighLevelAnalyzerWithBoxingUnboxing<L, S, F extends Frame<L, S>> extends HighLevelAnalyzer<L, S, F> {
-    protected HighLevelAnalyzerWithBoxingUnboxing(CtBehavior behavior) {
-        super(behavior);
+    protected HighLevelAnalyzerWithBoxingUnboxing(CtBehavior behavior, ControlFlowGraph controlFlowGraph, AnalysisBudget budget) {
+        super(behavior, controlFlowGraph, budget);
     }
 
     protected HighLevelAnalyzerWithBoxingUnboxing(Analyzer<?> analyzer) {
@@ -25,8 +25,8 @@ abstract class LowLevelAnalyzer<T> extends Analyzer<T> implements Opcode {
         }
     }
 
-    protected LowLevelAnalyzer(CtBehavior behavior) {
-        super(behavior);
+    protected LowLevelAnalyzer(CtBehavior behavior, ControlFlowGraph controlFlowGraph, AnalysisBudget budget) {
+        super(behavior, controlFlowGraph, budget);
 
         CtClass clazz = behavior.getDeclaringClass();
         MethodInfo methodInfo = behavior.getMethodInfo2();
@@ -0,0 +1,111 @@
+package tamestaj;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The staged member of an expression at run time, which is all that expression classes keep of it (see
+// ExpressionClassFactory), so that the Javassist objects of the weaving are not needed once it is done.
+// Descriptors are interned, so they can be compared by identity, and numbered densely in the order in which they
+// are made, so languages can map them to constants of their own to switch on (see Mapping).
+
+public final class MemberDescriptor {
+    public enum Kind {
+        FIELD,
+        METHOD
+    }
+
+    private static final ConcurrentHashMap<String, MemberDescriptor> descriptors = new ConcurrentHashMap<>();
+    // Only incremented when a descriptor is made, which happens at most once per key
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private final int id;
+    private final Kind kind;
+    private final String declaringClassName;
+    private final String name;
+    private final String descriptor;
+
+    private MemberDescriptor(int id, Kind kind, String declaringClassName, String name, String descriptor) {
+        this.id = id;
+        this.kind = kind;
+        this.declaringClassName = declaringClassName;
+        this.name = name;
+        this.descriptor = descriptor;
+    }
+
+    static MemberDescriptor make(Kind kind, String declaringClassName, String name, String descriptor) {
+        return descriptors.computeIfAbsent(declaringClassName + "." + name + ":" + descriptor,
+                k -> new MemberDescriptor(nextId.getAndIncrement(), kind, declaringClassName, name, descriptor));
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getDeclaringClassName() {
+        return declaringClassName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // In the JVM's notation, e.g. "(I)Ljava/lang/String;" or "I"
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public String toString() {
+        return declaringClassName + "." + name + ":" + descriptor;
+    }
+
+    // Maps member descriptors to the index of their name among the given names (or -1), such that language compilers
+    // can dispatch with a switch on an int. Once a descriptor has been mapped, mapping it again is an array access.
+    public static final class Mapping {
+        private static final int UNMAPPED = Integer.MIN_VALUE;
+
+        private final HashMap<String, Integer> indices;
+        private volatile int[] indicesById = new int[0];
+
+        private Mapping(String[] names) {
+            indices = new HashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                indices.putIfAbsent(names[i], i);
+            }
+        }
+
+        public static Mapping make(String... names) {
+            return new Mapping(names);
+        }
+
+        public int get(MemberDescriptor member) {
+            int[] indicesById = this.indicesById;
+            if (member.id < indicesById.length && indicesById[member.id] != UNMAPPED) {
+                return indicesById[member.id];
+            }
+
+            return map(member);
+        }
+
+        private synchronized int map(MemberDescriptor member) {
+            int index = indices.getOrDefault(member.name, -1);
+
+            int[] indicesById = this.indicesById;
+            if (member.id >= indicesById.length) {
+                int length = indicesById.length;
+                indicesById = Arrays.copyOf(indicesById, Math.max(member.id + 1, length * 2));
+                Arrays.fill(indicesById, length, indicesById.length, UNMAPPED);
+            }
+            indicesById[member.id] = index;
+            // Publishes the (possibly new) array
+            this.indicesById = indicesById;
+
+            return index;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package tamestaj;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Options are given as agent arguments, e.g. "-javaagent:tamestaj.jar=traceCacheSize=64,traceCacheMode=shared".
+// Any option not given there is looked up as system property with prefix "tamestaj.", e.g. "-Dtamestaj.traceCacheSize=64".
+
+@SuppressWarnings("unused")
+final class Options {
+    private static final String SYSTEM_PROPERTY_PREFIX = "tamestaj.";
+
+    private static final ConcurrentHashMap<String, String> agentOptions = new ConcurrentHashMap<>();
+
+    private Options() { }
+
+    static void parse(String agentArgs) {
+        if (agentArgs == null) {
+            return;
+        }
+
+        for (String option : agentArgs.split(",")) {
+            option = option.trim();
+            if (option.isEmpty()) {
+                continue;
+            }
+
+            int i = option.indexOf('=');
+            if (i < 0) {
+                agentOptions.put(option, "true");
+            } else {
+                agentOptions.put(option.substring(0, i).trim(), option.substring(i + 1).trim());
+            }
+        }
+    }
+
+    static String getString(String key, String defaultValue) {
+        String value = agentOptions.get(key);
+        if (value == null) {
+            value = System.getProperty(SYSTEM_PROPERTY_PREFIX + key);
+        }
+
+        return value == null ? defaultValue : value;
+    }
+
+    static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option \"" + key + "\" expects an integer, got \"" + value + "\"!", e);
+        }
+    }
+
+    static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option \"" + key + "\" expects a long integer, got \"" + value + "\"!", e);
+        }
+    }
+
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+
+    static <E extends Enum<E>> E getEnum(String key, Class<E> enumClass, E defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        for (E e : enumClass.getEnumConstants()) {
+            if (e.name().equalsIgnoreCase(value)) {
+                return e;
+            }
+        }
+
+        throw new IllegalArgumentException("Option \"" + key + "\" has unknown value \"" + value + "\"!");
+    }
+}
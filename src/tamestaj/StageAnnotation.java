@@ -7,11 +7,13 @@ import javassist.bytecode.AnnotationsAttribute;
 import javassist.bytecode.annotation.*;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.IdentityHashMap;
+import java.util.Map;
 
 final class StageAnnotation {
-    private static final IdentityHashMap<CtField, StageAnnotation> fieldCache = new IdentityHashMap<>();
-    private static final IdentityHashMap<CtMethod, StageAnnotation> methodCache = new IdentityHashMap<>();
+    private static final Map<CtField, StageAnnotation> fieldCache = Collections.synchronizedMap(new IdentityHashMap<>());
+    private static final Map<CtMethod, StageAnnotation> methodCache = Collections.synchronizedMap(new IdentityHashMap<>());
 
     private final CtMember annotatedMember;
     private final CtClass language;
@@ -32,6 +34,12 @@ final class StageAnnotation {
     boolean isStrict() { return isStrict; }
     ImmutableSet<StaticInfo.Element> getStaticInfoElements() { return staticInfoElements; }
 
+    // Another thread might have been faster, there must only be one result though
+    private static <M extends CtMember> StageAnnotation cache(Map<M, StageAnnotation> cache, M member, StageAnnotation ann) {
+        StageAnnotation cached = cache.putIfAbsent(member, ann);
+        return cached == null ? ann : cached;
+    }
+
     static StageAnnotation forMethod(CtMethod method) {
         StageAnnotation ann = methodCache.get(method);
         if (ann != null) {
@@ -40,7 +48,7 @@ final class StageAnnotation {
 
         ann = forMethodInternal(method.getDeclaringClass(), method);
         if (ann != null) {
-            methodCache.put(method, ann);
+            ann = cache(methodCache, method, ann);
         }
 
         return ann;
@@ -54,7 +62,7 @@ final class StageAnnotation {
 
         ann = forMethodInternal(clazz, method);
         if (ann != null) {
-            methodCache.put(method, ann);
+            ann = cache(methodCache, method, ann);
         }
 
         return ann;
@@ -167,7 +175,7 @@ final class StageAnnotation {
             } else {
                 StageAnnotation ann = forMethodInternal(s, m);
                 if (ann != null) {
-                    methodCache.put(m, ann);
+                    ann = cache(methodCache, m, ann);
                 }
 
                 return ann;
@@ -185,7 +193,7 @@ final class StageAnnotation {
 
         ann = forFieldInternal(field.getDeclaringClass(), field);
         if (ann != null) {
-            fieldCache.put(field, ann);
+            ann = cache(fieldCache, field, ann);
         }
 
         return ann;
@@ -199,7 +207,7 @@ final class StageAnnotation {
 
         ann = forFieldInternal(clazz, field);
         if (ann != null) {
-            fieldCache.put(field, ann);
+            ann = cache(fieldCache, field, ann);
         }
 
         return ann;
@@ -302,7 +310,7 @@ final class StageAnnotation {
             } else {
                 StageAnnotation ann = forFieldInternal(s, f);
                 if (ann != null) {
-                    fieldCache.put(f, ann);
+                    ann = cache(fieldCache, f, ann);
                 }
 
                 return ann;
@@ -0,0 +1,453 @@
+package tamestaj;
+
+import com.google.common.io.ByteStreams;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import tamestaj.annotations.Stage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+// An index of the names of all members annotated with @Stage, such that most references can be found not to be
+// staged by string lookups alone, without having Javassist load the referenced class (and its supertypes).
+// Since @Stage is inherited by overriding members (see StageAnnotation), only the name of a referenced member has to
+// match, but the index must have seen all supertypes of the referenced class for a miss to be conclusive. Any other
+// reference is resolved as usual.
+// The index is built from the class path (including the manifest class paths of its JARs) in the background, and
+// every transformed class is added as well, which covers classes from other class loaders once they are loaded. A
+// class' entry is only added after its members, so lookups are sound while the index is still incomplete.
+
+final class StagedMemberIndex {
+    private static final class ClassInfo {
+        private final String superclassName;
+        private final String[] interfaceNames;
+
+        private ClassInfo(String superclassName, String[] interfaceNames) {
+            this.superclassName = superclassName;
+            this.interfaceNames = interfaceNames;
+        }
+    }
+
+    private static final byte[] STAGE_DESCRIPTOR = ("L" + Stage.class.getName().replace('.', '/') + ";").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ANNOTATION_DESCRIPTOR_PREFIX = ("L" + Stage.class.getPackage().getName().replace('.', '/') + "/").getBytes(StandardCharsets.UTF_8);
+    // Classes that are transformed for what they are rather than for what they refer to
+    private static final Set<String> SPECIAL_SUPERTYPE_NAMES = new HashSet<>(Arrays.asList("tamestaj.GlobalCarrier", "tamestaj.LocalCarrier", "tamestaj.Language"));
+    private static final String[] PLATFORM_PREFIXES = new String[]{ "java.", "javax.", "sun." };
+
+    private static final boolean isEnabled = Options.getBoolean("stagedMemberIndex", true);
+
+    private static final Set<String> stagedMethodNames = ConcurrentHashMap.newKeySet();
+    private static final Set<String> stagedFieldNames = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentHashMap<String, ClassInfo> classInfos = new ConcurrentHashMap<>();
+    // Only positive results are remembered, as a class might be indexed later on
+    private static final Set<String> completelyIndexedClassNames = ConcurrentHashMap.newKeySet();
+
+    private static volatile Thread indexingThread;
+
+    private StagedMemberIndex() { }
+
+    // Entries become usable one by one, so the class path is indexed in the background
+    static void startIndexing() {
+        if (!isEnabled) {
+            return;
+        }
+
+        indexingThread = new Thread(StagedMemberIndex::indexClassPath, "tamestaj-index");
+        indexingThread.setDaemon(true);
+        indexingThread.start();
+    }
+
+    // Classes that indexing needs are loaded on the indexing thread, which must not wait for transformations
+    // (that might wait for these very classes to be initialized)
+    static boolean isIndexingThread() {
+        return Thread.currentThread() == indexingThread;
+    }
+
+    static boolean mayBeStagedMethod(String className, String name) {
+        if (!isEnabled) {
+            return true;
+        }
+        // Methods of arrays are those of Object
+        if (className.charAt(0) == '[') {
+            return false;
+        }
+
+        return stagedMethodNames.contains(name) || !isCompletelyIndexed(className);
+    }
+
+    static boolean mayBeStagedField(String className, String name) {
+        if (!isEnabled) {
+            return true;
+        }
+
+        return stagedFieldNames.contains(name) || !isCompletelyIndexed(className);
+    }
+
+    static void add(ClassFile classFile) {
+        if (!isEnabled || classInfos.containsKey(classFile.getName())) {
+            return;
+        }
+
+        addMembers(classFile);
+        classInfos.put(classFile.getName(), new ClassInfo(classFile.getSuperclass(), classFile.getInterfaces()));
+    }
+
+    private static boolean isPlatformClass(String className) {
+        for (String prefix : PLATFORM_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isCompletelyIndexed(String className) {
+        if (isPlatformClass(className) || completelyIndexedClassNames.contains(className)) {
+            return true;
+        }
+
+        ClassInfo classInfo = classInfos.get(className);
+        if (classInfo == null) {
+            return false;
+        }
+
+        if (classInfo.superclassName != null && !isCompletelyIndexed(classInfo.superclassName)) {
+            return false;
+        }
+        for (String interfaceName : classInfo.interfaceNames) {
+            if (!isCompletelyIndexed(interfaceName)) {
+                return false;
+            }
+        }
+
+        completelyIndexedClassNames.add(className);
+        return true;
+    }
+
+    private static void addMembers(ClassFile classFile) {
+        for (Object o : classFile.getMethods()) {
+            MethodInfo method = (MethodInfo) o;
+            if (isStageAnnotated((AnnotationsAttribute) method.getAttribute(AnnotationsAttribute.visibleTag))) {
+                stagedMethodNames.add(method.getName());
+            }
+        }
+        for (Object o : classFile.getFields()) {
+            FieldInfo field = (FieldInfo) o;
+            if (isStageAnnotated((AnnotationsAttribute) field.getAttribute(AnnotationsAttribute.visibleTag))) {
+                stagedFieldNames.add(field.getName());
+            }
+        }
+    }
+
+    private static boolean isStageAnnotated(AnnotationsAttribute attr) {
+        return attr != null && attr.getAnnotation(Stage.class.getName()) != null;
+    }
+
+    private static void indexClassPath() {
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        for (String path : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                pending.add(new File(path));
+            }
+        }
+
+        CodeSource codeSource = StagedMemberIndex.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            try {
+                pending.add(new File(codeSource.getLocation().toURI()));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // The agent's own classes are usually on the class path anyway...
+            }
+        }
+
+        HashSet<File> visited = new HashSet<>();
+        while (!pending.isEmpty()) {
+            File file = pending.poll();
+            try {
+                if (!visited.add(file.getCanonicalFile())) {
+                    continue;
+                }
+
+                if (file.isDirectory()) {
+                    indexDirectory(file);
+                } else if (file.isFile()) {
+                    indexJar(file, pending);
+                }
+            } catch (IOException e) {
+                // Classes we could not index are simply resolved as usual...
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void indexDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                indexDirectory(file);
+            } else if (file.getName().endsWith(".class")) {
+                try (InputStream stream = new FileInputStream(file)) {
+                    indexClassFile(ByteStreams.toByteArray(stream));
+                }
+            }
+        }
+    }
+
+    private static void indexJar(File file, ArrayDeque<File> pending) throws IOException {
+        try (JarFile jar = new JarFile(file)) {
+            Manifest manifest = jar.getManifest();
+            if (manifest != null) {
+                String classPath = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+                if (classPath != null) {
+                    for (String path : classPath.trim().split("\\s+")) {
+                        if (!path.isEmpty()) {
+                            // Relative to the JAR, given as URL
+                            pending.add(new File(file.getParentFile(), path.replace('/', File.separatorChar)));
+                        }
+                    }
+                }
+            }
+
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+                    try (InputStream stream = jar.getInputStream(entry)) {
+                        indexClassFile(ByteStreams.toByteArray(stream));
+                    }
+                }
+            }
+        }
+    }
+
+    // The constant pool of a class file as read in place, along with the class' supertypes that follow it
+    private static final class ConstantPool {
+        private final byte[] bytes;
+        // Tags and offsets of all entries (after their tag)
+        private final int[] tags;
+        private final int[] offsets;
+        private final boolean mentionsStage;
+        private final boolean mentionsAnnotations;
+        private final String className;
+        private final ClassInfo classInfo;
+
+        private ConstantPool(byte[] bytes, int[] tags, int[] offsets, boolean mentionsStage, boolean mentionsAnnotations, String className, ClassInfo classInfo) {
+            this.bytes = bytes;
+            this.tags = tags;
+            this.offsets = offsets;
+            this.mentionsStage = mentionsStage;
+            this.mentionsAnnotations = mentionsAnnotations;
+            this.className = className;
+            this.classInfo = classInfo;
+        }
+
+        // Null if this is not a class file we understand
+        private static ConstantPool read(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != 0xcafebabe) {
+                return null;
+            }
+            in.readUnsignedShort();
+            in.readUnsignedShort();
+
+            int size = in.readUnsignedShort();
+            int[] tags = new int[size];
+            int[] offsets = new int[size];
+            boolean mentionsStage = false;
+            boolean mentionsAnnotations = false;
+            for (int i = 1; i < size; i++) {
+                int tag = in.readUnsignedByte();
+                tags[i] = tag;
+                offsets[i] = bytes.length - in.available();
+                switch (tag) {
+                    case 1: {
+                        int length = in.readUnsignedShort();
+                        if (length == STAGE_DESCRIPTOR.length && !mentionsStage) {
+                            mentionsStage = regionEquals(bytes, offsets[i] + 2, STAGE_DESCRIPTOR);
+                        }
+                        if (length > ANNOTATION_DESCRIPTOR_PREFIX.length && !mentionsAnnotations) {
+                            mentionsAnnotations = regionEquals(bytes, offsets[i] + 2, ANNOTATION_DESCRIPTOR_PREFIX);
+                        }
+                        skip(in, length);
+                        break;
+                    }
+                    case 7: case 8: case 16: case 19: case 20:
+                        skip(in, 2);
+                        break;
+                    case 15:
+                        skip(in, 3);
+                        break;
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                        skip(in, 4);
+                        break;
+                    case 5: case 6:
+                        skip(in, 8);
+                        // Takes up two entries
+                        i++;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+
+            in.readUnsignedShort();
+            String className = getClassName(bytes, offsets, in.readUnsignedShort());
+            int superclassIndex = in.readUnsignedShort();
+            String superclassName = superclassIndex == 0 ? null : getClassName(bytes, offsets, superclassIndex);
+            String[] interfaceNames = new String[in.readUnsignedShort()];
+            for (int i = 0; i < interfaceNames.length; i++) {
+                interfaceNames[i] = getClassName(bytes, offsets, in.readUnsignedShort());
+            }
+
+            return new ConstantPool(bytes, tags, offsets, mentionsStage, mentionsAnnotations, className, new ClassInfo(superclassName, interfaceNames));
+        }
+
+        private int getUnsignedShort(int offset) {
+            return (bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff;
+        }
+
+        private String getUtf8(int index) {
+            int offset = offsets[index];
+            return new String(bytes, offset + 2, getUnsignedShort(offset), StandardCharsets.UTF_8);
+        }
+
+        // Of a field or method reference
+        private String getReferenceClassName(int index) {
+            return getClassName(bytes, offsets, getUnsignedShort(offsets[index]));
+        }
+        private String getReferenceName(int index) {
+            return getUtf8(getUnsignedShort(offsets[getUnsignedShort(offsets[index] + 2)]));
+        }
+    }
+
+    // Only reads the constant pool and the class' supertypes, unless @Stage is mentioned in the constant pool
+    private static void indexClassFile(byte[] bytes) throws IOException {
+        ConstantPool constantPool = ConstantPool.read(bytes);
+        if (constantPool == null) {
+            return;
+        }
+
+        if (constantPool.mentionsStage) {
+            add(new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes))));
+            return;
+        }
+
+        classInfos.putIfAbsent(constantPool.className, constantPool.classInfo);
+    }
+
+    // Whether a class that is about to be loaded might have to be transformed at all, decided on its class file and
+    // the index alone, before Javassist reads it or any of its supertypes. It has to be transformed if it mentions
+    // any of our annotations (which have to be checked), might be a carrier or language, or might refer to a staged
+    // member. Otherwise the class is added to the index here.
+    static boolean mayBeTransformed(byte[] bytes) {
+        if (!isEnabled) {
+            return true;
+        }
+
+        ConstantPool constantPool;
+        try {
+            constantPool = ConstantPool.read(bytes);
+        } catch (IOException | RuntimeException e) {
+            // Let Javassist deal with it...
+            return true;
+        }
+        if (constantPool == null || constantPool.mentionsAnnotations) {
+            return true;
+        }
+
+        classInfos.putIfAbsent(constantPool.className, constantPool.classInfo);
+        if (mayBeCarrierOrLanguage(constantPool.className)) {
+            return true;
+        }
+
+        int[] tags = constantPool.tags;
+        for (int i = 1; i < tags.length; i++) {
+            if (tags[i] == 9) {
+                if (mayBeStagedField(constantPool.getReferenceClassName(i), constantPool.getReferenceName(i))) {
+                    return true;
+                }
+            } else if (tags[i] == 10 || tags[i] == 11) {
+                if (mayBeStagedMethod(constantPool.getReferenceClassName(i), constantPool.getReferenceName(i))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean mayBeCarrierOrLanguage(String className) {
+        if (SPECIAL_SUPERTYPE_NAMES.contains(className)) {
+            return true;
+        }
+        if (isPlatformClass(className)) {
+            return false;
+        }
+
+        ClassInfo classInfo = classInfos.get(className);
+        if (classInfo == null) {
+            return true;
+        }
+
+        if (classInfo.superclassName != null && mayBeCarrierOrLanguage(classInfo.superclassName)) {
+            return true;
+        }
+        for (String interfaceName : classInfo.interfaceNames) {
+            if (mayBeCarrierOrLanguage(interfaceName)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void skip(DataInputStream in, int n) throws IOException {
+        if (in.skipBytes(n) != n) {
+            throw new IOException("Truncated class file!");
+        }
+    }
+
+    private static boolean regionEquals(byte[] bytes, int offset, byte[] region) {
+        if (offset + region.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < region.length; i++) {
+            if (bytes[offset + i] != region[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String getClassName(byte[] bytes, int[] offsets, int classIndex) {
+        int offset = offsets[(bytes[offsets[classIndex]] & 0xff) << 8 | bytes[offsets[classIndex] + 1] & 0xff];
+        int length = (bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff;
+        // Class names are (almost always) plain ASCII, others just end up not being matched
+        return new String(bytes, offset + 2, length, StandardCharsets.UTF_8).replace('/', '.');
+    }
+}
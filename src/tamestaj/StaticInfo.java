@@ -22,15 +22,20 @@ public final class StaticInfo {
 
         private final int hashCode;
 
-        private Origin(CtBehavior behavior, int position) {
+        private Origin(CtBehavior behavior, int position, int lineNumber) {
             this.behavior = behavior;
             this.position = position;
-            this.lineNumber = behavior.getMethodInfo().getLineNumber(position);
+            this.lineNumber = lineNumber;
             hashCode = behavior.hashCode() + 31 * position;
         }
 
         static Origin make(CtBehavior behavior, int position) {
-            return new Origin(behavior, position);
+            return new Origin(behavior, position, behavior.getMethodInfo().getLineNumber(position));
+        }
+
+        // For behaviors that have been modified since
+        static Origin make(CtBehavior behavior, int position, int lineNumber) {
+            return new Origin(behavior, position, lineNumber);
         }
 
         public CtBehavior getBehavior() {
@@ -96,6 +101,10 @@ public final class StaticInfo {
         }
         */
 
+        int getArgumentTypesLength() {
+            return argumentTypes.length;
+        }
+
         public Type getArgumentType(int index) {
             return argumentTypes[index];
         }
@@ -117,48 +126,122 @@ public final class StaticInfo {
         }
     }
 
-    private final Origin origin;
-    private final InferredTypes inferredTypes;
-
-    private StaticInfo(Origin origin, InferredTypes inferredTypes) {
-        this.origin = origin;
-        this.inferredTypes = inferredTypes;
+    // Woven classes make their static information from literals (see Constants), which are only resolved to Javassist
+    // objects when asked for, so comparing and hashing static information at run time does not need the class pool
+    private final String originClassName;
+    private final String originName;
+    private final String originDescriptor;
+    private final int originPosition;
+    private final int originLineNumber;
+    private final String inferredTypeNames;
+
+    private final int hashCode;
+
+    private volatile Origin origin;
+    private volatile InferredTypes inferredTypes;
+
+    private StaticInfo(String originClassName, String originName, String originDescriptor, int originPosition, int originLineNumber, String inferredTypeNames) {
+        this.originClassName = originClassName;
+        this.originName = originName;
+        this.originDescriptor = originDescriptor;
+        this.originPosition = originPosition;
+        this.originLineNumber = originLineNumber;
+        this.inferredTypeNames = inferredTypeNames;
+        hashCode = Objects.hash(originClassName, originName, originDescriptor, originPosition, inferredTypeNames);
     }
 
     static StaticInfo make(Origin origin, InferredTypes inferredTypes) {
-        return new StaticInfo(origin, inferredTypes);
+        StaticInfo staticInfo;
+        if (origin != null) {
+            CtBehavior behavior = origin.getBehavior();
+            staticInfo = new StaticInfo(behavior.getDeclaringClass().getName(), behavior.getMethodInfo2().getName(), behavior.getMethodInfo2().getDescriptor(),
+                    origin.getPosition(), origin.getLineNumber().orElse(-1), Constants.makeInferredTypeNames(inferredTypes));
+        } else {
+            staticInfo = new StaticInfo(null, null, null, -1, -1, Constants.makeInferredTypeNames(inferredTypes));
+        }
+
+        staticInfo.origin = origin;
+        staticInfo.inferredTypes = inferredTypes;
+        return staticInfo;
+    }
+
+    static StaticInfo make(String originClassName, String originName, String originDescriptor, int originPosition, int originLineNumber, String inferredTypeNames) {
+        return new StaticInfo(originClassName, originName, originDescriptor, originPosition, originLineNumber, inferredTypeNames);
+    }
+
+    String getOriginClassName() {
+        return originClassName;
+    }
+
+    String getOriginName() {
+        return originName;
+    }
+
+    String getOriginDescriptor() {
+        return originDescriptor;
+    }
+
+    int getOriginPosition() {
+        return originPosition;
+    }
+
+    int getOriginLineNumber() {
+        return originLineNumber;
+    }
+
+    String getInferredTypeNames() {
+        return inferredTypeNames;
     }
 
     public Optional<Origin> getOrigin() {
-        return Optional.ofNullable(origin);
+        if (originClassName == null) {
+            return Optional.empty();
+        }
+
+        Origin o = origin;
+        if (o == null) {
+            o = Constants.resolveOrigin(originClassName, originName, originDescriptor, originPosition, originLineNumber);
+            origin = o;
+        }
+
+        return Optional.of(o);
     }
 
     public Optional<InferredTypes> getInferredTypes() {
-        return Optional.ofNullable(inferredTypes);
+        if (inferredTypeNames == null) {
+            return Optional.empty();
+        }
+
+        InferredTypes i = inferredTypes;
+        if (i == null) {
+            i = Constants.resolveInferredTypes(inferredTypeNames);
+            inferredTypes = i;
+        }
+
+        return Optional.of(i);
     }
 
     public int hashCode() {
-        return Objects.hash(origin, inferredTypes);
+        return hashCode;
     }
 
+    // Like origins, static information does not differ by line number
     public boolean equals(Object obj) {
         if (this == obj) { return true; }
         if (!(obj instanceof StaticInfo)) { return false; }
 
         StaticInfo si = (StaticInfo) obj;
-        return origin.equals(si.origin) && inferredTypes.equals(si.inferredTypes);
+        return hashCode == si.hashCode
+                && Objects.equals(originClassName, si.originClassName) && Objects.equals(originName, si.originName)
+                && Objects.equals(originDescriptor, si.originDescriptor) && originPosition == si.originPosition
+                && Objects.equals(inferredTypeNames, si.inferredTypeNames);
     }
 
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("{ ");
-        if (origin != null) {
-            sb.append(origin);
-        }
-        if (inferredTypes != null) {
-            sb.append(", ");
-            sb.append(inferredTypes);
-        }
+        getOrigin().ifPresent(sb::append);
+        getInferredTypes().ifPresent(i -> sb.append(", ").append(i));
         sb.append(" }");
         return sb.toString();
     }
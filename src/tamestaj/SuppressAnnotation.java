@@ -9,11 +9,15 @@ import javassist.bytecode.annotation.ArrayMemberValue;
 import javassist.bytecode.annotation.ClassMemberValue;
 import javassist.bytecode.annotation.MemberValue;
 
+import java.util.Collections;
 import java.util.IdentityHashMap;
+import java.util.Map;
 
 final class SuppressAnnotation {
-    private static final IdentityHashMap<CtClass, SuppressAnnotation> classCache = new IdentityHashMap<>();
-    private static final IdentityHashMap<CtBehavior, SuppressAnnotation> behaviorCache = new IdentityHashMap<>();
+    // Classes and behaviors without suppressed languages are mapped to null. Lookups may race, in which case the
+    // first result is kept.
+    private static final Map<CtClass, SuppressAnnotation> classCache = Collections.synchronizedMap(new IdentityHashMap<>());
+    private static final Map<CtBehavior, SuppressAnnotation> behaviorCache = Collections.synchronizedMap(new IdentityHashMap<>());
 
     private final ImmutableSet<CtClass> languages;
 
@@ -114,9 +118,9 @@ final class SuppressAnnotation {
             cached = new SuppressAnnotation(languages);
         }
 
-        classCache.put(clazz, cached);
+        SuppressAnnotation otherCached = classCache.putIfAbsent(clazz, cached);
 
-        return cached;
+        return otherCached == null ? cached : otherCached;
     }
 
     static SuppressAnnotation forBehavior(CtBehavior behavior) {
@@ -158,8 +162,8 @@ final class SuppressAnnotation {
             cached = new SuppressAnnotation(languages);
         }
 
-        behaviorCache.put(behavior, cached);
+        SuppressAnnotation otherCached = behaviorCache.putIfAbsent(behavior, cached);
 
-        return cached;
+        return otherCached == null ? cached : otherCached;
     }
 }
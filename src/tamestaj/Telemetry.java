@@ -0,0 +1,249 @@
+package tamestaj;
+
+import javassist.CtBehavior;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Measurements of the transformation: how long each phase takes for a class or one of its behaviors (in nanoseconds),
+// the sizes of class files and code before and after weaving, and the estimated footprint of each behavior's control
+// flow graph (in bytes). They are aggregated into histograms (see
+// TransformationMXBean), logged to the logger "tamestaj" at level FINE, and committed as JFR events if asked for (see
+// TelemetryEvents). Unless enabled, measuring amounts to checking a constant.
+
+final class Telemetry {
+    enum Phase {
+        // Of a class, including the following phases of its behaviors
+        TRANSFORMATION,
+        CONTROL_FLOW_ANALYSIS,
+        TYPE_ANALYSIS,
+        CONSTANT_ANALYSIS,
+        VALUE_FLOW_ANALYSIS,
+        STAGE_ANALYSIS,
+        LIFT_ESTIMATE_ANALYSIS,
+        CACHABILITY_ANALYSIS,
+        WEAVE_ANALYSIS,
+        WEAVING
+    }
+
+    enum Size {
+        CLASS_FILE_BEFORE,
+        CLASS_FILE_AFTER,
+        CODE_BEFORE,
+        CODE_AFTER,
+        CONTROL_FLOW_GRAPH
+    }
+
+    // Buckets by power of two, as durations and sizes are spread over orders of magnitude
+    private static final class Histogram {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator maximum = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long value) {
+            value = Math.max(0, value);
+            count.increment();
+            total.add(value);
+            maximum.accumulate(value);
+            buckets[Long.SIZE - 1 - Long.numberOfLeadingZeros(value | 1)].increment();
+        }
+
+        private long[] getBucketCounts() {
+            long[] counts = new long[buckets.length];
+            int length = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                if (counts[i] != 0) {
+                    length = i + 1;
+                }
+            }
+
+            return Arrays.copyOf(counts, length);
+        }
+
+        private void reset() {
+            count.reset();
+            total.reset();
+            maximum.reset();
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+        }
+    }
+
+    private static final class Statistics implements TransformationMXBean {
+        private final LinkedHashMap<String, Histogram> histograms = new LinkedHashMap<>();
+
+        private Statistics() {
+            for (Phase phase : Phase.values()) {
+                histograms.put(phase.name(), phaseHistograms[phase.ordinal()]);
+            }
+            for (Size size : Size.values()) {
+                histograms.put(size.name(), sizeHistograms[size.ordinal()]);
+            }
+        }
+
+        public Map<String, Long> getCounts() {
+            LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+            histograms.forEach((name, histogram) -> counts.put(name, histogram.count.sum()));
+            return counts;
+        }
+
+        public Map<String, Long> getTotals() {
+            LinkedHashMap<String, Long> totals = new LinkedHashMap<>();
+            histograms.forEach((name, histogram) -> totals.put(name, histogram.total.sum()));
+            return totals;
+        }
+
+        public Map<String, Long> getMaxima() {
+            LinkedHashMap<String, Long> maxima = new LinkedHashMap<>();
+            histograms.forEach((name, histogram) -> maxima.put(name, histogram.maximum.get()));
+            return maxima;
+        }
+
+        public Map<String, long[]> getHistograms() {
+            LinkedHashMap<String, long[]> bucketCounts = new LinkedHashMap<>();
+            histograms.forEach((name, histogram) -> bucketCounts.put(name, histogram.getBucketCounts()));
+            return bucketCounts;
+        }
+
+        public void reset() {
+            histograms.values().forEach(Histogram::reset);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger("tamestaj");
+
+    static final boolean isEnabled = Options.getBoolean("telemetry", false);
+    private static final boolean isJfrEnabled = isEnabled && Options.getBoolean("telemetryJfr", false) && isJfrAvailable();
+
+    private static final Histogram[] phaseHistograms = new Histogram[Phase.values().length];
+    private static final Histogram[] sizeHistograms = new Histogram[Size.values().length];
+
+    static {
+        for (int i = 0; i < phaseHistograms.length; i++) {
+            phaseHistograms[i] = new Histogram();
+        }
+        for (int i = 0; i < sizeHistograms.length; i++) {
+            sizeHistograms[i] = new Histogram();
+        }
+
+        if (isEnabled && Options.getBoolean("jmx", true)) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new StandardMBean(new Statistics(), TransformationMXBean.class, true),
+                        new ObjectName("tamestaj:type=Transformation"));
+            } catch (JMException | SecurityException e) {
+                // Statistics are optional...
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Telemetry() { }
+
+    // The JFR API is only part of JDK 8 from update 262 on
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            logger.warning("JFR events are not available on this JVM.");
+            return false;
+        }
+    }
+
+    // Returns the start time to pass on when the phase stops
+    static long start() {
+        return isEnabled ? System.nanoTime() : 0;
+    }
+
+    static void stop(Phase phase, String className, long start) {
+        if (!isEnabled) {
+            return;
+        }
+
+        record(phase, className, null, System.nanoTime() - start);
+    }
+
+    static void stop(Phase phase, CtBehavior behavior, long start) {
+        if (!isEnabled) {
+            return;
+        }
+
+        record(phase, behavior.getDeclaringClass().getName(), behavior.getName() + behavior.getSignature(), System.nanoTime() - start);
+    }
+
+    private static void record(Phase phase, String className, String behaviorName, long nanos) {
+        phaseHistograms[phase.ordinal()].record(nanos);
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(phase + " of " + describe(className, behaviorName) + ": " + nanos + " ns");
+        }
+        if (isJfrEnabled) {
+            TelemetryEvents.commitPhase(phase, className, behaviorName, nanos);
+        }
+    }
+
+    static void recordClassFileLengths(String className, int lengthBefore, int lengthAfter) {
+        if (!isEnabled) {
+            return;
+        }
+
+        record(Size.CLASS_FILE_BEFORE, Size.CLASS_FILE_AFTER, className, null, lengthBefore, lengthAfter);
+    }
+
+    static void recordCodeLengths(CtBehavior behavior, int lengthBefore, int lengthAfter) {
+        if (!isEnabled) {
+            return;
+        }
+
+        record(Size.CODE_BEFORE, Size.CODE_AFTER, behavior.getDeclaringClass().getName(), behavior.getName() + behavior.getSignature(), lengthBefore, lengthAfter);
+    }
+
+    static void recordControlFlowGraph(CtBehavior behavior, ControlFlowGraph controlFlowGraph) {
+        if (!isEnabled) {
+            return;
+        }
+
+        long footprint = controlFlowGraph.getFootprint();
+        sizeHistograms[Size.CONTROL_FLOW_GRAPH.ordinal()].record(footprint);
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Control flow graph of " + describe(behavior.getDeclaringClass().getName(), behavior.getName() + behavior.getSignature())
+                    + ": " + controlFlowGraph.getInstructionCount() + " instructions, " + footprint + " bytes");
+        }
+    }
+
+    private static void record(Size sizeBefore, Size sizeAfter, String className, String behaviorName, int lengthBefore, int lengthAfter) {
+        sizeHistograms[sizeBefore.ordinal()].record(lengthBefore);
+        sizeHistograms[sizeAfter.ordinal()].record(lengthAfter);
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Size of " + describe(className, behaviorName) + ": " + lengthBefore + " -> " + lengthAfter + " bytes");
+        }
+        if (isJfrEnabled) {
+            TelemetryEvents.commitSize(className, behaviorName, lengthBefore, lengthAfter);
+        }
+    }
+
+    private static String describe(String className, String behaviorName) {
+        return behaviorName == null ? "\"" + className + "\"" : "\"" + className + "." + behaviorName + "\"";
+    }
+}
@@ -0,0 +1,75 @@
+package tamestaj;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// The JFR events of the telemetry (see Telemetry), which only loads this class once it knows that the JFR API is
+// available. Events are committed after the fact, so phases carry their duration as a field.
+
+final class TelemetryEvents {
+    private TelemetryEvents() { }
+
+    @Name("tamestaj.Phase")
+    @Label("Transformation Phase")
+    @Category("tamestaj")
+    public static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Class")
+        String className;
+
+        @Label("Behavior")
+        String behaviorName;
+
+        // Events have an implicit duration field of their own, which is zero here
+        @Label("Phase Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long phaseDuration;
+    }
+
+    @Name("tamestaj.Size")
+    @Label("Transformation Size")
+    @Category("tamestaj")
+    public static final class SizeEvent extends Event {
+        @Label("Class")
+        String className;
+
+        @Label("Behavior")
+        String behaviorName;
+
+        @Label("Size Before")
+        @DataAmount(DataAmount.BYTES)
+        long sizeBefore;
+
+        @Label("Size After")
+        @DataAmount(DataAmount.BYTES)
+        long sizeAfter;
+    }
+
+    static void commitPhase(Telemetry.Phase phase, String className, String behaviorName, long nanos) {
+        PhaseEvent event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase.name();
+            event.className = className;
+            event.behaviorName = behaviorName;
+            event.phaseDuration = nanos;
+            event.commit();
+        }
+    }
+
+    static void commitSize(String className, String behaviorName, int sizeBefore, int sizeAfter) {
+        SizeEvent event = new SizeEvent();
+        if (event.isEnabled()) {
+            event.className = className;
+            event.behaviorName = behaviorName;
+            event.sizeBefore = sizeBefore;
+            event.sizeAfter = sizeAfter;
+            event.commit();
+        }
+    }
+}
@@ -1,31 +1,90 @@
 package tamestaj;
 
-import java.util.HashMap;
+import com.google.common.cache.CacheBuilder;
+
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 // This class should only be accessible from instrumented and generated code!
 // We cannot really guarantee this, but we can at least temporarily make sure that it only becomes
 // public at run time.
 
-final class TraceCache<T extends Closure<?>> {
-    private final ThreadLocal<HashMap<Trace, ClosureHolder<T>>> internalMap;
+abstract class TraceCache<T extends Closure<?>> {
+    enum Mode {
+        // One concurrent (approximately) least-recently-used map shared by all threads
+        SHARED,
+        // One least-recently-used map per thread, each created when the thread first looks up a trace
+        THREAD_LOCAL
+    }
 
-    private TraceCache(int maxSize) {
-        internalMap = new ThreadLocal<>();
-        internalMap.set(new LinkedHashMap<Trace, ClosureHolder<T>>(maxSize * 4 / 3, 0.75f, true) {
-            protected boolean removeEldestEntry(Map.Entry<Trace, ClosureHolder<T>> eldest) {
-                return size() > maxSize;
-            }
-        });
+    static Mode getConfiguredMode() {
+        return Options.getEnum("traceCacheMode", Mode.class, Mode.SHARED);
     }
 
+    private TraceCache() { }
+
     static <T extends Closure<?>> TraceCache<T> make(int maxSize) {
-        return new TraceCache<>(maxSize);
+        return make(getConfiguredMode(), maxSize);
+    }
+
+    static <T extends Closure<?>> TraceCache<T> make(Mode mode, int maxSize) {
+        switch (mode) {
+            case SHARED: return makeShared(maxSize);
+            case THREAD_LOCAL: return makeThreadLocal(maxSize);
+        }
+
+        throw new RuntimeException("Non-exhaustive matching!");
+    }
+
+    private static <T extends Closure<?>> TraceCache<T> makeShared(int maxSize) {
+        ConcurrentMap<Trace, ClosureHolder<T>> map = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .<Trace, ClosureHolder<T>>build().asMap();
+
+        return new TraceCache<T>() {
+            ClosureHolder<T> getOrMakeClosureHolder(Trace trace) {
+                ClosureHolder<T> closureHolder = map.get(trace);
+                if (closureHolder == null) {
+                    closureHolder = ClosureHolder.make(false);
+                    ClosureHolder<T> previous = map.putIfAbsent(trace, closureHolder);
+                    if (previous != null) {
+                        closureHolder = previous;
+                    }
+                }
+
+                return closureHolder;
+            }
+        };
     }
 
+    private static <T extends Closure<?>> TraceCache<T> makeThreadLocal(int maxSize) {
+        ThreadLocal<LinkedHashMap<Trace, ClosureHolder<T>>> internalMap = ThreadLocal.withInitial(() ->
+                new LinkedHashMap<Trace, ClosureHolder<T>>(maxSize * 4 / 3, 0.75f, true) {
+                    protected boolean removeEldestEntry(Map.Entry<Trace, ClosureHolder<T>> eldest) {
+                        return size() > maxSize;
+                    }
+                }
+        );
+
+        return new TraceCache<T>() {
+            ClosureHolder<T> getOrMakeClosureHolder(Trace trace) {
+                LinkedHashMap<Trace, ClosureHolder<T>> map = internalMap.get();
+                ClosureHolder<T> closureHolder = map.get(trace);
+                if (closureHolder == null) {
+                    closureHolder = ClosureHolder.make(false);
+                    map.put(trace, closureHolder);
+                }
+
+                return closureHolder;
+            }
+        };
+    }
+
+    abstract ClosureHolder<T> getOrMakeClosureHolder(Trace trace);
+
     ClosureHolder<T> getCachedClosureHolder(Trace trace) {
         // Caching logic contained in proxy!
-        return ClosureHolder.makeTraceCacheProxy(trace, internalMap.get());
+        return ClosureHolder.makeTraceCacheProxy(trace, this);
     }
 }
@@ -0,0 +1,19 @@
+package tamestaj;
+
+import java.util.Map;
+
+// Management interface of the transformation telemetry, registered as "tamestaj:type=Transformation" (see Telemetry).
+// Every map is keyed by the name of a measure, i.e. a phase (see Telemetry.Phase), whose values are nanoseconds, or a
+// size (see Telemetry.Size), whose values are bytes.
+
+@SuppressWarnings("unused")
+public interface TransformationMXBean {
+    Map<String, Long> getCounts();
+    Map<String, Long> getTotals();
+    Map<String, Long> getMaxima();
+
+    // Element i counts the values below 2^(i + 1) that are not counted by the elements before
+    Map<String, long[]> getHistograms();
+
+    void reset();
+}
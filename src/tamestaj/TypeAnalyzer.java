@@ -161,8 +161,8 @@ final class TypeAnalyzer extends HighLevelAnalyzer<Type, Type, TypeAnalyzer.Type
         }
     }
 
-    public TypeAnalyzer(CtBehavior behavior) {
-        super(behavior);
+    public TypeAnalyzer(CtBehavior behavior, ControlFlowGraph controlFlowGraph, AnalysisBudget budget) {
+        super(behavior, controlFlowGraph, budget);
     }
 
     public Result getResult() {
@@ -71,12 +71,17 @@ final class Util {
             BINDER_CLASS = cp.get("tamestaj.Environment$Binder");
             ENVIRONMENT_CLASS = cp.get("tamestaj.Environment");
 
-            DISAMBIGUATION_PARAMETER_CLASS = cp.makeClass("tamestaj.DisambiguationParameter");
-            try {
-                Util.DISAMBIGUATION_PARAMETER_CLASS.toClass();
-            } catch (CannotCompileException e) {
-                throw new RuntimeException(e);
+            // Classes woven ahead of time come with it (see Weaver)
+            CtClass disambiguationParameterClass = cp.getOrNull("tamestaj.DisambiguationParameter");
+            if (disambiguationParameterClass == null) {
+                disambiguationParameterClass = cp.makeClass("tamestaj.DisambiguationParameter");
+                try {
+                    disambiguationParameterClass.toClass();
+                } catch (CannotCompileException e) {
+                    throw new RuntimeException(e);
+                }
             }
+            DISAMBIGUATION_PARAMETER_CLASS = disambiguationParameterClass;
         } catch (NotFoundException e) {
             throw new RuntimeException(e);
         }
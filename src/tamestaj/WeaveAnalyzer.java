@@ -8,6 +8,9 @@ import java.util.*;
 
 @SuppressWarnings("unused")
 final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnalyzer.WeaveType, WeaveAnalyzer.WeaveType, WeaveAnalyzer.WeaveFrame> {
+    // Maximum number of traces (and thus closures) cached per trace-cachable staged
+    static final int traceCacheSize = Options.getInt("traceCacheSize", 32);
+
     private final TypeAnalyzer.Result typeAnalyzerResult;
     private final ValueFlowAnalyzer.Result valueFlowResult;
     private final ConstantAnalyzer.Result constantAnalyzerResult;
@@ -38,6 +41,8 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
 
     private final HashSet<Integer> traceRecordPositions;
 
+    private final HashSet<Source.Staged> uncarriedStageds;
+
     enum WeaveType {
         MAYBE_LOCALLY_CARRYING(true) {
             WeaveType merge(WeaveType with) {
@@ -879,6 +884,12 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
 
         traceRecordPositions = new HashSet<>();
 
+        uncarriedStageds = new HashSet<>();
+        for (Source.Staged staged : stageGraph.getStageds()) {
+            if (isCarrierElidable(staged)) {
+                uncarriedStageds.add(staged);
+            }
+        }
 
         if (behavior instanceof CtMethod) {
             try {
@@ -1062,6 +1073,36 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
         instructionRewrites[at] = bytecode;
     }
 
+    // A staged's result needs no local carrier if it only ever flows into staged arguments that are not made constant
+    // and whose invoke method parameters also take bare expressions (see ExpressionClassFactory). No other code gets to
+    // see the expression then, so there is no carrier to be materialized, which saves allocating one per staged call.
+    private boolean isCarrierElidable(Source.Staged staged) {
+        if (!ExpressionClassFactory.hasUncarriedInvokeMethod(staged) || staged.getOutData().isEmpty()) {
+            return false;
+        }
+
+        for (Flow.Data data : staged.getOutData()) {
+            if (!(data.getTo() instanceof Use.Argument)) {
+                return false;
+            }
+
+            Use.Argument argument = (Use.Argument) data.getTo();
+            if (!ExpressionClassFactory.acceptsUncarried(argument.getType()) || constantAnalyzerResult.isConstant(argument.getUseIndex())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private CtMethod getInvokeMethod(Source.Staged staged) {
+        if (uncarriedStageds.contains(staged)) {
+            return ExpressionClassFactory.getUncarriedInvokeMethod(staged);
+        } else {
+            return ExpressionClassFactory.getInvokeMethod(staged);
+        }
+    }
+
     private void addArgumentPassingAndStaticInfoAndClosureHolderCode(Source.Staged staged, Type targetType, Bytecode bytecode) {
         if (staged.getArguments().size() > 253) {
             bytecode.addAnewarray(Type.OBJECT.getCtClass(), staged.getArguments().size());
@@ -1112,12 +1153,10 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
 
                 StaticInfo staticInfo = StaticInfo.make(origin, inferredTypes);
 
-                int id = Dispatcher.addPersistent(staticInfo);
-
                 // This gives us a nice name referring to the original position of the staged
                 String fieldName = clazz.makeUniqueName("staticInfo") + "$" + behavior.getName() + "$" + staged.getSourceIndex().getPosition();
 
-                String fieldSource = "private static final " + Util.STATIC_INFO_CLASS.getName() + " " + fieldName + " = (" + Util.STATIC_INFO_CLASS.getName() + ") " + Util.DISPATCHER_CLASS.getName() + ".removePersistent(" + id + ");";
+                String fieldSource = "private static final " + Util.STATIC_INFO_CLASS.getName() + " " + fieldName + " = " + Constants.makeStaticInfoSource(staticInfo) + ";";
                 try {
                     staticInfoField = CtField.make(fieldSource, clazz);
                     stagedToStaticInfoField.put(staged, staticInfoField);
@@ -1151,7 +1190,7 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
                 // This gives us a nice name referring to the original position of the staged
                 String fieldName = clazz.makeUniqueName("traceCache") + "$" + behavior.getName() + "$" + staged.getSourceIndex().getPosition();
 
-                String fieldSource = "private static final " + Util.TRACE_CACHE_CLASS.getName() + " " + fieldName + " = " + Util.DISPATCHER_CLASS.getName() + ".makeTraceCache(32);";
+                String fieldSource = "private static final " + Util.TRACE_CACHE_CLASS.getName() + " " + fieldName + " = " + Util.DISPATCHER_CLASS.getName() + ".makeTraceCache(" + traceCacheSize + ");";
                 try {
                     cacheField = CtField.make(fieldSource, clazz);
                     traceCachableStagedToCacheField.put(staged, cacheField);
@@ -1436,7 +1475,7 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
             Bytecode bytecode = new Bytecode(behavior.getMethodInfo().getConstPool());
 
             addArgumentPassingAndStaticInfoAndClosureHolderCode(staged, fieldType, bytecode);
-            CtMethod m = ExpressionClassFactory.getInvokeMethod(staged);
+            CtMethod m = getInvokeMethod(staged);
             bytecode.addInvokestatic(m.getDeclaringClass().getName(), m.getName(), m.getMethodInfo2().getDescriptor());
 
             if (staged.isStrict()) {
@@ -1461,7 +1500,7 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
             Bytecode bytecode = new Bytecode(behavior.getMethodInfo().getConstPool());
 
             addArgumentPassingAndStaticInfoAndClosureHolderCode(staged, fieldType, bytecode);
-            CtMethod m = ExpressionClassFactory.getInvokeMethod(staged);
+            CtMethod m = getInvokeMethod(staged);
             bytecode.addInvokestatic(m.getDeclaringClass().getName(), m.getName(), m.getMethodInfo2().getDescriptor());
 
             rewriteInstruction(at, bytecode);
@@ -1478,7 +1517,7 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
             Bytecode bytecode = new Bytecode(behavior.getMethodInfo().getConstPool());
 
             addArgumentPassingAndStaticInfoAndClosureHolderCode(staged, fieldType, bytecode);
-            CtMethod m = ExpressionClassFactory.getInvokeMethod(staged);
+            CtMethod m = getInvokeMethod(staged);
             bytecode.addInvokestatic(m.getDeclaringClass().getName(), m.getName(), m.getMethodInfo2().getDescriptor());
 
             if (staged.isStrict()) {
@@ -1503,7 +1542,7 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
             Bytecode bytecode = new Bytecode(behavior.getMethodInfo().getConstPool());
 
             addArgumentPassingAndStaticInfoAndClosureHolderCode(staged, fieldType, bytecode);
-            CtMethod m = ExpressionClassFactory.getInvokeMethod(staged);
+            CtMethod m = getInvokeMethod(staged);
             bytecode.addInvokestatic(m.getDeclaringClass().getName(), m.getName(), m.getMethodInfo2().getDescriptor());
 
             rewriteInstruction(at, bytecode);
@@ -1523,7 +1562,7 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
             Bytecode bytecode = new Bytecode(behavior.getMethodInfo().getConstPool());
 
             addArgumentPassingAndStaticInfoAndClosureHolderCode(staged, returnType, bytecode);
-            CtMethod m = ExpressionClassFactory.getInvokeMethod(staged);
+            CtMethod m = getInvokeMethod(staged);
             bytecode.addInvokestatic(m.getDeclaringClass().getName(), m.getName(), m.getMethodInfo2().getDescriptor());
 
             if (staged.isStrict()) {
@@ -1553,7 +1592,7 @@ final class WeaveAnalyzer extends HighLevelAnalyzerWithBoxingUnboxing<WeaveAnaly
             Bytecode bytecode = new Bytecode(behavior.getMethodInfo().getConstPool());
 
             addArgumentPassingAndStaticInfoAndClosureHolderCode(staged, returnType, bytecode);
-            CtMethod m = ExpressionClassFactory.getInvokeMethod(staged);
+            CtMethod m = getInvokeMethod(staged);
             bytecode.addInvokestatic(m.getDeclaringClass().getName(), m.getName(), m.getMethodInfo2().getDescriptor());
 
             if (staged.isStrict()) {
@@ -0,0 +1,159 @@
+package tamestaj;
+
+import com.google.common.io.ByteStreams;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+// Weaves the classes of a directory or JAR ahead of time, through the same transformer as the agent, and writes them
+// to a JAR together with everything else they need at run time: the generated expression classes, the (public)
+// hidden classes, and carrier and language classes that were modified along the way. Only the input is woven, any
+// other class that refers to staged members has to be part of it as well.
+//
+// Usage: java -cp tamestaj.jar:<dependencies> tamestaj.Weaver <input directory or JAR> <output JAR> [<class path>]
+//
+// The output JAR has to come before tamestaj.jar on the class path of the application, which then runs without the
+// agent.
+
+final class Weaver {
+    private Weaver() { }
+
+    public static void main(String[] args) throws IOException, NotFoundException, CannotCompileException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java -cp tamestaj.jar:<dependencies> tamestaj.Weaver <input directory or JAR> <output JAR> [<class path>]");
+            System.exit(1);
+        }
+
+        File input = new File(args[0]);
+        File output = new File(args[1]);
+
+        ClassPool cp = ClassPool.getDefault();
+        cp.insertClassPath(input.getPath());
+        if (args.length == 3) {
+            for (String path : args[2].split(File.pathSeparator)) {
+                if (!path.isEmpty()) {
+                    cp.appendClassPath(path);
+                }
+            }
+        }
+
+        Agent.Transformer transformer = new Agent.Transformer();
+        HashSet<String> writtenNames = new HashSet<>();
+
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(output))) {
+            if (input.isDirectory()) {
+                ArrayList<String> names = new ArrayList<>();
+                listFiles(input, "", names);
+                Collections.sort(names);
+
+                for (String name : names) {
+                    byte[] bytes;
+                    try (InputStream stream = new FileInputStream(new File(input, name))) {
+                        bytes = ByteStreams.toByteArray(stream);
+                    }
+                    write(out, name, weave(transformer, name, bytes), writtenNames);
+                }
+            } else {
+                try (JarFile jar = new JarFile(input)) {
+                    Manifest manifest = jar.getManifest();
+                    if (manifest != null) {
+                        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+                        manifest.write(manifestBytes);
+                        write(out, JarFile.MANIFEST_NAME, manifestBytes.toByteArray(), writtenNames);
+                    }
+
+                    Enumeration<JarEntry> entries = jar.entries();
+                    while (entries.hasMoreElements()) {
+                        JarEntry entry = entries.nextElement();
+                        if (entry.isDirectory() || entry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                            continue;
+                        }
+
+                        byte[] bytes;
+                        try (InputStream stream = jar.getInputStream(entry)) {
+                            bytes = ByteStreams.toByteArray(stream);
+                        }
+                        write(out, entry.getName(), weave(transformer, entry.getName(), bytes), writtenNames);
+                    }
+                }
+            }
+
+            // The input might not have contained anything to weave
+            Agent.Transformer.makeHiddenClassesPublic();
+
+            ArrayList<CtClass> runtimeClasses = new ArrayList<>(Arrays.asList(
+                    Util.CLOSURE_HOLDER_CLASS, Util.TRACE_CACHE_CLASS, Util.TRACE_CLASS, Util.DISPATCHER_CLASS,
+                    Util.DISAMBIGUATION_PARAMETER_CLASS));
+            runtimeClasses.addAll(CarrierTransformer.getTransformedCarriers());
+            runtimeClasses.addAll(ExpressionClassFactory.getLanguages());
+            runtimeClasses.sort(Comparator.comparing(CtClass::getName));
+            for (CtClass clazz : runtimeClasses) {
+                String name = clazz.getName().replace('.', '/') + ".class";
+                if (!writtenNames.contains(name) && clazz.isModified()) {
+                    write(out, name, clazz.toBytecode(), writtenNames);
+                }
+            }
+
+            // Including those that come from the class cache
+            for (Map.Entry<String, byte[]> entry : ExpressionClassFactory.getExpressionClassFiles().entrySet()) {
+                write(out, entry.getKey().replace('.', '/') + ".class", entry.getValue(), writtenNames);
+            }
+        }
+    }
+
+    private static byte[] weave(Agent.Transformer transformer, String name, byte[] bytes) {
+        if (!name.endsWith(".class")) {
+            return bytes;
+        }
+
+        try {
+            byte[] wovenBytes = transformer.transform(null, name.substring(0, name.length() - ".class".length()), null, null, bytes);
+            return wovenBytes == null ? bytes : wovenBytes;
+        } catch (IllegalClassFormatException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void write(JarOutputStream out, String name, byte[] bytes, HashSet<String> writtenNames) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+
+        writtenNames.add(name);
+    }
+
+    private static void listFiles(File directory, String prefix, ArrayList<String> names) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listFiles(file, prefix + file.getName() + "/", names);
+            } else {
+                names.add(prefix + file.getName());
+            }
+        }
+    }
+}
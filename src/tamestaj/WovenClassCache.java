@@ -0,0 +1,360 @@
+package tamestaj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Keeps the results of weaving on disk, such that unchanged classes do not have to be analyzed again in later runs.
+// It is enabled by option "classCache", which names the directory to keep the cache in.
+//
+// Entries are content-addressed by a digest of everything a transformation depends on (see Agent.makeCacheKey), so
+// they never have to be invalidated: a changed class (or a changed annotation it refers to) simply gets a new key.
+// The directory contains two files:
+//  - "index" is a hash table of fixed-size slots (with linear probing) that is memory-mapped, so that a lookup
+//    does not need any system call. A slot consists of a key prefix, the offset and the length of the entry in the
+//    data file, and a flag that is written last.
+//  - "data" is only ever appended to, each entry repeats the full key followed by the woven class file and the
+//    expression classes it refers to (see ExpressionClassFactory), or nothing for classes that have nothing to weave.
+// Several JVMs may share the directory, writers lock the index file.
+
+final class WovenClassCache {
+    private static final int MAGIC = 0x7a6d5763;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int KEY_SIZE = 32;
+    private static final int KEY_PREFIX_SIZE = 16;
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_OFFSET = KEY_PREFIX_SIZE;
+    private static final int SLOT_LENGTH = KEY_PREFIX_SIZE + 8;
+    private static final int SLOT_FLAG = KEY_PREFIX_SIZE + 12;
+    private static final int OCCUPIED = 1;
+
+    static final class Entry {
+        private final byte[] classFile;
+        private final TreeMap<String, byte[]> expressionClassFiles;
+
+        private Entry(byte[] classFile, TreeMap<String, byte[]> expressionClassFiles) {
+            this.classFile = classFile;
+            this.expressionClassFiles = expressionClassFiles;
+        }
+
+        static Entry make(byte[] classFile, TreeMap<String, byte[]> expressionClassFiles) {
+            return new Entry(classFile, expressionClassFiles);
+        }
+
+        // Null for classes that have nothing to weave
+        byte[] getClassFile() {
+            return classFile;
+        }
+
+        TreeMap<String, byte[]> getExpressionClassFiles() {
+            return expressionClassFiles;
+        }
+    }
+
+    private static final Entry NOTHING_WOVEN = new Entry(null, new TreeMap<>());
+
+    private static final String agentVersion;
+
+    private static final FileChannel indexChannel;
+    private static final MappedByteBuffer index;
+    private static final int slotMask;
+    private static final FileChannel dataChannel;
+
+    static {
+        String directoryName = Options.getString("classCache", null);
+
+        FileChannel ic = null;
+        MappedByteBuffer i = null;
+        int sm = 0;
+        FileChannel dc = null;
+        if (directoryName != null) {
+            try {
+                File directory = new File(directoryName);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create class cache directory \"" + directory + "\"!");
+                }
+
+                ic = new RandomAccessFile(new File(directory, "index"), "rw").getChannel();
+                dc = new RandomAccessFile(new File(directory, "data"), "rw").getChannel();
+
+                FileLock lock = ic.lock();
+                try {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    ic.read(header, 0);
+                    header.flip();
+
+                    int slotCount;
+                    if (header.remaining() == HEADER_SIZE && header.getInt(0) == MAGIC && header.getInt(4) == FORMAT_VERSION) {
+                        slotCount = header.getInt(8);
+                    } else {
+                        // New (or incompatible) cache, start over
+                        slotCount = Integer.highestOneBit(Math.max(1, Options.getInt("classCacheSlots", 1 << 16)) * 2 - 1);
+                        ic.truncate(0);
+                        dc.truncate(0);
+
+                        header.clear();
+                        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(slotCount).putInt(0);
+                        header.flip();
+                        ic.write(header, 0);
+                    }
+
+                    i = ic.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+                    sm = slotCount - 1;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                // The cache is optional, so transformation must work regardless...
+                e.printStackTrace();
+                i = null;
+            }
+        }
+
+        indexChannel = ic;
+        index = i;
+        slotMask = sm;
+        dataChannel = dc;
+
+        agentVersion = index == null ? null : getAgentVersion();
+    }
+
+    private WovenClassCache() { }
+
+    // The key has to change whenever the agent does, for lack of a proper version we go by the agent's JAR
+    private static String getAgentVersion() {
+        String version = "tamestaj/" + FORMAT_VERSION;
+
+        String implementationVersion = WovenClassCache.class.getPackage().getImplementationVersion();
+        if (implementationVersion != null) {
+            version += "/" + implementationVersion;
+        }
+
+        CodeSource codeSource = WovenClassCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            try {
+                File file = new File(codeSource.getLocation().toURI());
+                if (file.isFile()) {
+                    version += "/" + file.length() + "/" + file.lastModified();
+                }
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // Just a less precise version then...
+            }
+        }
+
+        return version;
+    }
+
+    static boolean isEnabled() {
+        return index != null;
+    }
+
+    static final class KeyBuilder {
+        private final MessageDigest digest;
+
+        private KeyBuilder() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+
+            add(agentVersion);
+        }
+
+        KeyBuilder add(byte[] bytes) {
+            addLength(bytes.length);
+            digest.update(bytes);
+            return this;
+        }
+
+        KeyBuilder add(String string) {
+            return add(string.getBytes(StandardCharsets.UTF_8));
+        }
+
+        KeyBuilder add(long number) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                digest.update((byte) (number >>> shift));
+            }
+            return this;
+        }
+
+        KeyBuilder add(boolean bool) {
+            digest.update((byte) (bool ? 1 : 0));
+            return this;
+        }
+
+        // Everything variable-length is prefixed with its length, so that different sequences cannot collide
+        private void addLength(int length) {
+            digest.update((byte) (length >>> 24));
+            digest.update((byte) (length >>> 16));
+            digest.update((byte) (length >>> 8));
+            digest.update((byte) length);
+        }
+
+        byte[] build() {
+            return digest.digest();
+        }
+    }
+
+    static KeyBuilder makeKeyBuilder() {
+        return new KeyBuilder();
+    }
+
+    private static int getSlotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static boolean matchesSlot(int position, byte[] key) {
+        for (int i = 0; i < KEY_PREFIX_SIZE; i++) {
+            if (index.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int getFirstSlot(byte[] key) {
+        return ((key[0] & 0xff) << 24 | (key[1] & 0xff) << 16 | (key[2] & 0xff) << 8 | (key[3] & 0xff)) & slotMask;
+    }
+
+    // Returns null for classes that are not cached
+    static Entry lookup(byte[] key) {
+        int slot = getFirstSlot(key);
+        for (int probes = 0; probes <= slotMask; probes++) {
+            int position = getSlotPosition(slot);
+            if (index.getInt(position + SLOT_FLAG) != OCCUPIED) {
+                return null;
+            }
+
+            if (matchesSlot(position, key)) {
+                Entry entry = read(index.getLong(position + SLOT_OFFSET), index.getInt(position + SLOT_LENGTH), key);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+
+            slot = (slot + 1) & slotMask;
+        }
+
+        return null;
+    }
+
+    private static Entry read(long offset, int length, byte[] key) {
+        if (length < KEY_SIZE) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (dataChannel.read(buffer, offset + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+
+            byte[] entry = buffer.array();
+            // The slot only holds a prefix of the key, so it is verified against the full one
+            if (!Arrays.equals(Arrays.copyOf(entry, KEY_SIZE), key)) {
+                return null;
+            }
+
+            if (length == KEY_SIZE) {
+                return NOTHING_WOVEN;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry, KEY_SIZE, length - KEY_SIZE));
+            TreeMap<String, byte[]> expressionClassFiles = new TreeMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] expressionClassFile = new byte[in.readInt()];
+                in.readFully(expressionClassFile);
+                expressionClassFiles.put(name, expressionClassFile);
+            }
+            byte[] classFile = new byte[in.readInt()];
+            in.readFully(classFile);
+
+            return new Entry(classFile, expressionClassFiles);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // The entry is null for classes that have nothing to weave
+    static synchronized void store(byte[] key, Entry entry) {
+        try {
+            FileLock lock = indexChannel.lock();
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                bytes.write(key);
+                if (entry != null) {
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeInt(entry.expressionClassFiles.size());
+                    for (Map.Entry<String, byte[]> e : entry.expressionClassFiles.entrySet()) {
+                        out.writeUTF(e.getKey());
+                        out.writeInt(e.getValue().length);
+                        out.write(e.getValue());
+                    }
+                    out.writeInt(entry.classFile.length);
+                    out.write(entry.classFile);
+                    out.flush();
+                }
+                int length = bytes.size();
+
+                int slot = getFirstSlot(key);
+                for (int probes = 0; probes <= slotMask; probes++) {
+                    int position = getSlotPosition(slot);
+                    if (index.getInt(position + SLOT_FLAG) != OCCUPIED) {
+                        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+                        long offset = dataChannel.size();
+                        while (buffer.hasRemaining()) {
+                            dataChannel.write(buffer, offset + buffer.position());
+                        }
+
+                        for (int i = 0; i < KEY_PREFIX_SIZE; i++) {
+                            index.put(position + i, key[i]);
+                        }
+                        index.putLong(position + SLOT_OFFSET, offset);
+                        index.putInt(position + SLOT_LENGTH, length);
+                        index.putInt(position + SLOT_FLAG, OCCUPIED);
+                        return;
+                    }
+
+                    if (matchesSlot(position, key)) {
+                        // Another JVM got there first
+                        return;
+                    }
+
+                    slot = (slot + 1) & slotMask;
+                }
+
+                // The index is full, so the cache simply stops growing
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -12,4 +12,11 @@ public class FunctorL implements Language<FunctorL> {
         expression.accept(compiler);
         return compiler.getClosure();
     }
+
+    // Used while the closure above is compiled in the background (if enabled)
+    public static ObjectClosure<?> makeInterpretedObjectClosure(Expression expression, Environment.Binder binder, boolean permCached) {
+        FunctorLSimpleCompiler compiler = new FunctorLSimpleCompiler(binder);
+        expression.accept(compiler);
+        return compiler.getClosure();
+    }
 }
@@ -8,7 +8,14 @@ import tamestaj.ObjectClosure;
 class ImmListL implements Language<ImmListL> {
     public static ObjectClosure makeObjectClosure(Expression expression, Environment.Binder binder, boolean permCached) {
         ImmListLCompiler compiler = new ImmListLCompiler(binder);
-        expression.accept(compiler);
+        compiler.traverse(expression);
         return compiler.getClosure();
     }
+
+    // Used while the closure above is compiled in the background (if enabled)
+    public static ObjectClosure<?> makeInterpretedObjectClosure(Expression expression, Environment.Binder binder, boolean permCached) {
+        ImmListLCompiler compiler = new ImmListLCompiler(binder);
+        compiler.traverse(expression);
+        return compiler.getInterpretedClosure();
+    }
 }
@@ -2,36 +2,65 @@ package tamestaj.examples.immutablelist;
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 
 import javassist.*;
+import javassist.bytecode.Descriptor;
 import tamestaj.Environment;
 import tamestaj.Expression;
+import tamestaj.MemberDescriptor;
 import tamestaj.ObjectClosure;
 import tamestaj.util.CtClassLoader;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
-final class ImmListLCompiler implements Expression.Visitor {
-    private abstract static class Op { ObjectClosure<?> closure; }
+final class ImmListLCompiler extends Expression.DagVisitor<ObjectClosure<?>> {
+    private static final int MAP = 0;
+    private static final int FILTER = 1;
+    private static final MemberDescriptor.Mapping members = MemberDescriptor.Mapping.make("map", "filter");
+
+    // Returned by the interpreted steps of filters for elements that are dropped
+    private static final Object FILTERED = new Object();
+
+    private abstract static class Op {
+        ObjectClosure<?> closure;
+
+        // The step of the interpreted closure, which evaluates to FILTERED for elements that are dropped
+        abstract Function<Object, ?> getStep(Environment env) throws Throwable;
+    }
     private static class TransformOp extends Op {
-        private TransformOp(ObjectClosure<Function<Object, ?>> functionClosure) { this.closure = functionClosure; }
+        private final ObjectClosure<Function<Object, ?>> functionClosure;
+
+        private TransformOp(ObjectClosure<Function<Object, ?>> functionClosure) { this.closure = functionClosure; this.functionClosure = functionClosure; }
+
+        Function<Object, ?> getStep(Environment env) throws Throwable {
+            return functionClosure.evaluate(env);
+        }
     }
     private static class FilterOp extends Op {
-        private FilterOp(ObjectClosure<Predicate<Object>> predicateClosure) { this.closure = predicateClosure; }
+        private final ObjectClosure<Predicate<Object>> predicateClosure;
+
+        private FilterOp(ObjectClosure<Predicate<Object>> predicateClosure) { this.closure = predicateClosure; this.predicateClosure = predicateClosure; }
+
+        Function<Object, ?> getStep(Environment env) throws Throwable {
+            Predicate<Object> predicate = predicateClosure.evaluate(env);
+            return o -> predicate.apply(o) ? o : FILTERED;
+        }
     }
 
     private final Environment.Binder binder;
-    private ObjectClosure<?> closure;
 
     private ObjectClosure<?> input;
-    private CtClass returnType;
+    private String returnTypeName;
     private List<Op> ops = null;
 
     ImmListLCompiler(Environment.Binder binder) {
+        super(true);
         this.binder = binder;
     }
 
@@ -62,7 +91,7 @@ final class ImmListLCompiler implements Expression.Visitor {
                     cloSource.append("    " + Predicate.class.getName() + " p" + (i + 1) + " = (" + Predicate.class.getName() + ") c" + (i + 1) + ".evaluate(env);\n");
                 }
             }
-            cloSource.append("    " + returnType.getName() + "$Builder builder = " + returnType.getName() + ".builder();\n");
+            cloSource.append("    " + returnTypeName + "$Builder builder = " + returnTypeName + ".builder();\n");
             cloSource.append("    " + Iterator.class.getName() + " iterator = ((" + Iterable.class.getName() + ") c0.evaluate(env)).iterator();\n");
             cloSource.append("    while (iterator.hasNext()) {\n"
                     + "        Object o = iterator.next();\n");
@@ -97,23 +126,47 @@ final class ImmListLCompiler implements Expression.Visitor {
         }
     }
 
+    // Loops over the operations instead of fusing them in a generated class, so it is quick to make but slower to run.
+    // All staged members that are evaluated return an ImmutableList.
+    ObjectClosure<?> getInterpretedClosure() {
+        if (ops == null) {
+            return input;
+        }
+
+        ObjectClosure<?> input = this.input;
+        Op[] ops = this.ops.toArray(new Op[this.ops.size()]);
+        return env -> {
+            ArrayList<Function<Object, ?>> steps = new ArrayList<>(ops.length);
+            for (Op op : ops) {
+                steps.add(op.getStep(env));
+            }
+
+            ImmutableList.Builder<Object> builder = ImmutableList.builder();
+            elements:
+            for (Object o : (Iterable<?>) input.evaluate(env)) {
+                for (Function<Object, ?> step : steps) {
+                    o = step.apply(o);
+                    if (o == FILTERED) {
+                        continue elements;
+                    }
+                }
+                builder.add(o);
+            }
+            return builder.build();
+        };
+    }
+
     @Override
     public void visit(Expression.FieldRead staged) { }
     @Override
     public void visit(Expression.FieldAssignment staged) { }
     @Override
     public void visit(Expression.MethodInvocation staged) {
-        CtMethod method = staged.getMember();
-        if (returnType == null) {
-            try {
-                returnType = method.getReturnType();
-            } catch (NotFoundException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        MemberDescriptor method = staged.getMember();
+        // Arguments are visited first, so the root's return type is the one that remains
+        returnTypeName = Descriptor.toClassName(method.getDescriptor().substring(method.getDescriptor().indexOf(')') + 1));
 
-        staged.getArgument(0).accept(this);
-        ObjectClosure<?> arg0 = closure;
+        ObjectClosure<?> arg0 = traverse(staged.getArgument(0));
         if (input == null) {
             input = arg0;
         }
@@ -123,15 +176,14 @@ final class ImmListLCompiler implements Expression.Visitor {
                 ops = new LinkedList<>();
             }
 
-            staged.getArgument(1).accept(this);
-            ObjectClosure<?> arg1 = closure;
+            ObjectClosure<?> arg1 = traverse(staged.getArgument(1));
 
-            switch (method.getName()) {
-                case "map": {
+            switch (members.get(method)) {
+                case MAP: {
                     ops.add(new TransformOp((ObjectClosure<Function<Object, ?>>) arg1));
                     break;
                 }
-                case "filter": {
+                case FILTER: {
                     ops.add(new FilterOp((ObjectClosure<Predicate<Object>>) arg1));
                     break;
                 }
@@ -141,7 +193,7 @@ final class ImmListLCompiler implements Expression.Visitor {
 
     @Override
     public void visit(Expression.ObjectValue value) {
-        closure = value.bind(binder);
+        setResult(value.bind(binder));
     }
     @Override
     public void visit(Expression.BooleanValue value) { }
@@ -3,13 +3,35 @@ package tamestaj.examples.mini;
 import tamestaj.*;
 
 class MiniL implements Language<MiniL> {
+    // The staged members of Mini (see MiniLAnalyzer and MiniLCompiler)
+    static final int ADD = 0;
+    static final int MUL = 1;
+    static final int EQ = 2;
+    static final int LEQ = 3;
+    static final int AND = 4;
+    static final int OR = 5;
+    static final int NEG = 6;
+    static final int NOT = 7;
+    static final int INT_VAR = 8;
+    static final int BOOL_VAR = 9;
+    static final int INT_LIT = 10;
+    static final int BOOL_LIT = 11;
+    static final int INT_ASSIGN = 12;
+    static final int BOOL_ASSIGN = 13;
+    static final int WHILE_DO = 14;
+    static final int THEN = 15;
+    static final int INT_RUN = 16;
+    static final int BOOL_RUN = 17;
+    static final MemberDescriptor.Mapping members = MemberDescriptor.Mapping.make(
+            "add", "mul", "eq", "leq", "and", "or", "neg", "not",
+            "intVar", "boolVar", "intLit", "boolLit", "intAssign", "boolAssign", "whileDo", "then", "intRun", "boolRun");
+
     public static BooleanClosure makeBooleanClosure(Expression.Staged expression, Environment.Binder binder, boolean permCached) {
         MiniLAnalyzer a = new MiniLAnalyzer(binder);
         expression.accept(a);
 
         MiniLCompiler c = new MiniLCompiler(binder);
-        expression.accept(c);
-        return c.getClosure(BooleanClosure.class);
+        return c.getClosure(c.traverse(expression), BooleanClosure.class);
     }
 
     public static IntegerClosure makeIntegerClosure(Expression.Staged expression, Environment.Binder binder, boolean permCached) {
@@ -17,7 +39,21 @@ class MiniL implements Language<MiniL> {
         expression.accept(a);
 
         MiniLCompiler c = new MiniLCompiler(binder);
-        expression.accept(c);
-        return c.getClosure(IntegerClosure.class);
+        return c.getClosure(c.traverse(expression), IntegerClosure.class);
+    }
+
+    // Used while the closures above are compiled in the background (if enabled)
+    public static BooleanClosure makeInterpretedBooleanClosure(Expression.Staged expression, Environment.Binder binder, boolean permCached) {
+        MiniLAnalyzer a = new MiniLAnalyzer(binder);
+        expression.accept(a);
+
+        return new MiniLInterpreter(binder).getBooleanClosure(expression);
+    }
+
+    public static IntegerClosure makeInterpretedIntegerClosure(Expression.Staged expression, Environment.Binder binder, boolean permCached) {
+        MiniLAnalyzer a = new MiniLAnalyzer(binder);
+        expression.accept(a);
+
+        return new MiniLInterpreter(binder).getIntegerClosure(expression);
     }
 }
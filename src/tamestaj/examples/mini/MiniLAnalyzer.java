@@ -1,6 +1,5 @@
 package tamestaj.examples.mini;
 
-import javassist.*;
 import tamestaj.*;
 
 import java.util.HashSet;
@@ -24,29 +23,29 @@ final class MiniLAnalyzer implements Expression.Visitor {
     }
     @Override
     public void visit(Expression.MethodInvocation staged) {
-        CtMethod m = staged.getMember();
-        switch (m.getName()) {
-            case "add":
-            case "mul":
-            case "eq":
-            case "leq":
-            case "and":
-            case "or": {
+        int member = MiniL.members.get(staged.getMember());
+        switch (member) {
+            case MiniL.ADD:
+            case MiniL.MUL:
+            case MiniL.EQ:
+            case MiniL.LEQ:
+            case MiniL.AND:
+            case MiniL.OR: {
                 staged.getArgument(0).accept(this);
                 staged.getArgument(1).accept(this);
 
                 break;
             }
 
-            case "neg":
-            case "not": {
+            case MiniL.NEG:
+            case MiniL.NOT: {
                 staged.getArgument(0).accept(this);
 
                 break;
             }
 
-            case "intVar":
-            case "boolVar": {
+            case MiniL.INT_VAR:
+            case MiniL.BOOL_VAR: {
                 if (!initVars.contains(staged)) {
                     Expression.ObjectValue<String> name = (Expression.ObjectValue<String>) staged.getArgument(0);
                     if (name.isConstant()) {
@@ -59,15 +58,15 @@ final class MiniLAnalyzer implements Expression.Visitor {
                 break;
             }
 
-            case "intLit":
-            case "boolLit": {
+            case MiniL.INT_LIT:
+            case MiniL.BOOL_LIT: {
                 staged.getArgument(0).accept(this);
 
                 break;
             }
 
-            case "intAssign":
-            case "boolAssign": {
+            case MiniL.INT_ASSIGN:
+            case MiniL.BOOL_ASSIGN: {
                 staged.getArgument(1).accept(this);
 
                 initVars.add((Expression.MethodInvocation) staged.getArgument(0));
@@ -75,7 +74,7 @@ final class MiniLAnalyzer implements Expression.Visitor {
                 break;
             }
 
-            case "whileDo": {
+            case MiniL.WHILE_DO: {
                 HashSet<Expression.MethodInvocation> oldInitVars = new HashSet<>(initVars);
 
                 staged.getArgument(0).accept(this);
@@ -85,7 +84,7 @@ final class MiniLAnalyzer implements Expression.Visitor {
 
                 break;
             }
-            case "then": {
+            case MiniL.THEN: {
                 staged.getArgument(0).accept(this);
 
                 lastStaticInfo = staged.getStaticInfo().get();
@@ -95,8 +94,8 @@ final class MiniLAnalyzer implements Expression.Visitor {
                 break;
             }
 
-            case "intRun":
-            case "boolRun": {
+            case MiniL.INT_RUN:
+            case MiniL.BOOL_RUN: {
                 staged.getArgument(0).accept(this);
 
                 lastStaticInfo = staged.getStaticInfo().get();
@@ -11,7 +11,7 @@ import java.lang.reflect.Field;
 import java.util.IdentityHashMap;
 import java.util.Map;
 
-final class MiniLCompiler implements Expression.Visitor {
+final class MiniLCompiler extends Expression.DagVisitor<String> {
     private final Environment.Binder binder;
     private final IdentityHashMap<Object, String> intIdentMap = new IdentityHashMap<>();
     private final IdentityHashMap<Object, String> boolIdentMap = new IdentityHashMap<>();
@@ -19,7 +19,6 @@ final class MiniLCompiler implements Expression.Visitor {
     private final IdentityHashMap<Expression.MethodInvocation, String> boolVarIdentMap = new IdentityHashMap<>();
 
     private StaticInfo.Origin startOrigin;
-    private String code;
     private String indent = "  ";
 
     MiniLCompiler(Environment.Binder binder) {
@@ -59,7 +58,7 @@ final class MiniLCompiler implements Expression.Visitor {
         return ident;
     }
 
-    <T> T getClosure(Class<T> closureClass) {
+    <T> T getClosure(String code, Class<T> closureClass) {
         ClassPool cp = ClassPool.getDefault();
         try {
             Map.Entry<Object, String>[] intIdentEntries = new Map.Entry[intIdentMap.size()];
@@ -160,118 +159,101 @@ final class MiniLCompiler implements Expression.Visitor {
     @Override
     public void visit(Expression.MethodInvocation staged) {
         String indent = this.indent;
-        CtMethod m = staged.getMember();
-        switch (m.getName()) {
-            case "add":
-            case "mul":
-            case "eq":
-            case "leq":
-            case "and":
-            case "or": {
-                staged.getArgument(0).accept(this);
-                String arg0 = code;
-
-                staged.getArgument(1).accept(this);
-                String arg1 = code;
+        int member = MiniL.members.get(staged.getMember());
+        switch (member) {
+            case MiniL.ADD:
+            case MiniL.MUL:
+            case MiniL.EQ:
+            case MiniL.LEQ:
+            case MiniL.AND:
+            case MiniL.OR: {
+                String arg0 = traverse(staged.getArgument(0));
+                String arg1 = traverse(staged.getArgument(1));
 
                 String op;
-                switch(m.getName()) {
-                    case "add": { op = " + ";  break; }
-                    case "mul": { op = " * ";  break; }
-                    case "eq":  { op = " == "; break; }
-                    case "leq": { op = " <= "; break; }
-                    case "and": { op = " && "; break; }
-                    case "or":  { op = " || "; break; }
+                switch (member) {
+                    case MiniL.ADD: { op = " + ";  break; }
+                    case MiniL.MUL: { op = " * ";  break; }
+                    case MiniL.EQ:  { op = " == "; break; }
+                    case MiniL.LEQ: { op = " <= "; break; }
+                    case MiniL.AND: { op = " && "; break; }
+                    case MiniL.OR:  { op = " || "; break; }
                     default: throw new RuntimeException();
                 }
 
-                code = "(" + arg0 + op + arg1 + ")";
+                setResult("(" + arg0 + op + arg1 + ")");
                 break;
             }
 
-            case "neg":
-            case "not": {
-                staged.getArgument(0).accept(this);
-                String arg0 = code;
+            case MiniL.NEG:
+            case MiniL.NOT: {
+                String arg0 = traverse(staged.getArgument(0));
 
                 String op;
-                switch(m.getName()) {
-                    case "neg": { op = "-"; break; }
-                    case "not": { op = "!"; break; }
+                switch (member) {
+                    case MiniL.NEG: { op = "-"; break; }
+                    case MiniL.NOT: { op = "!"; break; }
                     default: throw new RuntimeException();
                 }
 
-                code = "(" + op + arg0 + ")";
+                setResult("(" + op + arg0 + ")");
                 break;
             }
 
-            case "intVar": {
-                code = getIntVarIdent(staged);
+            case MiniL.INT_VAR: {
+                setResult(getIntVarIdent(staged));
                 break;
             }
-            case "boolVar": {
-                code = getBoolVarIdent(staged);
+            case MiniL.BOOL_VAR: {
+                setResult(getBoolVarIdent(staged));
                 break;
             }
 
-            case "intLit":
-            case "boolLit": {
-                staged.getArgument(0).accept(this);
+            case MiniL.INT_LIT:
+            case MiniL.BOOL_LIT: {
+                setResult(traverse(staged.getArgument(0)));
                 break;
             }
 
-            case "intAssign":
-            case "boolAssign": {
-                staged.getArgument(0).accept(this);
-                String arg0 = code;
+            case MiniL.INT_ASSIGN:
+            case MiniL.BOOL_ASSIGN: {
+                String arg0 = traverse(staged.getArgument(0));
+                String arg1 = traverse(staged.getArgument(1));
 
-                staged.getArgument(1).accept(this);
-                String arg1 = code;
-
-                code = indent + arg0 + " = " + arg1 + ";";
+                setResult(indent + arg0 + " = " + arg1 + ";");
                 break;
             }
 
-            case "whileDo": {
-                staged.getArgument(0).accept(this);
-                String arg0 = code;
+            case MiniL.WHILE_DO: {
+                String arg0 = traverse(staged.getArgument(0));
 
                 this.indent += "  ";
 
-                staged.getArgument(1).accept(this);
-                String arg1 = code;
+                String arg1 = traverse(staged.getArgument(1));
 
                 this.indent = indent;
 
-                code = indent + "while (" + arg0 + ") {\n" + arg1 + "\n" + indent + "}";
+                setResult(indent + "while (" + arg0 + ") {\n" + arg1 + "\n" + indent + "}");
                 break;
             }
-            case "then": {
-                code = indent + "// Sequence start";
-
+            case MiniL.THEN: {
                 if (startOrigin == null) {
                     startOrigin = staged.getStaticInfo().get().getOrigin().get();
                 }
 
-                staged.getArgument(0).accept(this);
-                String arg0 = code;
+                String arg0 = traverse(staged.getArgument(0));
+                String arg1 = traverse(staged.getArgument(1));
 
-                staged.getArgument(1).accept(this);
-                String arg1 = code;
-
-                code = arg0 + "\n" + arg1;
+                setResult(arg0 + "\n" + arg1);
                 break;
             }
 
-            case "intRun":
-            case "boolRun": {
-                staged.getArgument(0).accept(this);
-                String arg0 = code;
-
-                staged.getArgument(1).accept(this);
-                String arg1 = code;
+            case MiniL.INT_RUN:
+            case MiniL.BOOL_RUN: {
+                String arg0 = traverse(staged.getArgument(0));
+                String arg1 = traverse(staged.getArgument(1));
 
-                code = arg0 + "\n" + indent + "return " + arg1 + ";";
+                setResult(arg0 + "\n" + indent + "return " + arg1 + ";");
                 break;
             }
         }
@@ -283,11 +265,11 @@ final class MiniLCompiler implements Expression.Visitor {
     }
     @Override
     public void visit(Expression.BooleanValue value) {
-        code = getIdent(value.bind(binder));
+        setResult(getIdent(value.bind(binder)));
     }
     @Override
     public void visit(Expression.IntegerValue value) {
-        code = getIdent(value.bind(binder));
+        setResult(getIdent(value.bind(binder)));
     }
     @Override
     public void visit(Expression.LongValue value) {
@@ -0,0 +1,225 @@
+package tamestaj.examples.mini;
+
+import tamestaj.*;
+
+import java.util.IdentityHashMap;
+
+// Turns a Mini program into a tree of closures that walk it, which is quick to make (unlike MiniLCompiler, which
+// generates a class) but slower to run. Variables live in a frame of their own per evaluation, just like the locals of
+// the generated method.
+
+final class MiniLInterpreter extends Expression.DagVisitor<Object> {
+    private static final class Frame {
+        private final int[] ints;
+        private final boolean[] bools;
+
+        private Frame(int intCount, int boolCount) {
+            ints = new int[intCount];
+            bools = new boolean[boolCount];
+        }
+    }
+
+    private interface IntNode { int evaluate(Environment env, Frame frame) throws Throwable; }
+    private interface BoolNode { boolean evaluate(Environment env, Frame frame) throws Throwable; }
+    private interface StmtNode { void run(Environment env, Frame frame) throws Throwable; }
+
+    private final Environment.Binder binder;
+    private final IdentityHashMap<Expression.MethodInvocation, Integer> intVarSlots = new IdentityHashMap<>();
+    private final IdentityHashMap<Expression.MethodInvocation, Integer> boolVarSlots = new IdentityHashMap<>();
+
+    MiniLInterpreter(Environment.Binder binder) {
+        this.binder = binder;
+    }
+
+    private int getIntVarSlot(Expression.MethodInvocation variable) {
+        return intVarSlots.computeIfAbsent(variable, v -> intVarSlots.size());
+    }
+    private int getBoolVarSlot(Expression.MethodInvocation variable) {
+        return boolVarSlots.computeIfAbsent(variable, v -> boolVarSlots.size());
+    }
+
+    IntegerClosure getIntegerClosure(Expression.Staged expression) {
+        IntNode node = (IntNode) traverse(expression);
+        int intCount = intVarSlots.size();
+        int boolCount = boolVarSlots.size();
+        return env -> node.evaluate(env, new Frame(intCount, boolCount));
+    }
+
+    BooleanClosure getBooleanClosure(Expression.Staged expression) {
+        BoolNode node = (BoolNode) traverse(expression);
+        int intCount = intVarSlots.size();
+        int boolCount = boolVarSlots.size();
+        return env -> node.evaluate(env, new Frame(intCount, boolCount));
+    }
+
+    @Override
+    public void visit(Expression.FieldRead staged) {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void visit(Expression.FieldAssignment staged) {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void visit(Expression.MethodInvocation staged) {
+        int member = MiniL.members.get(staged.getMember());
+        switch (member) {
+            case MiniL.ADD: {
+                IntNode arg0 = (IntNode) traverse(staged.getArgument(0));
+                IntNode arg1 = (IntNode) traverse(staged.getArgument(1));
+                setResult((IntNode) (env, frame) -> arg0.evaluate(env, frame) + arg1.evaluate(env, frame));
+                break;
+            }
+            case MiniL.MUL: {
+                IntNode arg0 = (IntNode) traverse(staged.getArgument(0));
+                IntNode arg1 = (IntNode) traverse(staged.getArgument(1));
+                setResult((IntNode) (env, frame) -> arg0.evaluate(env, frame) * arg1.evaluate(env, frame));
+                break;
+            }
+            case MiniL.EQ: {
+                IntNode arg0 = (IntNode) traverse(staged.getArgument(0));
+                IntNode arg1 = (IntNode) traverse(staged.getArgument(1));
+                setResult((BoolNode) (env, frame) -> arg0.evaluate(env, frame) == arg1.evaluate(env, frame));
+                break;
+            }
+            case MiniL.LEQ: {
+                IntNode arg0 = (IntNode) traverse(staged.getArgument(0));
+                IntNode arg1 = (IntNode) traverse(staged.getArgument(1));
+                setResult((BoolNode) (env, frame) -> arg0.evaluate(env, frame) <= arg1.evaluate(env, frame));
+                break;
+            }
+            case MiniL.AND: {
+                BoolNode arg0 = (BoolNode) traverse(staged.getArgument(0));
+                BoolNode arg1 = (BoolNode) traverse(staged.getArgument(1));
+                setResult((BoolNode) (env, frame) -> arg0.evaluate(env, frame) && arg1.evaluate(env, frame));
+                break;
+            }
+            case MiniL.OR: {
+                BoolNode arg0 = (BoolNode) traverse(staged.getArgument(0));
+                BoolNode arg1 = (BoolNode) traverse(staged.getArgument(1));
+                setResult((BoolNode) (env, frame) -> arg0.evaluate(env, frame) || arg1.evaluate(env, frame));
+                break;
+            }
+
+            case MiniL.NEG: {
+                IntNode arg0 = (IntNode) traverse(staged.getArgument(0));
+                setResult((IntNode) (env, frame) -> -arg0.evaluate(env, frame));
+                break;
+            }
+            case MiniL.NOT: {
+                BoolNode arg0 = (BoolNode) traverse(staged.getArgument(0));
+                setResult((BoolNode) (env, frame) -> !arg0.evaluate(env, frame));
+                break;
+            }
+
+            case MiniL.INT_VAR: {
+                int slot = getIntVarSlot(staged);
+                setResult((IntNode) (env, frame) -> frame.ints[slot]);
+                break;
+            }
+            case MiniL.BOOL_VAR: {
+                int slot = getBoolVarSlot(staged);
+                setResult((BoolNode) (env, frame) -> frame.bools[slot]);
+                break;
+            }
+
+            case MiniL.INT_LIT:
+            case MiniL.BOOL_LIT: {
+                setResult(traverse(staged.getArgument(0)));
+                break;
+            }
+
+            case MiniL.INT_ASSIGN: {
+                int slot = getIntVarSlot((Expression.MethodInvocation) staged.getArgument(0));
+                IntNode arg1 = (IntNode) traverse(staged.getArgument(1));
+                setResult((StmtNode) (env, frame) -> frame.ints[slot] = arg1.evaluate(env, frame));
+                break;
+            }
+            case MiniL.BOOL_ASSIGN: {
+                int slot = getBoolVarSlot((Expression.MethodInvocation) staged.getArgument(0));
+                BoolNode arg1 = (BoolNode) traverse(staged.getArgument(1));
+                setResult((StmtNode) (env, frame) -> frame.bools[slot] = arg1.evaluate(env, frame));
+                break;
+            }
+
+            case MiniL.WHILE_DO: {
+                BoolNode arg0 = (BoolNode) traverse(staged.getArgument(0));
+                StmtNode arg1 = (StmtNode) traverse(staged.getArgument(1));
+                setResult((StmtNode) (env, frame) -> {
+                    while (arg0.evaluate(env, frame)) {
+                        arg1.run(env, frame);
+                    }
+                });
+                break;
+            }
+            case MiniL.THEN: {
+                StmtNode arg0 = (StmtNode) traverse(staged.getArgument(0));
+                StmtNode arg1 = (StmtNode) traverse(staged.getArgument(1));
+                setResult((StmtNode) (env, frame) -> {
+                    arg0.run(env, frame);
+                    arg1.run(env, frame);
+                });
+                break;
+            }
+
+            case MiniL.INT_RUN: {
+                StmtNode arg0 = (StmtNode) traverse(staged.getArgument(0));
+                IntNode arg1 = (IntNode) traverse(staged.getArgument(1));
+                setResult((IntNode) (env, frame) -> {
+                    arg0.run(env, frame);
+                    return arg1.evaluate(env, frame);
+                });
+                break;
+            }
+            case MiniL.BOOL_RUN: {
+                StmtNode arg0 = (StmtNode) traverse(staged.getArgument(0));
+                BoolNode arg1 = (BoolNode) traverse(staged.getArgument(1));
+                setResult((BoolNode) (env, frame) -> {
+                    arg0.run(env, frame);
+                    return arg1.evaluate(env, frame);
+                });
+                break;
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void visit(Expression.ObjectValue value) {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void visit(Expression.BooleanValue value) {
+        BooleanClosure closure = value.bind(binder);
+        setResult((BoolNode) (env, frame) -> closure.evaluate(env));
+    }
+    @Override
+    public void visit(Expression.IntegerValue value) {
+        IntegerClosure closure = value.bind(binder);
+        setResult((IntNode) (env, frame) -> closure.evaluate(env));
+    }
+    @Override
+    public void visit(Expression.LongValue value) {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void visit(Expression.FloatValue value) {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void visit(Expression.DoubleValue value) {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void visit(Expression.ByteValue value) {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void visit(Expression.CharacterValue value) {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void visit(Expression.ShortValue value) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,52 @@
+package tamestaj.examples.mini.test;
+
+import tamestaj.examples.mini.Mini.*;
+import tamestaj.util.TickTock;
+
+import java.util.Arrays;
+
+import static tamestaj.examples.mini.Mini.*;
+
+// Evaluates the same (cached) expression shape over and over again with fresh literals, such that most of the time
+// is spent retrieving bound values from the expression. Run once as is and once with
+// "-Dtamestaj.generateValueAccessors=true" to compare interpreted paths and generated value accessors.
+// Generated accessors pay off once literals are nested a few dozen levels deep, for shallow expressions there is no
+// difference. Very deep expressions first pay for generating one class per path and end up with accessor methods too
+// large to be inlined.
+public class ValueAccessorBenchmark {
+    static int sum(int depth, int x) {
+        IntV a = intVar("a");
+
+        IntE e = intLit(x);
+        for (int i = 1; i < depth; i++) {
+            e = add(intLit(x + i), e);
+        }
+
+        return intAssign(a, e).intRun(a);
+    }
+
+    public static long run(int depth) {
+        int res = 0;
+
+        TickTock.tick();
+        for (int i = 0; i < 1000000 / depth; i++) {
+            res += sum(depth, i);
+        }
+        // System.out.println(res);
+        return TickTock.tock();
+    }
+
+    public static void main(String[] args) {
+        run(10);
+
+        for (int i = 0; i < 4; i++) {
+            int depth = (int) Math.pow(4, i + 1);
+            System.out.println(depth);
+            long[] times = new long[10];
+            for (int j = 0; j < 10; j++) {
+                times[j] = run(depth);
+            }
+            System.out.println(Arrays.toString(times));
+        }
+    }
+}
@@ -3,24 +3,28 @@ package tamestaj.examples.vector;
 import tamestaj.Environment;
 import tamestaj.Expression;
 import tamestaj.Language;
+import tamestaj.MemberDescriptor;
 import tamestaj.ObjectClosure;
 import tamestaj.annotations.Stage;
 import tamestaj.util.TreePrinterMaker;
 
 class VecL implements Language<VecL> {
+    private static final int PRINT = 0;
+    private static final int INSPECT = 1;
+    private static final MemberDescriptor.Mapping members = MemberDescriptor.Mapping.make("print", "inspect");
+
     public static ObjectClosure makeObjectClosure(Expression.Staged staged, Environment.Binder binder, boolean permCached) {
-        if (staged.getMember().getName().equals("print")) {
-            TreePrinterMaker treePrinterMaker = new TreePrinterMaker(binder);
-            staged.getArgument(0).accept(treePrinterMaker);
-            return treePrinterMaker.getObjectClosure();
-        } else if (staged.getMember().getName().equals("inspect")) {
-            Expression e = staged.getArgument(0);
-            return env -> e;
+        switch (members.get(staged.getMember())) {
+            case PRINT: {
+                return new TreePrinterMaker(binder).traverse(staged.getArgument(0));
+            }
+            case INSPECT: {
+                Expression e = staged.getArgument(0);
+                return env -> e;
+            }
         }
 
-        VecLCompiler compiler = new VecLCompiler(binder);
-        staged.accept(compiler);
-        return compiler.getClosure();
+        return new VecLCompiler(binder).traverse(staged);
 
         /*
         return (ObjectClosure) new VecLScalaCompiler(binder).compile(staged);
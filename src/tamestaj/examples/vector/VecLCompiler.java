@@ -5,30 +5,29 @@ import tamestaj.annotations.Suppress;
 
 import java.util.Arrays;
 
-final class VecLCompiler implements Expression.Visitor {
+final class VecLCompiler extends Expression.DagVisitor<ObjectClosure<Vec>> {
+    private static final int PLUS = 0;
+    private static final int TIMES = 1;
+    private static final MemberDescriptor.Mapping members = MemberDescriptor.Mapping.make("plus", "times");
+
     private final Environment.Binder binder;
-    private ObjectClosure<Vec> closure;
 
     VecLCompiler(Environment.Binder binder) {
+        super(true);
         this.binder = binder;
     }
 
-    public ObjectClosure<Vec> getClosure() {
-        return closure;
-    }
-
     @Override
     public void visit(Expression.FieldRead staged) { }
     @Override
     public void visit(Expression.FieldAssignment staged) { }
     @Override
     public void visit(Expression.MethodInvocation staged) {
-        staged.getArgument(0).accept(this);
-        ObjectClosure<Vec> arg0 = closure;
-        switch (staged.getMember().getName()) {
-            case "plus": {
-                staged.getArgument(1).accept(this);
-                ObjectClosure<Vec> arg1 = closure;
+        ObjectClosure<Vec> arg0 = traverse(staged.getArgument(0));
+        ObjectClosure<Vec> closure = arg0;
+        switch (members.get(staged.getMember())) {
+            case PLUS: {
+                ObjectClosure<Vec> arg1 = traverse(staged.getArgument(1));
 
                 if (arg0 instanceof PlusN && arg1 instanceof PlusN) {
                     ObjectClosure<Vec>[] vecs = Arrays.copyOf(((PlusN) arg0).vecs, ((PlusN) arg0).vecs.length + ((PlusN) arg1).vecs.length);
@@ -54,12 +53,11 @@ final class VecLCompiler implements Expression.Visitor {
 
                 break;
             }
-            case "times": {
+            case TIMES: {
                 DoubleClosure arg1 = ((Expression.DoubleValue) staged.getArgument(1)).bind(binder);
 
                 if (arg0 instanceof Times) {
-                    DoubleClosure s = ((Times) arg0).s;
-                    closure = new Times(((Times) arg0).vec, env -> s.evaluate(env) * arg1.evaluate(env));
+                    closure = new Times(((Times) arg0).vec, Product.make(((Times) arg0).s, arg1));
                 } else {
                     closure = new Times(arg0, arg1);
                 }
@@ -69,11 +67,20 @@ final class VecLCompiler implements Expression.Visitor {
                 break;
             }
         }
+
+        // Shared vectors are only computed once, which also keeps them from being flattened into sums or products
+        if (isShared(staged)) {
+            closure = binder.memoize(closure);
+        }
+
+        setResult(closure);
     }
 
     @Override
     public void visit(Expression.ObjectValue value) {
-        closure = value.bind(binder);
+        @SuppressWarnings("unchecked")
+        ObjectClosure<Vec> closure = value.bind(binder);
+        setResult(closure);
     }
     @Override
     public void visit(Expression.BooleanValue value) { }
@@ -130,6 +137,48 @@ final class VecLCompiler implements Expression.Visitor {
         }
     }
 
+    // The scalars of a chain of products, multiplied from left to right like nested products would be, but in a loop
+    // as chains can be far longer than the stack is deep
+    public static final class Product implements DoubleClosure {
+        final DoubleClosure[] factors;
+        final int count;
+
+        private Product(DoubleClosure[] factors, int count) {
+            this.factors = factors;
+            this.count = count;
+        }
+
+        static Product make(DoubleClosure left, DoubleClosure right) {
+            if (left instanceof Product) {
+                return ((Product) left).append(right);
+            } else {
+                return new Product(new DoubleClosure[] { left, right, null, null }, 2);
+            }
+        }
+
+        // Chains only ever grow at their end, so the products along a chain share one array, unless the array is full
+        // or a product is appended to twice
+        private Product append(DoubleClosure factor) {
+            DoubleClosure[] factors = this.factors;
+            if (count == factors.length || factors[count] != null) {
+                factors = new DoubleClosure[count * 2];
+                System.arraycopy(this.factors, 0, factors, 0, count);
+            }
+            factors[count] = factor;
+
+            return new Product(factors, count + 1);
+        }
+
+        @Override
+        public double evaluate(Environment env) throws Throwable {
+            double r = factors[0].evaluate(env);
+            for (int i = 1; i < count; i++) {
+                r *= factors[i].evaluate(env);
+            }
+            return r;
+        }
+    }
+
     public static final class Times implements ObjectClosure<Vec> {
         final ObjectClosure<Vec> vec;
         final DoubleClosure s;
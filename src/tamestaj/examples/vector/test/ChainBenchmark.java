@@ -0,0 +1,50 @@
+package tamestaj.examples.vector.test;
+
+import tamestaj.examples.vector.Vec;
+import tamestaj.examples.vector.VecE;
+import tamestaj.util.TickTock;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Materializes left-deep chains of products of 10^3 to 10^6 nodes, such that most of the time is spent on operations
+// on the structure of the whole chain: hashing it, looking it up in and adding it to the cache, and compiling it.
+// Chains this deep overflow the stack unless all of these are iterative.
+public class ChainBenchmark {
+    static Vec chain(int length, Vec c) {
+        VecE cE = c.toVecE();
+        for (int i = 0; i < length; i++) {
+            cE = cE.times(1.000001);
+        }
+
+        return cE.toVec();
+    }
+
+    public static long run(int length, Vec c) {
+        Vec res = null;
+
+        TickTock.tick();
+        for (int i = 0; i < Math.max(1, 1000000 / length); i++) {
+            res = chain(length, c);
+        }
+        // System.out.println(res);
+        return TickTock.tock();
+    }
+
+    public static void main(String[] args) {
+        Random r = new Random(4);
+        Vec c = Vec.create(r.doubles(8).toArray());
+
+        run(1000, c);
+
+        for (int i = 3; i <= 6; i++) {
+            int length = (int) Math.pow(10, i);
+            System.out.println(length);
+            long[] times = new long[5];
+            for (int j = 0; j < 5; j++) {
+                times[j] = run(length, c);
+            }
+            System.out.println(Arrays.toString(times));
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package tamestaj.util;
 
-import javassist.CtMember;
 import tamestaj.Expression;
+import tamestaj.MemberDescriptor;
 
 import java.util.IdentityHashMap;
 
@@ -162,20 +162,20 @@ public final class ExpressionPrinter {
             } else {
                 String name;
 
-                CtMember m = staged.getMember();
+                MemberDescriptor m = staged.getMember();
                 if (occurrenceCountsMap.getOrDefault(staged, 1) > 1) {
                     Integer id = idMap.get(staged);
                     if (id == null) {
                         id = idMap.size();
                         idMap.put(staged, id);
 
-                        name = "#" + id + " := " + m.getDeclaringClass().getName() + "." + m.getName() + appendix;
+                        name = "#" + id + " := " + m.getDeclaringClassName() + "." + m.getName() + appendix;
                     } else {
                         output = (multiLine ? indent : "") + "#" + id;
                         return;
                     }
                 } else {
-                    name = m.getDeclaringClass().getName() + "." + m.getName() + appendix;
+                    name = m.getDeclaringClassName() + "." + m.getName() + appendix;
                 }
 
 
@@ -1,60 +1,66 @@
 package tamestaj.util;
 
-import javassist.CtMember;
 import tamestaj.*;
 import tamestaj.Expression;
 
-public class TreePrinterMaker implements Expression.Visitor {
+// Shared nodes are printed in full where they first occur, labeled with their id, and referred to by it after that
+
+public class TreePrinterMaker extends Expression.DagVisitor<ObjectClosure<String>> {
     private final Environment.Binder binder;
 
-    private ObjectClosure<String> closure;
     private String indent = "";
 
     public TreePrinterMaker(Environment.Binder binder) {
         this.binder = binder;
     }
 
-    public ObjectClosure<String> getObjectClosure() {
-        return closure;
+    private String label(Expression expression) {
+        return isShared(expression) ? indent + "#" + getId() + " := " : indent;
     }
 
     public void visit(Expression.FieldRead staged) {
-        CtMember m = staged.getMember();
-        visitStaged(staged, m.getDeclaringClass().getName() + "." + m.getName() + "<");
+        MemberDescriptor m = staged.getMember();
+        visitStaged(staged, m.getDeclaringClassName() + "." + m.getName() + "<");
     }
     public void visit(Expression.FieldAssignment staged) {
-        CtMember m = staged.getMember();
-        visitStaged(staged, m.getDeclaringClass().getName() + "." + m.getName() + ">");
+        MemberDescriptor m = staged.getMember();
+        visitStaged(staged, m.getDeclaringClassName() + "." + m.getName() + ">");
     }
     public void visit(Expression.MethodInvocation staged) {
-        CtMember m = staged.getMember();
-        visitStaged(staged, m.getDeclaringClass().getName() + "." + m.getName() + "!");
+        MemberDescriptor m = staged.getMember();
+        visitStaged(staged, m.getDeclaringClassName() + "." + m.getName() + "!");
     }
 
     protected void visitStaged(Expression.Staged staged, String name) {
         String indent = this.indent;
 
         if (staged.getArgumentCount() == 0) {
-            String n = indent + name + "()";
-            closure = env -> n;
+            String n = label(staged) + name + "()";
+            setResult(env -> n);
             return;
         }
 
         ObjectClosure<String> args[] = (ObjectClosure<String>[]) new ObjectClosure[staged.getArgumentCount()];
 
-        String open = indent + name + "(\n";
+        String open = label(staged) + name + "(\n";
         String close = "\n" + indent + ")";
 
         this.indent = this.indent + " ";
 
         for (int i = 0; i < args.length; i++) {
-            staged.getArgument(i).accept(this);
-            args[i] = closure;
+            Expression argument = staged.getArgument(i);
+            int id = getId(argument);
+            if (id < 0) {
+                args[i] = traverse(argument);
+            } else {
+                String reference = this.indent + "#" + id;
+                args[i] = env -> reference;
+            }
         }
 
         this.indent = indent;
 
-        closure = env -> {
+        setResult(env -> {
             StringBuilder sb = new StringBuilder();
             sb.append(open);
             for (int i = 0; i < args.length; i++) {
@@ -66,62 +72,62 @@ public class TreePrinterMaker implements Expression.Visitor {
             sb.append(close);
 
             return sb.toString();
-        };
+        });
     }
 
     public void visit(Expression.ObjectValue value) {
-        String indent = this.indent;
+        String label = label(value);
         ObjectClosure c = value.bind(binder);
-        closure = env -> {
+        setResult(env -> {
             Object o = c.evaluate(env);
             if (o instanceof String || o instanceof Number || o instanceof Character || o instanceof Boolean) {
-                return indent + o.toString();
+                return label + o.toString();
             } else if (o == null) {
-                return indent + "null";
+                return label + "null";
             } else {
-                return indent + o.getClass().getName() + "@" + Integer.toHexString(o.hashCode());
-                // return indent + o.toString();
+                return label + o.getClass().getName() + "@" + Integer.toHexString(o.hashCode());
+                // return label + o.toString();
             }
-        };
+        });
     }
     public void visit(Expression.BooleanValue value) {
-        String indent = this.indent;
+        String label = label(value);
         BooleanClosure c = value.bind(binder);
-        closure = env -> indent + Boolean.toString(c.evaluate(env));
+        setResult(env -> label + Boolean.toString(c.evaluate(env)));
     }
     public void visit(Expression.IntegerValue value) {
-        String indent = this.indent;
+        String label = label(value);
         IntegerClosure c = value.bind(binder);
-        closure = env -> indent + Integer.toString(c.evaluate(env));
+        setResult(env -> label + Integer.toString(c.evaluate(env)));
     }
     public void visit(Expression.LongValue value) {
-        String indent = this.indent;
+        String label = label(value);
         LongClosure c = value.bind(binder);
-        closure = env -> indent + Long.toString(c.evaluate(env));
+        setResult(env -> label + Long.toString(c.evaluate(env)));
     }
     public void visit(Expression.FloatValue value) {
-        String indent = this.indent;
+        String label = label(value);
         FloatClosure c = value.bind(binder);
-        closure = env -> indent + Float.toString(c.evaluate(env));
+        setResult(env -> label + Float.toString(c.evaluate(env)));
     }
     public void visit(Expression.DoubleValue value) {
-        String indent = this.indent;
+        String label = label(value);
         DoubleClosure c = value.bind(binder);
-        closure = env -> indent + Double.toString(c.evaluate(env));
+        setResult(env -> label + Double.toString(c.evaluate(env)));
     }
     public void visit(Expression.ByteValue value) {
-        String indent = this.indent;
+        String label = label(value);
         ByteClosure c = value.bind(binder);
-        closure = env -> indent + Byte.toString(c.evaluate(env));
+        setResult(env -> label + Byte.toString(c.evaluate(env)));
     }
     public void visit(Expression.CharacterValue value) {
-        String indent = this.indent;
+        String label = label(value);
         CharacterClosure c = value.bind(binder);
-        closure = env -> indent + Character.toString(c.evaluate(env));
+        setResult(env -> label + Character.toString(c.evaluate(env)));
     }
     public void visit(Expression.ShortValue value) {
-        String indent = this.indent;
+        String label = label(value);
         ShortClosure c = value.bind(binder);
-        closure = env -> indent + Short.toString(c.evaluate(env));
+        setResult(env -> label + Short.toString(c.evaluate(env)));
     }
 }
@@ -1,5 +1,7 @@
 package tamestaj.util.scalasupport
 
+import tamestaj.MemberDescriptor
+
 object CtField {
-  def unapply(field: javassist.CtField) = Some(field.getName)
+  def unapply(field: MemberDescriptor) = if (field.getKind == MemberDescriptor.Kind.FIELD) Some(field.getName) else None
 }
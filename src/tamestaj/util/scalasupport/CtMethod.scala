@@ -1,5 +1,7 @@
 package tamestaj.util.scalasupport
 
+import tamestaj.MemberDescriptor
+
 object CtMethod {
-  def unapply(method: javassist.CtMethod) = Some(method.getName)
+  def unapply(method: MemberDescriptor) = if (method.getKind == MemberDescriptor.Kind.METHOD) Some(method.getName) else None
 }